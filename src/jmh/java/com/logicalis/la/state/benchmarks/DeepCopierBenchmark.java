@@ -0,0 +1,153 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logicalis.la.state.core.DeepCopier;
+import com.logicalis.la.state.core.InvalidDataTypeException;
+
+/**
+ * {@link DeepCopier} against its former reflective implementation, which
+ * created every container with <code>getClass().newInstance()</code> and
+ * copied every String, Long and Double, on states of 10 and 100k entries.
+ * <p>
+ * Run with <code>-prof gc</code> to see the allocation rate.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeepCopierBenchmark {
+
+	@Param({ "10", "100000" })
+	public int size;
+
+	private Map<String, Object> state;
+	private Object previous;
+
+	@Setup(Level.Trial)
+	public void setup() throws InvalidDataTypeException {
+		state = new TreeMap<>();
+		for (int i = 0; i < size; i++) {
+			String name = String.format("drone%06d", i);
+			switch (i % 5) {
+			case 0:
+				state.put(name, i * 0.5);
+				break;
+			case 1:
+				state.put(name, (long) i);
+				break;
+			case 2:
+				state.put(name, "status " + i);
+				break;
+			case 3:
+				state.put(name, new ArrayList<>(Arrays.asList("missionstart", "missionerror")));
+				break;
+			default:
+				Map<String, Double> coords = new TreeMap<>();
+				coords.put("lat", -22.842830);
+				coords.put("lng", -47.035735);
+				state.put(name, coords);
+			}
+		}
+		previous = DeepCopier.clone(state);
+	}
+
+	@Benchmark
+	public Map<?, ?> reflectiveClone() throws InvalidDataTypeException {
+		return Reflective.clone(state);
+	}
+
+	@Benchmark
+	public Map<?, ?> typedClone() throws InvalidDataTypeException {
+		return DeepCopier.clone(state);
+	}
+
+	@Benchmark
+	public Object cloneInto() throws InvalidDataTypeException {
+		return previous = DeepCopier.cloneInto(state, previous);
+	}
+
+	/**
+	 * DeepCopier as it was.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked", "deprecation" })
+	static final class Reflective {
+
+		static Map<?, ?> clone(Map<?, ?> o) throws InvalidDataTypeException {
+			try {
+				Map r = (Map) o.getClass().newInstance();
+				for (Object key : o.keySet()) {
+					r.put(key, clone(o.get(key)));
+				}
+				return r;
+
+			} catch (InstantiationException | IllegalAccessException e) {
+				throw new InvalidDataTypeException(e);
+			}
+		}
+
+		static Set<?> clone(Set<?> o) throws InvalidDataTypeException {
+			try {
+				Set r = (Set) o.getClass().newInstance();
+				for (Object e : o) {
+					r.add(clone(e));
+				}
+				return r;
+
+			} catch (InstantiationException | IllegalAccessException e) {
+				throw new InvalidDataTypeException(e);
+			}
+		}
+
+		static List<?> clone(List<?> o) throws InvalidDataTypeException {
+			try {
+				List r = (List) o.getClass().newInstance();
+				for (Object e : o) {
+					r.add(clone(e));
+				}
+				return r;
+
+			} catch (InstantiationException | IllegalAccessException e) {
+				throw new InvalidDataTypeException(e);
+			}
+		}
+
+		static Object clone(Object o) throws InvalidDataTypeException {
+			if (o instanceof Map)
+				return clone((Map) o);
+			if (o instanceof Set)
+				return clone((Set) o);
+			if (o instanceof List)
+				return clone((List) o);
+			if (o instanceof String)
+				return new String((String) o);
+			if (o instanceof Long)
+				return new Long(((Long) o).longValue());
+			if (o instanceof Double)
+				return new Double(((Double) o).doubleValue());
+			throw new InvalidDataTypeException();
+		}
+	}
+}
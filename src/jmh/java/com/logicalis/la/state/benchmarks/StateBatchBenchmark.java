@@ -0,0 +1,61 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logicalis.la.state.core.StateStore;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+/**
+ * A location callback (lat, lng, alt, heading and speed) as five single
+ * writes against one {@link StateStore#update(java.util.function.Consumer)}
+ * batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBatchBenchmark {
+
+	@Param({ "SYNCHRONIZED", "CONCURRENT", "PERSISTENT" })
+	public Backend backend;
+
+	private StateStore store;
+	private double value;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		store = StateStore.create(backend);
+		value = 0;
+	}
+
+	@Benchmark
+	public void singles() {
+		double v = value += 0.0000001;
+		store.set("lat", v);
+		store.set("lng", v);
+		store.set("alt", v);
+		store.set("heading", v);
+		store.set("speed", v);
+	}
+
+	@Benchmark
+	public void batch() {
+		double v = value += 0.0000001;
+		store.update(batch -> batch.set("lat", v).set("lng", v).set("alt", v).set("heading", v).set("speed", v));
+	}
+}
@@ -0,0 +1,91 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.logicalis.la.state.core.InvalidDataTypeException;
+import com.logicalis.la.state.core.StateDecoder;
+import com.logicalis.la.state.core.StateEncoder;
+import com.logicalis.la.state.core.StateStore;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+/**
+ * Encoding and decoding the DroneSample state: {@link StateEncoder} and
+ * {@link StateDecoder} against Jackson.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateCodecBenchmark {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final StateEncoder encoder = new StateEncoder();
+	private final StateDecoder decoder = new StateDecoder();
+	private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+	private Map<String, Object> state;
+	private byte[] json;
+	// a message carrying its keys, so that it can be decoded repeatedly
+	private ByteBuffer message;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, InvalidDataTypeException {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		Map<String, Double> coords = new TreeMap<>();
+		coords.put("lat", -22.842830);
+		coords.put("lng", -47.035735);
+		store.set("location", coords);
+		store.set("windlevel", 1.52);
+		store.set("gpssignallevel", 4.8);
+		store.set("batterylevel", 87.6);
+		store.set("missionuploadprogress", 100L);
+		store.addToList("mission", "missionstart");
+		store.addToSet("events", "droneconnectionlost");
+		state = store.getState();
+		json = mapper.writeValueAsBytes(state);
+		StateEncoder first = new StateEncoder();
+		message = ByteBuffer.allocate(4096);
+		first.encode(state, message);
+		message.flip();
+	}
+
+	@Benchmark
+	public byte[] encodeJackson() throws IOException {
+		return mapper.writeValueAsBytes(state);
+	}
+
+	@Benchmark
+	public int encodeBinary() throws InvalidDataTypeException {
+		buffer.clear();
+		return encoder.encode(state, buffer);
+	}
+
+	@Benchmark
+	public Map<?, ?> decodeJackson() throws IOException {
+		return mapper.readValue(json, Map.class);
+	}
+
+	@Benchmark
+	public Map<String, Object> decodeBinary() throws InvalidDataTypeException {
+		message.rewind();
+		return decoder.decode(message);
+	}
+}
@@ -0,0 +1,70 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logicalis.la.state.core.InvalidDataTypeException;
+import com.logicalis.la.state.core.StateStore;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+/**
+ * Snapshot latency by number of events piled up in a list and a set since the
+ * previous snapshot (the events are added outside the measurement).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateEventDrainBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int events;
+
+	@Param({ "SYNCHRONIZED", "CONCURRENT" })
+	public Backend backend;
+
+	private StateStore store;
+	private String[] messages;
+	private Map<String, Object> previous;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		store = StateStore.create(backend);
+		messages = new String[events];
+		for (int i = 0; i < events; i++)
+			messages[i] = "waypoint " + i;
+	}
+
+	@Setup(Level.Invocation)
+	public void produceEvents() {
+		for (String message : messages) {
+			store.addToList("mission", message);
+			store.addToSet("events", message);
+		}
+	}
+
+	@Benchmark
+	public Map<String, Object> getState() throws InvalidDataTypeException {
+		return store.getState();
+	}
+
+	@Benchmark
+	public Map<String, Object> getStateRecycling() throws InvalidDataTypeException {
+		return previous = store.getState(previous);
+	}
+}
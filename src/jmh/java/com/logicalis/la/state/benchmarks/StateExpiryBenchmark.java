@@ -0,0 +1,65 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logicalis.la.state.core.StateStore;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+/**
+ * Write path cost of a time to live: the same writes, over 1024 entries, with
+ * and without one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateExpiryBenchmark {
+
+	private static final int ENTRIES = 1024;
+
+	@Param({ "SYNCHRONIZED", "CONCURRENT" })
+	public Backend backend;
+
+	@Param({ "0", "60000" })
+	public long ttlMillis;
+
+	private StateStore store;
+	private String[] names;
+	private int next;
+	private double level;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		store = StateStore.create(backend);
+		names = new String[ENTRIES];
+		for (int i = 0; i < ENTRIES; i++) {
+			names[i] = "drone" + i + ".battery";
+			store.setTtl(names[i], ttlMillis);
+		}
+	}
+
+	@Benchmark
+	public void setDouble() {
+		store.set(names[next++ & (ENTRIES - 1)], level += 0.0001);
+	}
+
+	@Benchmark
+	public void addToList() {
+		store.addToList(names[next++ & (ENTRIES - 1)], "heartbeat");
+	}
+}
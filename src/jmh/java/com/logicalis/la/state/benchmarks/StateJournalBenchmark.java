@@ -0,0 +1,106 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logicalis.la.state.core.StateJournal;
+import com.logicalis.la.state.core.StateStore;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+/**
+ * Write path cost of the journal: the same writes with and without it, from
+ * one thread and from writers of different entries (which append to the
+ * journal buffer of their own lock stripe with the concurrent backend).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateJournalBenchmark {
+
+	@Param({ "SYNCHRONIZED", "CONCURRENT" })
+	public Backend backend;
+
+	@Param({ "false", "true" })
+	public boolean journaled;
+
+	private Path directory;
+	private StateStore store;
+	private StateJournal journal;
+	private double level;
+	private long counter;
+
+	private static final AtomicInteger writers = new AtomicInteger();
+
+	/**
+	 * One writer thread, with an entry of its own.
+	 */
+	@State(Scope.Thread)
+	public static class Writer {
+		final String name = "battery" + writers.incrementAndGet();
+		double level;
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		store = StateStore.create(backend);
+		if (journaled) {
+			directory = Files.createTempDirectory("state-journal");
+			journal = StateJournal.open(store, directory);
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+	}
+
+	@Benchmark
+	public void setDouble() {
+		store.set("battery", level += 0.0001);
+	}
+
+	@Benchmark
+	public void setLong() {
+		store.set("missionuploadprogress", ++counter);
+	}
+
+	@Benchmark
+	public void setString() {
+		store.set("status", "flying");
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void setDoubleFromWriters(Writer writer) {
+		store.set(writer.name, writer.level += 0.0001);
+	}
+}
@@ -0,0 +1,69 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logicalis.la.state.core.StateStore;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+/**
+ * A coordinate update as the samples used to do it (a new map per update)
+ * against path writes into the map the store keeps. Path writes need the
+ * synchronized or concurrent backend.
+ * <p>
+ * Run with <code>-prof gc</code> to see the allocation rate.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatePathWriteBenchmark {
+
+	private static final String[] LAT = StateStore.path("location.lat");
+	private static final String[] LNG = StateStore.path("location.lng");
+
+	@Param({ "SYNCHRONIZED", "CONCURRENT" })
+	public Backend backend;
+
+	private StateStore store;
+	private double lat;
+	private double lng;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		store = StateStore.create(backend);
+		lat = -22.842830;
+		lng = -47.035735;
+	}
+
+	@Benchmark
+	public void setNewMap() {
+		Map<String, Double> coords = new TreeMap<>();
+		coords.put("lat", lat += 0.0000001);
+		coords.put("lng", lng += 0.0000001);
+		store.set("location", coords);
+	}
+
+	@Benchmark
+	public void setPaths() {
+		store.set(LAT, lat += 0.0000001);
+		store.set(LNG, lng += 0.0000001);
+	}
+}
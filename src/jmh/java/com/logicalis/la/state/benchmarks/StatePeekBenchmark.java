@@ -0,0 +1,97 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logicalis.la.state.core.InvalidDataTypeException;
+import com.logicalis.la.state.core.StateStore;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+/**
+ * A producer writing while a monitoring thread reads as fast as it can:
+ * with <code>peekDouble()</code>, with <code>readState()</code>, or with
+ * <code>getState()</code> (which locks and drains). The producer score shows
+ * how much each kind of reader holds writers up.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatePeekBenchmark {
+
+	@Param({ "SYNCHRONIZED", "CONCURRENT" })
+	public Backend backend;
+
+	private StateStore store;
+	private double value;
+
+	@Setup
+	public void setup() {
+		store = StateStore.create(backend);
+		for (int i = 0; i < 100; i++)
+			store.set("entry" + i, (double) i);
+		store.set("battery", 100.0);
+	}
+
+	private void write() {
+		store.set("battery", value += 0.001);
+	}
+
+	@Benchmark
+	@Group("peek")
+	@GroupThreads(1)
+	public void producePeeked() {
+		write();
+	}
+
+	@Benchmark
+	@Group("peek")
+	@GroupThreads(1)
+	public double peekDouble() {
+		return store.peekDouble("battery");
+	}
+
+	@Benchmark
+	@Group("readState")
+	@GroupThreads(1)
+	public void produceRead() {
+		write();
+	}
+
+	@Benchmark
+	@Group("readState")
+	@GroupThreads(1)
+	public Map<String, Object> readState() throws InvalidDataTypeException {
+		return store.readState();
+	}
+
+	@Benchmark
+	@Group("getState")
+	@GroupThreads(1)
+	public void produceDrained() {
+		write();
+	}
+
+	@Benchmark
+	@Group("getState")
+	@GroupThreads(1)
+	public Map<String, Object> getState() throws InvalidDataTypeException {
+		return store.getState();
+	}
+}
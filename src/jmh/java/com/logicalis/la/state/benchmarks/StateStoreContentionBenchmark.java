@@ -0,0 +1,94 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logicalis.la.state.core.InvalidDataTypeException;
+import com.logicalis.la.state.core.StateStore;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+/**
+ * Producers writing concurrently while a consumer takes a snapshot every
+ * <code>periodMillis</code>. The number of producers is set with
+ * <code>-tg N,1</code> (default 4 producers, 1 consumer); the producer score
+ * is the aggregated write throughput.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateStoreContentionBenchmark {
+
+	@Param({ "SYNCHRONIZED", "CONCURRENT", "PERSISTENT" })
+	public Backend backend;
+
+	@Param({ "1000" })
+	public int size;
+
+	@Param({ "10" })
+	public int periodMillis;
+
+	private StateStore store;
+
+	@Setup
+	public void setup() {
+		store = StateStore.create(backend);
+		for (int i = 0; i < size; i++)
+			store.set("entry" + i, (double) i);
+	}
+
+	/**
+	 * Entries written by one producer thread.
+	 */
+	@State(Scope.Thread)
+	public static class Producer {
+		private static final AtomicInteger IDS = new AtomicInteger();
+
+		final String[] names = new String[8];
+		final String events;
+		double value;
+		int next;
+
+		public Producer() {
+			int id = IDS.incrementAndGet();
+			for (int i = 0; i < names.length; i++)
+				names[i] = "producer" + id + "." + i;
+			events = "producer" + id + ".events";
+		}
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(4)
+	public void produce(Producer p) {
+		int i = p.next++;
+		if ((i & 15) == 0)
+			store.addToList(p.events, (i & 16) == 0 ? "a" : "b");
+		else
+			store.set(p.names[i & 7], p.value += 0.001);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public int consume() throws InvalidDataTypeException, InterruptedException {
+		Thread.sleep(periodMillis);
+		return store.getState().size();
+	}
+}
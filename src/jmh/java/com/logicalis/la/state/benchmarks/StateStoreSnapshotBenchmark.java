@@ -0,0 +1,113 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.logicalis.la.state.core.InvalidDataTypeException;
+import com.logicalis.la.state.core.StateChanges;
+import com.logicalis.la.state.core.StateStore;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+/**
+ * Snapshot latency (with percentiles) by state size and backend. Every call
+ * first adds a few events, as producers would between two snapshots.
+ * <p>
+ * Run with <code>-prof gc</code> to see the allocation rate.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateStoreSnapshotBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int size;
+
+	@Param({ "SYNCHRONIZED", "CONCURRENT", "PERSISTENT" })
+	public Backend backend;
+
+	private StateStore store;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+	private long version;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		store = StateStore.create(backend);
+		for (int i = 0; i < size; i++) {
+			String name = String.format("drone%06d", i);
+			switch (i % 4) {
+			case 0:
+				store.set(name, i * 0.5);
+				break;
+			case 1:
+				store.set(name, (long) i);
+				break;
+			case 2:
+				store.set(name, "status " + i);
+				break;
+			default:
+				Map<String, Double> coords = new TreeMap<>();
+				coords.put("lat", -22.842830);
+				coords.put("lng", -47.035735);
+				store.set(name, coords);
+			}
+		}
+	}
+
+	private void produceEvents() {
+		store.set("battery", 99.0);
+		store.addToList("mission", "missionstart");
+		store.addToList("mission", "missionerror");
+		store.addToSet("events", "droneconnectionlost");
+	}
+
+	@Benchmark
+	public Map<String, Object> getState() throws InvalidDataTypeException {
+		produceEvents();
+		return store.getState();
+	}
+
+	@Benchmark
+	public int getChangesSince() throws InvalidDataTypeException {
+		produceEvents();
+		StateChanges changes = store.getChangesSince(version);
+		version = changes.getVersion();
+		return changes.getChanged().size();
+	}
+
+	@Benchmark
+	public int getStateWithJackson() throws InvalidDataTypeException, IOException {
+		produceEvents();
+		out.reset();
+		mapper.writeValue(out, store.getState());
+		return out.size();
+	}
+
+	@Benchmark
+	public int writeStateAsJson() throws InvalidDataTypeException, IOException {
+		produceEvents();
+		out.reset();
+		return store.writeStateAsJson(out);
+	}
+}
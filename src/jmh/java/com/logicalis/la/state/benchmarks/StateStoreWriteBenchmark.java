@@ -0,0 +1,120 @@
+package com.logicalis.la.state.benchmarks;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logicalis.la.state.core.InvalidDataTypeException;
+import com.logicalis.la.state.core.StateStore;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+/**
+ * Single producer cost of each write operation, per backend.
+ * <p>
+ * Run with <code>-prof gc</code> to see the allocation rate.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateStoreWriteBenchmark {
+
+	private static final String[] MESSAGES = { "droneconnectionlost", "dronestoragefull", "missionerror",
+			"missionstart" };
+
+	@Param({ "SYNCHRONIZED", "CONCURRENT", "PERSISTENT" })
+	public Backend backend;
+
+	private StateStore store;
+	private Map<String, Double> coords;
+	private Double boxed;
+	private double level;
+	private long counter;
+
+	@Setup(Level.Iteration)
+	public void setup() throws InvalidDataTypeException {
+		store = StateStore.create(backend);
+		for (int i = 0; i < 100; i++)
+			store.set("entry" + i, (double) i);
+		coords = new TreeMap<>();
+		coords.put("lat", -22.842830);
+		coords.put("lng", -47.035735);
+		boxed = Double.valueOf(42.0);
+		for (String message : MESSAGES)
+			store.addToSet("events", message);
+		store.addToList("mission", MESSAGES[0]);
+	}
+
+	@Benchmark
+	public void setString() {
+		store.set("status", "flying");
+	}
+
+	@Benchmark
+	public void setDouble() {
+		store.set("battery", level += 0.0001);
+	}
+
+	@Benchmark
+	public void setBoxedDouble() {
+		store.set("battery", boxed);
+	}
+
+	@Benchmark
+	public void setLong() {
+		store.set("missionuploadprogress", ++counter);
+	}
+
+	@Benchmark
+	public void setMap() {
+		store.set("location", coords);
+	}
+
+	/**
+	 * Message already in the set.
+	 */
+	@Benchmark
+	public void addToSetDuplicate() {
+		store.addToSet("events", MESSAGES[(int) (++counter & 3)]);
+	}
+
+	/**
+	 * Same message as the last one of the list (not appended).
+	 */
+	@Benchmark
+	public void addToListDuplicate() {
+		store.addToList("mission", MESSAGES[0]);
+	}
+
+	/**
+	 * Appends, draining the list every 4096 calls to keep it bounded.
+	 */
+	@Benchmark
+	public void addToListAppend() throws InvalidDataTypeException {
+		store.addToList("mission", MESSAGES[(int) (++counter & 3)]);
+		if ((counter & 4095) == 0)
+			store.getState();
+	}
+
+	@Benchmark
+	public void setThenRemove() {
+		store.set("missionuploadprogress", 1L);
+		store.remove("missionuploadprogress");
+	}
+}
@@ -0,0 +1,102 @@
+package com.logicalis.la.state.core;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Primitive encodings shared by {@link StateJournal}, {@link StateEncoder} and
+ * {@link StateDecoder}: unsigned varints (7 bits per byte, low bits first),
+ * zigzag varints for signed longs and varint length prefixed UTF-8 strings.
+ */
+final class BinaryFormat {
+
+	private BinaryFormat() {
+	}
+
+	static void putVarint(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0L) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	static long getVarint(ByteBuffer in) {
+		long value = 0L;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new BufferUnderflowException();
+	}
+
+	static void putZigzag(ByteBuffer out, long value) {
+		putVarint(out, (value << 1) ^ (value >> 63));
+	}
+
+	static long getZigzag(ByteBuffer in) {
+		long zigzag = getVarint(in);
+		return (zigzag >>> 1) ^ -(zigzag & 1L);
+	}
+
+	/**
+	 * Writes the UTF-8 length and bytes of a String, without intermediate
+	 * arrays.
+	 */
+	static void putString(ByteBuffer out, String s) {
+		int n = s.length();
+		int length = StateMirror.utf8Length(s);
+		putVarint(out, length);
+		if (length == n) {
+			for (int i = 0; i < n; i++)
+				out.put((byte) s.charAt(i));
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xF0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (cp & 0x3F)));
+			} else {
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	static String getString(ByteBuffer in) {
+		long length = getVarint(in);
+		if (length < 0L || length > in.remaining())
+			throw new BufferUnderflowException();
+		return getString(in, (int) length);
+	}
+
+	/**
+	 * Reads the UTF-8 bytes of a String whose length was already read and
+	 * checked against the bytes remaining.
+	 */
+	static String getString(ByteBuffer in, int length) {
+		String s;
+		if (in.hasArray()) {
+			s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+			in.position(in.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return s;
+	}
+}
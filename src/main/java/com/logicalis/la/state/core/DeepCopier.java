@@ -1,9 +1,32 @@
 package com.logicalis.la.state.core;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Deep copies of state values (Map, Set, List, String, Long or Double).
+ * <p>
+ * Containers of the usual concrete types (HashMap, LinkedHashMap, TreeMap,
+ * HashSet, LinkedHashSet, TreeSet, ArrayList, LinkedList) are created with
+ * their presized or copy constructors; other containers are created
+ * reflectively through their public no-arg constructor. Strings, Longs and
+ * Doubles are immutable, so copies share them.
+ * </p>
+ */
 public class DeepCopier {
 
 	private DeepCopier() {
@@ -11,86 +34,201 @@ public class DeepCopier {
 
 	/**
 	 * Deep copy of a map (not a shallow copy).
-	 * 
+	 *
 	 * @param o
 	 *              map to be copied
 	 * @return a deep copy of object
 	 * @throws InvalidDataTypeException
 	 */
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public static Map<?, ?> clone(Map<?, ?> o) throws InvalidDataTypeException {
-		try {
-			Map r = (Map) o.getClass().newInstance();
-			for (Object key : o.keySet()) {
-				r.put(key, clone(o.get(key)));
-			}
-			return r;
+		return cloneMap(o, null);
+	}
 
-		} catch (InstantiationException | IllegalAccessException e) {
-			throw new InvalidDataTypeException(e);
-		}
+	/**
+	 * Valid data types: Map, Set, List, String, Long or Double
+	 *
+	 * @param o
+	 *              object to be copied
+	 *
+	 * @return a new instance of object (or the object itself, when immutable)
+	 */
+	static Object clone(Object o) throws InvalidDataTypeException {
+		return cloneInto(o, null);
+	}
+
+	/**
+	 * Deep copy of a value, recycling the containers of a previous copy: a
+	 * container of the same concrete type as its source is emptied and filled
+	 * again (nested maps and lists recursively, by key and by index) instead
+	 * of allocating a new one; a TreeMap with the same keys is refilled in a
+	 * single ordered pass. The previous copy must not be used after this call,
+	 * and is left half updated if this call throws.
+	 *
+	 * @param o
+	 *                  object to be copied
+	 * @param reuse
+	 *                  previous copy of the object (or null)
+	 * @return a copy of object (reuse itself, when it could be recycled)
+	 * @throws InvalidDataTypeException
+	 */
+	public static Object cloneInto(Object o, Object reuse) throws InvalidDataTypeException {
+		if (o instanceof String || o instanceof Long || o instanceof Double)
+			return o;
+		if (o instanceof Map)
+			return cloneMap((Map<?, ?>) o, reuse);
+		if (o instanceof List)
+			return cloneList((List<?>) o, reuse);
+		if (o instanceof Set)
+			return cloneSet((Set<?>) o, reuse);
+		throw new InvalidDataTypeException();
+	}
+
+	private static boolean isLeaf(Object o) {
+		return o instanceof String || o instanceof Long || o instanceof Double;
+	}
+
+	private static int capacity(int size) {
+		return Math.max(16, (int) (size / .75f) + 1);
 	}
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private static Set<?> clone(Set<?> o) throws InvalidDataTypeException {
-		try {
-			Set r = (Set) o.getClass().newInstance();
-			for (Object e : o) {
-				r.add(clone(e));
+	private static Map<?, ?> cloneMap(Map<?, ?> o, Object reuse) throws InvalidDataTypeException {
+		Class<?> type = o.getClass();
+		if (reuse != null && reuse.getClass() == type && (type != TreeMap.class
+				|| Objects.equals(((TreeMap) o).comparator(), ((TreeMap) reuse).comparator())))
+			return refill(o, (Map) reuse);
+
+		Map r;
+		if (type == HashMap.class || type == LinkedHashMap.class || type == TreeMap.class) {
+			// copy constructors share the values (TreeMap's in linear time):
+			// only mutable ones are copied afterwards
+			if (type == HashMap.class)
+				r = new HashMap<>(o);
+			else if (type == LinkedHashMap.class)
+				r = new LinkedHashMap<>(o);
+			else
+				r = new TreeMap<>((SortedMap) o);
+			for (Map.Entry e : (Set<Map.Entry>) r.entrySet()) {
+				Object value = e.getValue();
+				if (!isLeaf(value))
+					e.setValue(cloneInto(value, null));
 			}
 			return r;
+		}
 
-		} catch (InstantiationException | IllegalAccessException e) {
-			throw new InvalidDataTypeException(e);
+		r = (Map) newInstance(type);
+		for (Map.Entry<?, ?> e : o.entrySet())
+			r.put(e.getKey(), cloneInto(e.getValue(), null));
+		return r;
+	}
+
+	/**
+	 * Copies a map into a previous copy of the same type (and order).
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Map<?, ?> refill(Map<?, ?> o, Map r) throws InvalidDataTypeException {
+		Iterator<? extends Map.Entry<?, ?>> source = o.entrySet().iterator();
+		Map.Entry<?, ?> pending = null;
+		if (r instanceof TreeMap && r.size() == o.size()) {
+			// same keys, most of the time: values are replaced walking both
+			// maps in order, without lookups
+			Comparator order = ((TreeMap) r).comparator();
+			Iterator<Map.Entry> target = r.entrySet().iterator();
+			while (source.hasNext()) {
+				Map.Entry<?, ?> e = source.next();
+				Map.Entry t = target.next();
+				if (compare(order, e.getKey(), t.getKey()) != 0) {
+					pending = e;
+					break;
+				}
+				Object value = e.getValue();
+				t.setValue(isLeaf(value) ? value : cloneInto(value, t.getValue()));
+			}
+		}
+		while (pending != null || source.hasNext()) {
+			Map.Entry<?, ?> e = pending != null ? pending : source.next();
+			pending = null;
+			Object key = e.getKey();
+			Object value = e.getValue();
+			r.put(key, isLeaf(value) ? value : cloneInto(value, r.get(key)));
 		}
+		// every key of o is in r now, anything else is stale
+		if (r.size() != o.size())
+			r.keySet().retainAll(o.keySet());
+		return r;
 	}
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private static List<?> clone(List<?> o) throws InvalidDataTypeException {
-		try {
-			List r = (List) o.getClass().newInstance();
-			for (Object e : o) {
-				r.add(clone(e));
+	private static List<?> cloneList(List<?> o, Object reuse) throws InvalidDataTypeException {
+		Class<?> type = o.getClass();
+		List r;
+		if (reuse != null && reuse.getClass() == type && type == ArrayList.class) {
+			// element by element, so that nested containers are recycled too
+			r = (List) reuse;
+			int previous = r.size();
+			int i = 0;
+			for (Object value : o) {
+				if (i < previous)
+					r.set(i, cloneInto(value, r.get(i)));
+				else
+					r.add(cloneInto(value, null));
+				i++;
 			}
+			if (previous > i)
+				r.subList(i, previous).clear();
 			return r;
+		}
 
-		} catch (InstantiationException | IllegalAccessException e) {
-			throw new InvalidDataTypeException(e);
+		if (reuse != null && reuse.getClass() == type) {
+			r = (List) reuse;
+			r.clear();
+		} else if (type == ArrayList.class) {
+			r = new ArrayList<>(o.size());
+		} else if (type == LinkedList.class) {
+			r = new LinkedList<>();
+		} else {
+			r = (List) newInstance(type);
 		}
+		return (List<?>) addAll(o, r);
 	}
 
-	/**
-	 * Valid data types: Map, Set, List, String, Long or Double
-	 * 
-	 * @param o
-	 *              object to be copied
-	 * 
-	 * @return a new instance of object
-	 */
-	@SuppressWarnings("rawtypes")
-	private static Object clone(Object o) throws InvalidDataTypeException {
-		Object r = null;
-		if (Map.class.isInstance(o)) {
-			r = clone((Map) o);
-
-		} else if (Set.class.isInstance(o)) {
-			r = clone((Set) o);
-
-		} else if (List.class.isInstance(o)) {
-			r = clone((List) o);
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Set<?> cloneSet(Set<?> o, Object reuse) throws InvalidDataTypeException {
+		Class<?> type = o.getClass();
+		Set r;
+		if (reuse != null && reuse.getClass() == type) {
+			r = (Set) reuse;
+			r.clear();
+		} else if (type == HashSet.class) {
+			r = new HashSet<>(capacity(o.size()));
+		} else if (type == LinkedHashSet.class) {
+			r = new LinkedHashSet<>(capacity(o.size()));
+		} else if (type == TreeSet.class) {
+			r = new TreeSet<>(((TreeSet) o).comparator());
+		} else {
+			r = (Set) newInstance(type);
+		}
+		return (Set<?>) addAll(o, r);
+	}
 
-		} else if (o instanceof String) {
-			r = new String((String) o);
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Collection<?> addAll(Collection<?> o, Collection r) throws InvalidDataTypeException {
+		for (Object value : o)
+			r.add(cloneInto(value, null));
+		return r;
+	}
 
-		} else if (o instanceof Long) {
-			r = new Long(((Long) o).longValue());
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static int compare(Comparator order, Object a, Object b) {
+		return order != null ? order.compare(a, b) : ((Comparable) a).compareTo(b);
+	}
 
-		} else if (o instanceof Double) {
-			r = new Double(((Double) o).doubleValue());
+	private static Object newInstance(Class<?> type) throws InvalidDataTypeException {
+		try {
+			return type.getDeclaredConstructor().newInstance();
 
-		} else {
-			throw new InvalidDataTypeException();
+		} catch (ReflectiveOperationException e) {
+			throw new InvalidDataTypeException(e);
 		}
-		return r;
 	}
 }
@@ -0,0 +1,136 @@
+package com.logicalis.la.state.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only log of the events added to sets and lists, read by consumers
+ * registered with {@link StateStore#registerConsumer(String)}, each through
+ * its own {@link Cursor}.
+ * <p>
+ * Events go into fixed size segments linked from the oldest to the newest.
+ * The log only keeps the segment being filled; older segments are reachable
+ * from the cursors alone, so a segment is garbage once every cursor moved past
+ * it, and memory follows the lag of the slowest consumer.
+ * </p>
+ * <p>
+ * Appends do not lock: each one claims a slot with an atomic increment and
+ * publishes its event through a volatile write of the message, so writers of
+ * different entries (which hold different stripes) do not wait for each
+ * other. Only linking a new segment, once per {@link #SEGMENT_SIZE} events,
+ * takes the log's monitor. Cursors read without it and stop at the first slot
+ * claimed but not yet published, picking it up on their next read.
+ * </p>
+ */
+final class EventLog {
+
+	static final int SEGMENT_SIZE = 1024;
+
+	static final class Segment {
+		final String[] names = new String[SEGMENT_SIZE];
+		// set after the name: a non null message publishes its slot
+		final AtomicReferenceArray<String> messages = new AtomicReferenceArray<>(SEGMENT_SIZE);
+		// slots handed out (may go beyond SEGMENT_SIZE once full)
+		final AtomicInteger claimed = new AtomicInteger();
+		// set (under the log's monitor) once this segment is full
+		volatile Segment next;
+	}
+
+	/**
+	 * Position of one consumer, to be used by one thread at a time.
+	 */
+	static final class Cursor {
+		final EventLog log;
+		Segment segment;
+		int index;
+		// store updates counted when the consumer last read
+		long updates;
+
+		Cursor(EventLog log, Segment segment, int index) {
+			this.log = log;
+			this.segment = segment;
+			this.index = index;
+		}
+	}
+
+	// segment being filled (only moves forward, under this)
+	private volatile Segment tail = new Segment();
+
+	/**
+	 * Appends an event (called holding the monitor of its entry, so the
+	 * events of one entry keep their order).
+	 */
+	void append(String name, String message) {
+		Segment s = tail;
+		while (true) {
+			int i = s.claimed.getAndIncrement();
+			if (i < SEGMENT_SIZE) {
+				s.names[i] = name;
+				s.messages.set(i, message);
+				return;
+			}
+			s = next(s);
+		}
+	}
+
+	private Segment next(Segment full) {
+		Segment next = full.next;
+		if (next == null) {
+			synchronized (this) {
+				next = full.next;
+				if (next == null) {
+					next = new Segment();
+					full.next = next;
+					tail = next;
+				}
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * 
+	 * @return a cursor at the end of the log
+	 */
+	Cursor cursor() {
+		Segment s = tail;
+		return new Cursor(this, s, Math.min(s.claimed.get(), SEGMENT_SIZE));
+	}
+
+	/**
+	 * Reads the events published after a cursor (up to the end of the log as
+	 * of this call) and moves the cursor past them.
+	 * 
+	 * @return events by entry name, in order
+	 */
+	static Map<String, List<String>> read(Cursor cursor) {
+		Map<String, List<String>> events = new HashMap<>();
+		Segment end = cursor.log.tail;
+		int endCount = Math.min(end.claimed.get(), SEGMENT_SIZE);
+		Segment s = cursor.segment;
+		int i = cursor.index;
+		while (s != end || i < endCount) {
+			if (i == SEGMENT_SIZE) {
+				Segment next = s.next;
+				if (next == null)
+					break;
+				s = next;
+				i = 0;
+				continue;
+			}
+			String message = s.messages.get(i);
+			if (message == null)
+				break;
+			events.computeIfAbsent(s.names[i], n -> new ArrayList<>()).add(message);
+			i++;
+		}
+		// from here on, the segments behind are not reachable from this cursor
+		cursor.segment = s;
+		cursor.index = i;
+		return events;
+	}
+}
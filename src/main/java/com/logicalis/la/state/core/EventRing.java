@@ -0,0 +1,65 @@
+package com.logicalis.la.state.core;
+
+import java.util.AbstractList;
+
+/**
+ * Bounded list of events kept in a preallocated circular array (list entries
+ * with a capacity, see {@link StateStore#setCapacity(String, int, StateStore.Overflow)}).
+ */
+final class EventRing extends AbstractList<String> {
+
+	private final String[] items;
+	private int head;
+	private int size;
+
+	EventRing(int capacity) {
+		items = new String[capacity];
+	}
+
+	boolean isFull() {
+		return size == items.length;
+	}
+
+	/**
+	 * Appends an event (the ring must not be full).
+	 */
+	@Override
+	public boolean add(String item) {
+		if (isFull())
+			throw new IllegalStateException("ring is full");
+		items[(head + size) % items.length] = item;
+		size++;
+		return true;
+	}
+
+	/**
+	 * 
+	 * @return the oldest event, removed from the ring
+	 */
+	String removeFirst() {
+		String item = items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		size--;
+		return item;
+	}
+
+	@Override
+	public String get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+		return items[(head + index) % items.length];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		while (size > 0)
+			removeFirst();
+		head = 0;
+	}
+}
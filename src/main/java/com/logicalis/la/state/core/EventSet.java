@@ -0,0 +1,67 @@
+package com.logicalis.la.state.core;
+
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Bounded set of events: insertion order in an {@link EventRing} (so the
+ * oldest can be evicted) plus a presized hash set for lookups.
+ */
+final class EventSet extends AbstractSet<String> {
+
+	private final EventRing order;
+	private final HashSet<String> members;
+
+	EventSet(int capacity) {
+		order = new EventRing(capacity);
+		members = new HashSet<>(capacity * 4 / 3 + 1);
+	}
+
+	boolean isFull() {
+		return order.isFull();
+	}
+
+	/**
+	 * Adds an event (the set must not be full).
+	 */
+	@Override
+	public boolean add(String item) {
+		if (members.contains(item))
+			return false;
+		order.add(item);
+		members.add(item);
+		return true;
+	}
+
+	/**
+	 * 
+	 * @return the oldest event, removed from the set
+	 */
+	String removeFirst() {
+		String item = order.removeFirst();
+		members.remove(item);
+		return item;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return members.contains(o);
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return order.iterator();
+	}
+
+	@Override
+	public int size() {
+		return order.size();
+	}
+
+	@Override
+	public void clear() {
+		order.clear();
+		members.clear();
+	}
+}
@@ -0,0 +1,175 @@
+package com.logicalis.la.state.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel expiring the entries of every store with a time to live
+ * (see {@link StateStore#setTtl(String, long)}), driven by a single daemon
+ * thread started on first use.
+ * <p>
+ * Each slot holds a doubly linked list of timers, so scheduling and
+ * cancelling are constant time whatever the number of timers; deadlines
+ * beyond one turn of the wheel wait for the rounds left. Writes refreshing a
+ * deadline do not touch the wheel: when its slot comes, a timer whose entry
+ * was written since is scheduled again for the new deadline.
+ * </p>
+ * <p>
+ * Lock order: a store calls {@link #schedule(Timer, long)} and
+ * {@link #cancel(Timer)} holding the monitor of the entry, and the ticker
+ * never holds the wheel while expiring an entry.
+ * </p>
+ */
+final class ExpiryWheel {
+
+	// time between two ticks (the resolution of expiry)
+	static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(StateStore.EXPIRY_RESOLUTION_MILLIS);
+
+	// slots of the wheel (power of two): one turn is about 5 seconds
+	private static final int SLOTS = 512;
+
+	private static volatile ExpiryWheel shared;
+
+	private final Timer[] slots = new Timer[SLOTS];
+	private final long start = System.nanoTime();
+	// next tick to run (guarded by this)
+	private long tick;
+
+	/**
+	 * One entry of a store waiting to expire.
+	 */
+	static final class Timer {
+		final StateStore store;
+		final StateEntry entry;
+		// turns of the wheel left, slot (-1 when not in the wheel) and
+		// neighbours in that slot (guarded by the wheel)
+		long rounds;
+		int slot = -1;
+		Timer prev;
+		Timer next;
+
+		Timer(StateStore store, StateEntry entry) {
+			this.store = store;
+			this.entry = entry;
+		}
+	}
+
+	private ExpiryWheel() {
+	}
+
+	/**
+	 *
+	 * @return the wheel of every store, its thread started on first call
+	 */
+	static ExpiryWheel shared() {
+		ExpiryWheel wheel = shared;
+		if (wheel == null) {
+			synchronized (ExpiryWheel.class) {
+				wheel = shared;
+				if (wheel == null) {
+					wheel = new ExpiryWheel();
+					Thread ticker = new Thread(wheel::run, "state-store-expiry");
+					ticker.setDaemon(true);
+					ticker.start();
+					shared = wheel;
+				}
+			}
+		}
+		return wheel;
+	}
+
+	/**
+	 * Puts a timer (not in the wheel) in the slot of a deadline.
+	 *
+	 * @param timer
+	 *                     timer to be scheduled
+	 * @param deadline
+	 *                     when it expires, as given by {@link System#nanoTime()}
+	 */
+	synchronized void schedule(Timer timer, long deadline) {
+		// ticks are rounded up, so that a timer never fires early; those
+		// already due go to the next tick
+		long due = Math.max((deadline - start + TICK_NANOS - 1) / TICK_NANOS, tick);
+		timer.rounds = (due - tick) / SLOTS;
+		int slot = (int) (due & (SLOTS - 1));
+		timer.slot = slot;
+		timer.prev = null;
+		timer.next = slots[slot];
+		if (timer.next != null)
+			timer.next.prev = timer;
+		slots[slot] = timer;
+	}
+
+	/**
+	 * Takes a timer out of the wheel (nothing happens when it is not in it).
+	 */
+	synchronized void cancel(Timer timer) {
+		if (timer.slot >= 0)
+			unlink(timer);
+	}
+
+	private void unlink(Timer timer) {
+		if (timer.prev != null)
+			timer.prev.next = timer.next;
+		else
+			slots[timer.slot] = timer.next;
+		if (timer.next != null)
+			timer.next.prev = timer.prev;
+		timer.prev = null;
+		timer.next = null;
+		timer.slot = -1;
+	}
+
+	/**
+	 * Takes the timers of the current slot that are due.
+	 *
+	 * @return the timers, linked through next (null when none is due)
+	 */
+	private synchronized Timer advance() {
+		int slot = (int) (tick & (SLOTS - 1));
+		tick++;
+		Timer due = null;
+		Timer timer = slots[slot];
+		while (timer != null) {
+			Timer next = timer.next;
+			if (timer.rounds > 0L) {
+				timer.rounds--;
+			} else {
+				unlink(timer);
+				timer.next = due;
+				due = timer;
+			}
+			timer = next;
+		}
+		return due;
+	}
+
+	private void run() {
+		while (true) {
+			long wait;
+			synchronized (this) {
+				wait = start + tick * TICK_NANOS - System.nanoTime();
+			}
+			if (wait > 0L) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					// a daemon: keeps ticking
+				}
+				continue;
+			}
+			Timer timer = advance();
+			long now = System.nanoTime();
+			while (timer != null) {
+				Timer next = timer.next;
+				timer.next = null;
+				try {
+					timer.store.expire(timer, now);
+				} catch (RuntimeException e) {
+					// the entry stays (a failing journal throws): other stores
+					// keep expiring
+				}
+				timer = next;
+			}
+		}
+	}
+}
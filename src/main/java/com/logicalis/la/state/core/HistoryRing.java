@@ -0,0 +1,123 @@
+package com.logicalis.la.state.core;
+
+/**
+ * Last samples (timestamp and value) of a numeric entry, in two primitive
+ * arrays allocated once. Downsampled as told by its {@link StateStore.Sampling}
+ * over buckets of <code>factor</code> writes. Accessed under the monitor of
+ * the entry.
+ */
+final class HistoryRing {
+
+	private final long[] times;
+	private final double[] values;
+	// oldest sample and number of samples
+	private int head;
+	private int size;
+
+	private final StateStore.Sampling sampling;
+	private final int factor;
+
+	// writes of the bucket in progress, and its extremes
+	private int count;
+	private double min;
+	private long minTime;
+	private double max;
+	private long maxTime;
+
+	HistoryRing(int capacity, StateStore.Sampling sampling, int factor) {
+		times = new long[capacity];
+		values = new double[capacity];
+		this.sampling = sampling;
+		this.factor = factor;
+	}
+
+	/**
+	 * Records a write (timestamps must not decrease).
+	 */
+	void add(long time, double value) {
+		switch (sampling) {
+		case ALL:
+			push(time, value);
+			return;
+		case EVERY:
+			if (count == 0)
+				push(time, value);
+			break;
+		default:
+			if (count == 0 || value < min) {
+				min = value;
+				minTime = time;
+			}
+			if (count == 0 || value > max) {
+				max = value;
+				maxTime = time;
+			}
+			if (count + 1 == factor)
+				flush(Long.MIN_VALUE, null);
+		}
+		if (++count == factor)
+			count = 0;
+	}
+
+	/**
+	 * Copies the samples taken at or after a given time, oldest first. The
+	 * bucket in progress of MIN, MAX and MIN_MAX is included as it stands.
+	 */
+	void copy(long since, StateHistory into) {
+		into.clear();
+		int capacity = times.length;
+		// first sample not older than since (timestamps are ordered)
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (times[(head + mid) % capacity] < since)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		into.ensure(size - low + 2);
+		for (int i = low; i < size; i++) {
+			int slot = (head + i) % capacity;
+			into.add(times[slot], values[slot]);
+		}
+		if (count > 0 && sampling != StateStore.Sampling.ALL && sampling != StateStore.Sampling.EVERY)
+			flush(since, into);
+	}
+
+	/**
+	 * Emits the extremes of the bucket in progress, in time order: into the
+	 * ring (closing the bucket) when target is null, into target otherwise.
+	 */
+	private void flush(long since, StateHistory target) {
+		boolean low = sampling != StateStore.Sampling.MAX;
+		boolean high = sampling != StateStore.Sampling.MIN && !(low && maxTime == minTime);
+		if (low && high && maxTime < minTime) {
+			emit(maxTime, max, since, target);
+			emit(minTime, min, since, target);
+		} else {
+			if (low)
+				emit(minTime, min, since, target);
+			if (high)
+				emit(maxTime, max, since, target);
+		}
+	}
+
+	private void emit(long time, double value, long since, StateHistory target) {
+		if (target == null)
+			push(time, value);
+		else if (time >= since)
+			target.add(time, value);
+	}
+
+	private void push(long time, double value) {
+		int slot = (head + size) % times.length;
+		if (size == times.length)
+			// overwrites the oldest
+			head = (head + 1) % times.length;
+		else
+			size++;
+		times[slot] = time;
+		values[slot] = value;
+	}
+}
@@ -0,0 +1,268 @@
+package com.logicalis.la.state.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Reusable JSON encoder for state snapshots.
+ * <p>
+ * Text is written into a growable char buffer kept between snapshots (and
+ * encoded to UTF-8 into a growable byte buffer when needed), so a snapshot
+ * allocates no intermediate objects. Not thread safe: callers hold
+ * {@link StateStore}'s JSON lock.
+ * </p>
+ */
+final class JsonStateWriter {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private char[] chars = new char[4096];
+	private int length;
+	private byte[] bytes = new byte[4096];
+
+	// first member of the current object (no comma before it)
+	private boolean first;
+
+	// scratch space for doubles (appending a double to it does not allocate)
+	private final StringBuilder number = new StringBuilder(32);
+
+	void reset() {
+		length = 0;
+		first = true;
+	}
+
+	void beginObject() {
+		append('{');
+		first = true;
+	}
+
+	void endObject() {
+		append('}');
+		first = false;
+	}
+
+	/**
+	 * Writes a member name (and the comma before it, when needed).
+	 * 
+	 * @param name
+	 *                 member name
+	 */
+	void name(String name) {
+		if (!first)
+			append(',');
+		string(name);
+		append(':');
+		first = false;
+	}
+
+	void value(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			// as quoted by Jackson
+			append('"');
+			number.setLength(0);
+			number.append(value);
+			appendNumber();
+			append('"');
+			return;
+		}
+		number.setLength(0);
+		number.append(value);
+		appendNumber();
+	}
+
+	void value(long value) {
+		if (value == Long.MIN_VALUE) {
+			number.setLength(0);
+			number.append(value);
+			appendNumber();
+			return;
+		}
+		if (value < 0) {
+			append('-');
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10)
+			digits++;
+		ensure(digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			chars[i] = (char) ('0' + (value % 10));
+			value /= 10;
+		}
+		length += digits;
+	}
+
+	/**
+	 * Writes any valid state value: Map, Set, List, String, Long or Double.
+	 * 
+	 * @param value
+	 *                  value to be written
+	 * @throws InvalidDataTypeException
+	 */
+	@SuppressWarnings("rawtypes")
+	void value(Object value) throws InvalidDataTypeException {
+		if (value instanceof String) {
+			string((String) value);
+
+		} else if (value instanceof Double) {
+			value(((Double) value).doubleValue());
+
+		} else if (value instanceof Long) {
+			value(((Long) value).longValue());
+
+		} else if (value instanceof Map) {
+			beginObject();
+			for (Object o : ((Map) value).entrySet()) {
+				Map.Entry e = (Map.Entry) o;
+				name(String.valueOf(e.getKey()));
+				value(e.getValue());
+			}
+			endObject();
+
+		} else if (value instanceof Collection) {
+			append('[');
+			boolean next = false;
+			for (Object e : (Collection) value) {
+				if (next)
+					append(',');
+				value(e);
+				next = true;
+			}
+			append(']');
+			first = false;
+
+		} else {
+			throw new InvalidDataTypeException();
+		}
+	}
+
+	private void string(String s) {
+		int n = s.length();
+		ensure(n + 2);
+		chars[length++] = '"';
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				append('\\');
+				append(c);
+			} else if (c < 0x20) {
+				append('\\');
+				switch (c) {
+				case '\n':
+					append('n');
+					break;
+				case '\r':
+					append('r');
+					break;
+				case '\t':
+					append('t');
+					break;
+				default:
+					append('u');
+					append('0');
+					append('0');
+					append(HEX[c >> 4]);
+					append(HEX[c & 0xF]);
+				}
+			} else {
+				append(c);
+			}
+		}
+		append('"');
+	}
+
+	private void appendNumber() {
+		int n = number.length();
+		ensure(n);
+		number.getChars(0, n, chars, length);
+		length += n;
+	}
+
+	private void append(char c) {
+		if (length == chars.length)
+			ensure(1);
+		chars[length++] = c;
+	}
+
+	private void ensure(int more) {
+		if (length + more > chars.length) {
+			char[] bigger = new char[Math.max(chars.length * 2, length + more)];
+			System.arraycopy(chars, 0, bigger, 0, length);
+			chars = bigger;
+		}
+	}
+
+	/**
+	 * 
+	 * @param out
+	 *                where the text goes
+	 * @return number of chars written
+	 * @throws IOException
+	 */
+	int writeTo(Appendable out) throws IOException {
+		out.append(CharBuffer.wrap(chars, 0, length));
+		return length;
+	}
+
+	/**
+	 * 
+	 * @param out
+	 *                where the UTF-8 text goes
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	int writeTo(OutputStream out) throws IOException {
+		int n = encode();
+		out.write(bytes, 0, n);
+		return n;
+	}
+
+	/**
+	 * 
+	 * @param out
+	 *                where the UTF-8 text goes
+	 * @return number of bytes written
+	 * @throws java.nio.BufferOverflowException
+	 *                                              if out has not enough room
+	 */
+	int writeTo(ByteBuffer out) {
+		int n = encode();
+		out.put(bytes, 0, n);
+		return n;
+	}
+
+	/**
+	 * UTF-8 encoding of the text into the byte buffer.
+	 * 
+	 * @return number of bytes
+	 */
+	private int encode() {
+		if (bytes.length < length * 3)
+			bytes = new byte[Math.max(bytes.length * 2, length * 3)];
+		int n = 0;
+		for (int i = 0; i < length; i++) {
+			char c = chars[i];
+			if (c < 0x80) {
+				bytes[n++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[n++] = (byte) (0xC0 | (c >> 6));
+				bytes[n++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+				int cp = Character.toCodePoint(c, chars[++i]);
+				bytes[n++] = (byte) (0xF0 | (cp >> 18));
+				bytes[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				bytes[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				bytes[n++] = (byte) (0x80 | (cp & 0x3F));
+			} else {
+				bytes[n++] = (byte) (0xE0 | (c >> 12));
+				bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[n++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return n;
+	}
+}
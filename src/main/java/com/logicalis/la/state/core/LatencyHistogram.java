@@ -0,0 +1,116 @@
+package com.logicalis.la.state.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of durations in nanoseconds (HDR style): each power of
+ * two is split in 8 linear sub-buckets, so any recorded value is reported with
+ * at most 12.5% error, from 1 ns up to Long.MAX_VALUE, in a fixed 4 KB of
+ * counters. Recording is a single atomic increment.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+	/**
+	 * 
+	 * @param nanos
+	 *                  duration to be recorded (negative values count as 0)
+	 */
+	public void record(long nanos) {
+		counts.incrementAndGet(index(Math.max(0L, nanos)));
+	}
+
+	/**
+	 * 
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		long n = 0L;
+		for (int i = 0; i < counts.length(); i++)
+			n += counts.get(i);
+		return n;
+	}
+
+	/**
+	 * 
+	 * @param percentile
+	 *                       between 0 and 100
+	 * @return upper bound (in nanoseconds) of the bucket holding the requested
+	 *         percentile, or 0 when nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[counts.length()];
+		long total = 0L;
+		for (int i = 0; i < snapshot.length; i++)
+			total += snapshot[i] = counts.get(i);
+		if (total == 0L)
+			return 0L;
+		long rank = Math.max(1L, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+		long seen = 0L;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return upperBound(i);
+		}
+		return upperBound(snapshot.length - 1);
+	}
+
+	/**
+	 * 
+	 * @return upper bound of the highest non-empty bucket (0 when empty)
+	 */
+	public long getMax() {
+		for (int i = counts.length() - 1; i >= 0; i--) {
+			if (counts.get(i) > 0)
+				return upperBound(i);
+		}
+		return 0L;
+	}
+
+	/**
+	 * 
+	 * @return a copy of this histogram
+	 */
+	public LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		for (int i = 0; i < counts.length(); i++)
+			copy.counts.set(i, counts.get(i));
+		return copy;
+	}
+
+	/**
+	 * Forgets every recorded value.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0L);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + " p50=" + getPercentile(50) + "ns p99=" + getPercentile(99) + "ns p99.9="
+				+ getPercentile(99.9) + "ns max=" + getMax() + "ns";
+	}
+
+	private static int index(long v) {
+		if (v < SUB_BUCKETS)
+			return (int) v;
+		int exponent = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = index % SUB_BUCKETS;
+		long lower = (1L << exponent) + (sub << (exponent - SUB_BITS));
+		long width = 1L << (exponent - SUB_BITS);
+		return lower + width - 1 < 0 ? Long.MAX_VALUE : lower + width - 1;
+	}
+}
@@ -0,0 +1,73 @@
+package com.logicalis.la.state.core;
+
+import java.util.AbstractList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable append-only list.
+ * <p>
+ * Versions created by {@link #append(Object)} share one backing array: the
+ * first version to claim the next free slot writes into it in place, any
+ * other version (an older one, or one that lost the claim) copies. Each
+ * version only reads up to its own size, so appending never changes what an
+ * existing version shows.
+ * </p>
+ *
+ * @param <E>
+ *                element type (should be immutable as well)
+ */
+final class PersistentList<E> extends AbstractList<E> {
+
+	@SuppressWarnings("rawtypes")
+	private static final PersistentList EMPTY = new PersistentList<>(new Object[0], 0, new AtomicInteger());
+
+	private final Object[] items;
+	private final int size;
+	// slots of items already written by any version sharing the array
+	private final AtomicInteger claimed;
+
+	private PersistentList(Object[] items, int size, AtomicInteger claimed) {
+		this.items = items;
+		this.size = size;
+		this.claimed = claimed;
+	}
+
+	/**
+	 * 
+	 * @return the empty list
+	 */
+	@SuppressWarnings("unchecked")
+	static <E> PersistentList<E> empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * 
+	 * @param e
+	 *              element to be appended
+	 * @return a new version of this list with e at its end
+	 */
+	PersistentList<E> append(E e) {
+		if (size < items.length && claimed.compareAndSet(size, size + 1)) {
+			items[size] = e;
+			return new PersistentList<>(items, size + 1, claimed);
+		}
+		Object[] copy = new Object[Math.max(8, size * 2)];
+		System.arraycopy(items, 0, copy, 0, size);
+		copy[size] = e;
+		return new PersistentList<>(copy, size + 1, new AtomicInteger(size + 1));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		return (E) items[index];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,263 @@
+package com.logicalis.la.state.core;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable sorted map (AVL tree) with String keys.
+ * <p>
+ * {@link #plus(String, Object)} and {@link #minus(String)} return a new map
+ * that shares every untouched node with this one, copying only the path from
+ * the root to the changed key (O(log n)). Any version can be handed out to
+ * readers without copying, since it never changes.
+ * </p>
+ *
+ * @param <V>
+ *                value type (should be immutable as well)
+ */
+final class PersistentSortedMap<V> extends AbstractMap<String, V> {
+
+	@SuppressWarnings("rawtypes")
+	private static final PersistentSortedMap EMPTY = new PersistentSortedMap<>(null);
+
+	private final Node<V> root;
+
+	private PersistentSortedMap(Node<V> root) {
+		this.root = root;
+	}
+
+	/**
+	 * 
+	 * @return the empty map
+	 */
+	@SuppressWarnings("unchecked")
+	static <V> PersistentSortedMap<V> empty() {
+		return EMPTY;
+	}
+
+	@Override
+	public V get(Object key) {
+		Node<V> n = find((String) key);
+		return n == null ? null : n.value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return find((String) key) != null;
+	}
+
+	@Override
+	public int size() {
+		return size(root);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	/**
+	 * 
+	 * @param key
+	 *                  entry key
+	 * @param value
+	 *                  entry value
+	 * @return a new version of this map with key mapped to value
+	 */
+	PersistentSortedMap<V> plus(String key, V value) {
+		Node<V> r = insert(root, key, value);
+		return r == root ? this : new PersistentSortedMap<>(r);
+	}
+
+	/**
+	 * 
+	 * @param key
+	 *                entry key
+	 * @return a new version of this map without key (or this map when key is
+	 *         absent)
+	 */
+	PersistentSortedMap<V> minus(String key) {
+		Node<V> r = delete(root, key);
+		return r == root ? this : (r == null ? empty() : new PersistentSortedMap<>(r));
+	}
+
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		return new AbstractSet<Map.Entry<String, V>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, V>> iterator() {
+				return new EntryIterator<>(root);
+			}
+
+			@Override
+			public int size() {
+				return PersistentSortedMap.this.size();
+			}
+		};
+	}
+
+	private Node<V> find(String key) {
+		Node<V> n = root;
+		while (n != null) {
+			int c = key.compareTo(n.key);
+			if (c == 0)
+				return n;
+			n = c < 0 ? n.left : n.right;
+		}
+		return null;
+	}
+
+	private static int size(Node<?> n) {
+		return n == null ? 0 : n.size;
+	}
+
+	private static int height(Node<?> n) {
+		return n == null ? 0 : n.height;
+	}
+
+	private static <V> Node<V> insert(Node<V> n, String key, V value) {
+		if (n == null)
+			return new Node<>(key, value, null, null);
+		int c = key.compareTo(n.key);
+		if (c == 0)
+			return n.value == value ? n : new Node<>(key, value, n.left, n.right);
+		if (c < 0) {
+			Node<V> l = insert(n.left, key, value);
+			return l == n.left ? n : balance(n.key, n.value, l, n.right);
+		}
+		Node<V> r = insert(n.right, key, value);
+		return r == n.right ? n : balance(n.key, n.value, n.left, r);
+	}
+
+	private static <V> Node<V> delete(Node<V> n, String key) {
+		if (n == null)
+			return null;
+		int c = key.compareTo(n.key);
+		if (c < 0) {
+			Node<V> l = delete(n.left, key);
+			return l == n.left ? n : balance(n.key, n.value, l, n.right);
+		}
+		if (c > 0) {
+			Node<V> r = delete(n.right, key);
+			return r == n.right ? n : balance(n.key, n.value, n.left, r);
+		}
+		if (n.left == null)
+			return n.right;
+		if (n.right == null)
+			return n.left;
+		// replace by the smallest node of the right subtree
+		Node<V> min = n.right;
+		while (min.left != null)
+			min = min.left;
+		return balance(min.key, min.value, n.left, delete(n.right, min.key));
+	}
+
+	private static <V> Node<V> balance(String key, V value, Node<V> l, Node<V> r) {
+		int hl = height(l);
+		int hr = height(r);
+		if (hl > hr + 1) {
+			if (height(l.left) >= height(l.right))
+				return new Node<>(l.key, l.value, l.left, new Node<>(key, value, l.right, r));
+			return new Node<>(l.right.key, l.right.value, new Node<>(l.key, l.value, l.left, l.right.left),
+					new Node<>(key, value, l.right.right, r));
+		}
+		if (hr > hl + 1) {
+			if (height(r.right) >= height(r.left))
+				return new Node<>(r.key, r.value, new Node<>(key, value, l, r.left), r.right);
+			return new Node<>(r.left.key, r.left.value, new Node<>(key, value, l, r.left.left),
+					new Node<>(r.key, r.value, r.left.right, r.right));
+		}
+		return new Node<>(key, value, l, r);
+	}
+
+	private static final class Node<V> implements Map.Entry<String, V> {
+		final String key;
+		final V value;
+		final Node<V> left;
+		final Node<V> right;
+		final int height;
+		final int size;
+
+		Node(String key, V value, Node<V> left, Node<V> right) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			this.height = Math.max(height(left), height(right)) + 1;
+			this.size = size(left) + size(right) + 1;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public V getValue() {
+			return value;
+		}
+
+		@Override
+		public V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return key.equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * In-order iterator.
+	 */
+	private static final class EntryIterator<V> implements Iterator<Map.Entry<String, V>> {
+
+		private final Deque<Node<V>> stack = new ArrayDeque<>();
+
+		EntryIterator(Node<V> root) {
+			push(root);
+		}
+
+		private void push(Node<V> n) {
+			while (n != null) {
+				stack.push(n);
+				n = n.left;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !stack.isEmpty();
+		}
+
+		@Override
+		public Map.Entry<String, V> next() {
+			if (stack.isEmpty())
+				throw new NoSuchElementException();
+			Node<V> n = stack.pop();
+			push(n.right);
+			return n;
+		}
+	}
+}
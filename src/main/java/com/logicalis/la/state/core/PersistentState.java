@@ -0,0 +1,434 @@
+package com.logicalis.la.state.core;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * State kept as an immutable {@link PersistentSortedMap}, used by
+ * {@link StateStore.Backend#PERSISTENT} stores.
+ * <p>
+ * Writers build a new version by path copying and publish it with a CAS on the
+ * current root, so they never wait on a lock. Sets and lists are stored as
+ * persistent collections tagged with the drain epoch they belong to:
+ * {@link #getState()} just publishes a root with the next epoch (making every
+ * collection look empty) and hands out the previous root as the snapshot,
+ * without copying any entry.
+ * </p>
+ */
+final class PersistentState {
+
+	private final AtomicReference<Root> root = new AtomicReference<>(
+			new Root(PersistentSortedMap.empty(), 0L, 0L, 0L, 0));
+
+	/**
+	 * Sets a String, Long, Double or Map entry. Maps are deep copied (and made
+	 * unmodifiable) once, here, since snapshots share values with the live
+	 * state.
+	 * 
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  value of state entry
+	 */
+	void put(String name, Object value) {
+		value = immutable(value);
+		Root r;
+		do {
+			r = root.get();
+		} while (!root.compareAndSet(r, r.with(name, value, true)));
+	}
+
+	private static Object immutable(Object value) {
+		if (value instanceof Map) {
+			try {
+				return Collections.unmodifiableMap(DeepCopier.clone((Map<?, ?>) value));
+			} catch (InvalidDataTypeException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * 
+	 * @param event
+	 *                    name of entries set
+	 * @param message
+	 *                    message to be added to state entry
+	 */
+	void addToSet(String event, String message) {
+		Root r;
+		do {
+			r = root.get();
+		} while (!root.compareAndSet(r, addToSet(r, event, message, true)));
+	}
+
+	/**
+	 * 
+	 * @param event
+	 *                    name of entries list
+	 * @param message
+	 *                    message to be appended to state entry
+	 */
+	void addToList(String event, String message) {
+		Root r;
+		do {
+			r = root.get();
+		} while (!root.compareAndSet(r, addToList(r, event, message, true)));
+	}
+
+	/**
+	 * 
+	 * @param name
+	 *                 entry key to be removed.
+	 */
+	void remove(String name) {
+		Root r;
+		Root next;
+		do {
+			r = root.get();
+			next = remove(r, name);
+			if (next == r)
+				return;
+		} while (!root.compareAndSet(r, next));
+	}
+
+	/**
+	 * Applies the writes of a batch with one CAS (all of them again, on the
+	 * new root, when another writer got there first). Counts as one update.
+	 * 
+	 * @param batch
+	 *                  writes, without paths
+	 */
+	void apply(StateBatch batch) {
+		// values are boxed and maps copied once, outside the CAS loop
+		Object[] values = new Object[batch.size];
+		for (int i = 0; i < batch.size; i++) {
+			switch (batch.ops[i]) {
+			case StateBatch.SET_DOUBLE:
+				values[i] = Double.valueOf(Double.longBitsToDouble(batch.numbers[i]));
+				break;
+			case StateBatch.SET_LONG:
+				values[i] = Long.valueOf(batch.numbers[i]);
+				break;
+			default:
+				values[i] = immutable(batch.objects[i]);
+			}
+		}
+		Root r;
+		Root next;
+		do {
+			r = root.get();
+			next = r;
+			for (int i = 0; i < batch.size; i++) {
+				String name = (String) batch.targets[i];
+				switch (batch.ops[i]) {
+				case StateBatch.ADD_TO_SET:
+					next = addToSet(next, name, (String) values[i], false);
+					break;
+				case StateBatch.ADD_TO_LIST:
+					next = addToList(next, name, (String) values[i], false);
+					break;
+				case StateBatch.REMOVE:
+					next = remove(next, name);
+					break;
+				default:
+					next = next.with(name, values[i], false);
+				}
+			}
+		} while (!root.compareAndSet(r, next.counted()));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Root addToSet(Root r, String event, String message, boolean counted) {
+		Object current = r.value(event);
+		PersistentSortedMap<Boolean> set = PersistentSortedMap.empty();
+		if (current instanceof Events) {
+			Events events = (Events) current;
+			if (events.epoch == r.epoch && events.items instanceof PersistentSortedMap)
+				set = (PersistentSortedMap<Boolean>) events.items;
+		}
+		if (set.containsKey(message))
+			// nothing new, only counts as an update
+			return counted ? r.counted() : r;
+		return r.with(event, new Events(r.epoch, set.plus(message, Boolean.TRUE)), counted);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Root addToList(Root r, String event, String message, boolean counted) {
+		Object current = r.value(event);
+		PersistentList<String> list = PersistentList.empty();
+		if (current instanceof Events) {
+			Events events = (Events) current;
+			if (events.epoch == r.epoch && events.items instanceof PersistentList)
+				list = (PersistentList<String>) events.items;
+		}
+		// append only if last element differs
+		if (!list.isEmpty() && list.get(list.size() - 1).equals(message))
+			return counted ? r.counted() : r;
+		return r.with(event, new Events(r.epoch, list.append(message)), counted);
+	}
+
+	private static Root remove(Root r, String name) {
+		Item item = r.tree.get(name);
+		if (item == null || item.value == null)
+			return r;
+		return r.with(name, null, false);
+	}
+
+	/**
+	 * 
+	 * @return current version of the state
+	 */
+	long getVersion() {
+		return root.get().version;
+	}
+
+	/**
+	 * Starts a new drain epoch and returns the previous version.
+	 * 
+	 * @return an immutable view of the state, sharing all entries with the live
+	 *         state
+	 */
+	Map<String, Object> getState() {
+		Root r = drain();
+		PersistentSortedMap<Item> tree = r.tree.plus("_updates", new Item(Long.valueOf(r.updates), r.version));
+		return new StateView(tree, r.epoch, tree.size() - r.removed);
+	}
+
+	/**
+	 * 
+	 * @param name
+	 *                 name of entry
+	 * @return current value of the entry (events of the current epoch for sets
+	 *         and lists), without starting a new epoch
+	 */
+	Object peek(String name) {
+		Root r = root.get();
+		Item item = r.tree.get(name);
+		if (item == null)
+			return null;
+		return item.value instanceof Events ? ((Events) item.value).view(r.epoch) : item.value;
+	}
+
+	/**
+	 * 
+	 * @return an immutable view of the current version, without starting a new
+	 *         epoch
+	 */
+	Map<String, Object> readState() {
+		Root r = root.get();
+		return new StateView(r.tree, r.epoch, r.tree.size() - r.removed);
+	}
+
+	/**
+	 * Starts a new drain epoch and copies references to entries changed after a
+	 * given version (values themselves are immutable and shared).
+	 * 
+	 * @param since
+	 *                  version returned by the previous call
+	 * @return changed entries, removed entry names and the new version
+	 */
+	@SuppressWarnings("rawtypes")
+	StateChanges getChangesSince(long since) {
+		Root r = drain();
+		Map<String, Object> changed = new TreeMap<>();
+		Set<String> removed = new TreeSet<>();
+		for (Map.Entry<String, Item> e : r.tree.entrySet()) {
+			Item item = e.getValue();
+			if (item.version <= since)
+				continue;
+			if (item.value == null) {
+				removed.add(e.getKey());
+				continue;
+			}
+			Object value = item.value instanceof Events ? ((Events) item.value).view(r.epoch) : item.value;
+			if (!(value instanceof Collection) || !((Collection) value).isEmpty())
+				changed.put(e.getKey(), value);
+		}
+		changed.put("_updates", Long.valueOf(r.updates));
+		return new StateChanges(r.version, changed, removed);
+	}
+
+	private Root drain() {
+		Root r;
+		do {
+			r = root.get();
+		} while (!root.compareAndSet(r, new Root(r.tree, r.epoch + 1, 0L, r.version, r.removed)));
+		return r;
+	}
+
+	/**
+	 * One published version of the state.
+	 */
+	private static final class Root {
+		final PersistentSortedMap<Item> tree;
+		// sets and lists of older epochs were already drained
+		final long epoch;
+		final long updates;
+		final long version;
+		// tombstones in tree
+		final int removed;
+
+		Root(PersistentSortedMap<Item> tree, long epoch, long updates, long version, int removed) {
+			this.tree = tree;
+			this.epoch = epoch;
+			this.updates = updates;
+			this.version = version;
+			this.removed = removed;
+		}
+
+		Object value(String name) {
+			Item item = tree.get(name);
+			return item == null ? null : item.value;
+		}
+
+		/**
+		 * 
+		 * @param name
+		 *                    entry name
+		 * @param value
+		 *                    new value (null to remove)
+		 * @param counted
+		 *                    whether it counts as an update
+		 * @return the next root
+		 */
+		Root with(String name, Object value, boolean counted) {
+			Item previous = tree.get(name);
+			int tombstones = removed;
+			if (previous != null && previous.value == null)
+				tombstones--;
+			if (value == null)
+				tombstones++;
+			return new Root(tree.plus(name, new Item(value, version + 1)), epoch, counted ? updates + 1 : updates,
+					version + 1, tombstones);
+		}
+
+		Root counted() {
+			return new Root(tree, epoch, updates + 1, version, removed);
+		}
+	}
+
+	/**
+	 * A value (null for a removed entry) and the version that wrote it.
+	 */
+	private static final class Item {
+		final Object value;
+		final long version;
+
+		Item(Object value, long version) {
+			this.value = value;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * A set (PersistentSortedMap keys) or list (PersistentList) of events
+	 * accumulated during one epoch.
+	 */
+	private static final class Events {
+		final long epoch;
+		final Object items;
+
+		Events(long epoch, Object items) {
+			this.epoch = epoch;
+			this.items = items;
+		}
+
+		Object view(long epoch) {
+			if (items instanceof PersistentSortedMap)
+				return this.epoch == epoch ? ((PersistentSortedMap<?>) items).keySet() : Collections.emptySet();
+			return this.epoch == epoch ? items : Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Read-only map over one version, showing the events of its epoch only and
+	 * hiding removed entries.
+	 */
+	private static final class StateView extends AbstractMap<String, Object> {
+
+		private final PersistentSortedMap<Item> tree;
+		private final long epoch;
+		private final int size;
+
+		StateView(PersistentSortedMap<Item> tree, long epoch, int size) {
+			this.tree = tree;
+			this.epoch = epoch;
+			this.size = size;
+		}
+
+		@Override
+		public Object get(Object key) {
+			Item item = tree.get(key);
+			if (item == null)
+				return null;
+			return item.value instanceof Events ? ((Events) item.value).view(epoch) : item.value;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			Item item = tree.get(key);
+			return item != null && item.value != null;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					Iterator<Map.Entry<String, Item>> it = tree.entrySet().iterator();
+					return new Iterator<Map.Entry<String, Object>>() {
+
+						private Map.Entry<String, Object> next = advance();
+
+						private Map.Entry<String, Object> advance() {
+							while (it.hasNext()) {
+								Map.Entry<String, Item> e = it.next();
+								Object value = e.getValue().value;
+								if (value != null)
+									return new SimpleImmutableEntry<>(e.getKey(),
+											value instanceof Events ? ((Events) value).view(epoch) : value);
+							}
+							return null;
+						}
+
+						@Override
+						public boolean hasNext() {
+							return next != null;
+						}
+
+						@Override
+						public Map.Entry<String, Object> next() {
+							if (next == null)
+								throw new NoSuchElementException();
+							Map.Entry<String, Object> e = next;
+							next = advance();
+							return e;
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+	}
+}
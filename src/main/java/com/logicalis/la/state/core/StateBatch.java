@@ -0,0 +1,266 @@
+package com.logicalis.la.state.core;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Operations recorded by {@link StateStore#update(java.util.function.Consumer)}
+ * and then applied together, atomically, as one update.
+ * <p>
+ * Recording does not touch the store: the operations are applied in order,
+ * once the consumer returns, holding the store's monitor(s) once (or with one
+ * CAS on the {@link StateStore.Backend#PERSISTENT} backend). A batch is only
+ * valid inside the consumer it was given to.
+ * </p>
+ */
+public final class StateBatch {
+
+	static final byte SET_DOUBLE = 0;
+	static final byte SET_LONG = 1;
+	static final byte SET_OBJECT = 2;
+	static final byte ADD_TO_SET = 3;
+	static final byte ADD_TO_LIST = 4;
+	static final byte REMOVE = 5;
+
+	// operation, target (entry name or path), number (long or raw double bits)
+	// and object (String, Map or message) of each recorded operation
+	byte[] ops = new byte[8];
+	Object[] targets = new Object[8];
+	long[] numbers = new long[8];
+	Object[] objects = new Object[8];
+	int size;
+
+	// whether any target is a path
+	boolean paths;
+
+	// scratch space for the stripes to lock (concurrent backend)
+	int[] stripes = new int[8];
+
+	// a batch is reused by its thread, unless recording (nested updates)
+	boolean recording;
+
+	StateBatch() {
+	}
+
+	/**
+	 * Sets a 'floating point' value (see {@link StateStore#set(String, double)}).
+	 *
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  value of state entry
+	 * @return this batch
+	 */
+	public StateBatch set(String name, double value) {
+		return add(SET_DOUBLE, name, Double.doubleToRawLongBits(value), null);
+	}
+
+	/**
+	 * Sets a 'integer' value (see {@link StateStore#set(String, long)}).
+	 *
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  value of state entry
+	 * @return this batch
+	 */
+	public StateBatch set(String name, long value) {
+		return add(SET_LONG, name, value, null);
+	}
+
+	/**
+	 * Sets a 'string' value (see {@link StateStore#set(String, String)}).
+	 *
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  value of state entry
+	 * @return this batch
+	 */
+	public StateBatch set(String name, String value) {
+		return add(SET_OBJECT, name, 0L, value);
+	}
+
+	/**
+	 * Sets a 'map' value (see {@link StateStore#set(String, Map)}).
+	 *
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  map of state entry
+	 * @return this batch
+	 */
+	public StateBatch set(String name, Map<String, ?> value) {
+		return add(SET_OBJECT, name, 0L, value);
+	}
+
+	/**
+	 * Adds a message to a set (see {@link StateStore#addToSet(String, String)}).
+	 *
+	 * @param event
+	 *                    name of entries set
+	 * @param message
+	 *                    message to be added
+	 * @return this batch
+	 */
+	public StateBatch addToSet(String event, String message) {
+		return add(ADD_TO_SET, event, 0L, message);
+	}
+
+	/**
+	 * Adds a message to a list (see
+	 * {@link StateStore#addToList(String, String)}).
+	 *
+	 * @param event
+	 *                    name of entries list
+	 * @param message
+	 *                    message to be appended
+	 * @return this batch
+	 */
+	public StateBatch addToList(String event, String message) {
+		return add(ADD_TO_LIST, event, 0L, message);
+	}
+
+	/**
+	 * Removes an entry (see {@link StateStore#remove(String)}).
+	 *
+	 * @param name
+	 *                 entry key to be removed
+	 * @return this batch
+	 */
+	public StateBatch remove(String name) {
+		return add(REMOVE, name, 0L, null);
+	}
+
+	/**
+	 * Sets a 'floating point' value inside a map entry (see
+	 * {@link StateStore#set(String[], double)}).
+	 *
+	 * @param path
+	 *                  entry name followed by nested map keys
+	 * @param value
+	 *                  value of the innermost key
+	 * @return this batch
+	 */
+	public StateBatch set(String[] path, double value) {
+		return add(SET_DOUBLE, target(path), Double.doubleToRawLongBits(value), null);
+	}
+
+	/**
+	 * Sets a 'integer' value inside a map entry (see
+	 * {@link StateStore#set(String[], long)}).
+	 *
+	 * @param path
+	 *                  entry name followed by nested map keys
+	 * @param value
+	 *                  value of the innermost key
+	 * @return this batch
+	 */
+	public StateBatch set(String[] path, long value) {
+		return add(SET_LONG, target(path), value, null);
+	}
+
+	/**
+	 * Sets a 'string' value inside a map entry (see
+	 * {@link StateStore#set(String[], String)}).
+	 *
+	 * @param path
+	 *                  entry name followed by nested map keys
+	 * @param value
+	 *                  value of the innermost key
+	 * @return this batch
+	 */
+	public StateBatch set(String[] path, String value) {
+		return add(SET_OBJECT, target(path), 0L, value);
+	}
+
+	/**
+	 * Adds a message to a set inside a map entry (see
+	 * {@link StateStore#addToSet(String[], String)}).
+	 *
+	 * @param path
+	 *                    entry name followed by nested map keys
+	 * @param message
+	 *                    message to be added
+	 * @return this batch
+	 */
+	public StateBatch addToSet(String[] path, String message) {
+		return add(ADD_TO_SET, target(path), 0L, message);
+	}
+
+	/**
+	 * Adds a message to a list inside a map entry (see
+	 * {@link StateStore#addToList(String[], String)}).
+	 *
+	 * @param path
+	 *                    entry name followed by nested map keys
+	 * @param message
+	 *                    message to be appended
+	 * @return this batch
+	 */
+	public StateBatch addToList(String[] path, String message) {
+		return add(ADD_TO_LIST, target(path), 0L, message);
+	}
+
+	/**
+	 * Removes a key from a map entry (see {@link StateStore#remove(String[])}).
+	 *
+	 * @param path
+	 *                 entry name followed by nested map keys
+	 * @return this batch
+	 */
+	public StateBatch remove(String[] path) {
+		return add(REMOVE, target(path), 0L, null);
+	}
+
+	/**
+	 *
+	 * @return number of operations recorded
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return entry name of an operation
+	 */
+	String name(int i) {
+		Object target = targets[i];
+		return target instanceof String ? (String) target : ((String[]) target)[0];
+	}
+
+	void clear() {
+		Arrays.fill(targets, 0, size, null);
+		Arrays.fill(objects, 0, size, null);
+		size = 0;
+		paths = false;
+	}
+
+	private Object target(String[] path) {
+		if (path.length == 0)
+			throw new IllegalArgumentException("empty path");
+		if (path.length == 1)
+			return path[0];
+		paths = true;
+		return path;
+	}
+
+	private StateBatch add(byte op, Object target, long number, Object object) {
+		if (target == null)
+			throw new NullPointerException("name");
+		if (size == ops.length) {
+			int capacity = size * 2;
+			ops = Arrays.copyOf(ops, capacity);
+			targets = Arrays.copyOf(targets, capacity);
+			numbers = Arrays.copyOf(numbers, capacity);
+			objects = Arrays.copyOf(objects, capacity);
+		}
+		ops[size] = op;
+		targets[size] = target;
+		numbers[size] = number;
+		objects[size] = object;
+		size++;
+		return this;
+	}
+}
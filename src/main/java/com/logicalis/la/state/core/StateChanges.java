@@ -0,0 +1,66 @@
+package com.logicalis.la.state.core;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Result of {@link StateStore#getChangesSince(long)}: entries written and
+ * entries removed after a given version.
+ */
+public class StateChanges {
+
+	private final long version;
+	private final Map<String, Object> changed;
+	private final Set<String> removed;
+	private final boolean full;
+
+	StateChanges(long version, Map<String, Object> changed, Set<String> removed) {
+		this(version, changed, removed, false);
+	}
+
+	StateChanges(long version, Map<String, Object> changed, Set<String> removed, boolean full) {
+		this.version = version;
+		this.changed = changed;
+		this.removed = removed;
+		this.full = full;
+	}
+
+	/**
+	 * 
+	 * @return store version covered by these changes (to be passed to the next
+	 *         {@link StateStore#getChangesSince(long)} call)
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Entries written after the requested version (plus the "_updates"
+	 * counter). Sets and lists only show up when they received events, and hold
+	 * only those events.
+	 * 
+	 * @return a copy of changed entries, ordered by name
+	 */
+	public Map<String, Object> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * 
+	 * @return names of entries removed after the requested version
+	 */
+	public Set<String> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * 
+	 * @return true when the requested version was too old to tell what was
+	 *         removed since: the changed entries are then the whole state, to
+	 *         replace (not update) the caller's copy, and nothing is reported
+	 *         as removed
+	 */
+	public boolean isFull() {
+		return full;
+	}
+}
@@ -0,0 +1,137 @@
+package com.logicalis.la.state.core;
+
+import static com.logicalis.la.state.core.BinaryFormat.getString;
+import static com.logicalis.la.state.core.BinaryFormat.getVarint;
+import static com.logicalis.la.state.core.BinaryFormat.getZigzag;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decoder for messages written by {@link StateEncoder}. Keeps the key
+ * dictionary of the stream, so it must be given every message, in order.
+ * <p>
+ * The root map is a {@link TreeMap} (as returned by
+ * {@link StateStore#getState()}); nested maps, sets and lists are
+ * {@link HashMap}, {@link HashSet} and {@link ArrayList}. Not thread safe.
+ * </p>
+ */
+public final class StateDecoder {
+
+	private final List<String> keys = new ArrayList<>();
+
+	/**
+	 * Decodes one message, from the buffer's position.
+	 *
+	 * @param in
+	 *               source buffer, positioned after the message on return
+	 * @return state snapshot
+	 * @throws InvalidDataTypeException
+	 *                                      when the message is malformed or
+	 *                                      refers to unknown keys
+	 */
+	public Map<String, Object> decode(ByteBuffer in) throws InvalidDataTypeException {
+		try {
+			int header = in.get() & 0xFF;
+			if ((header & ~StateEncoder.RESET) != StateEncoder.VERSION)
+				throw new InvalidDataTypeException("Unsupported version: " + (header & ~StateEncoder.RESET));
+			if ((header & StateEncoder.RESET) != 0)
+				keys.clear();
+			return getMap(in, new TreeMap<>());
+		} catch (BufferUnderflowException e) {
+			throw new InvalidDataTypeException("Truncated message", e);
+		}
+	}
+
+	/**
+	 * @return number of keys in the dictionary
+	 */
+	public int getKeys() {
+		return keys.size();
+	}
+
+	private Map<String, Object> getMap(ByteBuffer in, Map<String, Object> map) throws InvalidDataTypeException {
+		int size = size(in);
+		for (int i = 0; i < size; i++) {
+			String key = getKey(in);
+			map.put(key, getValue(in));
+		}
+		return map;
+	}
+
+	private String getKey(ByteBuffer in) throws InvalidDataTypeException {
+		long ref = getVarint(in);
+		if (ref == StateEncoder.NEW_KEY) {
+			String key = string(in);
+			keys.add(key);
+			return key;
+		}
+		if (ref == StateEncoder.LITERAL_KEY)
+			return string(in);
+		// varints above Long.MAX_VALUE read as negative
+		if (ref < StateEncoder.KEY_ID || ref - StateEncoder.KEY_ID >= keys.size())
+			throw new InvalidDataTypeException("Unknown key id: " + (ref - StateEncoder.KEY_ID));
+		return keys.get((int) (ref - StateEncoder.KEY_ID));
+	}
+
+	private <C extends Collection<Object>> C getCollection(ByteBuffer in, C values, int size)
+			throws InvalidDataTypeException {
+		for (int i = 0; i < size; i++)
+			values.add(getValue(in));
+		return values;
+	}
+
+	private Object getValue(ByteBuffer in) throws InvalidDataTypeException {
+		byte tag = in.get();
+		switch (tag) {
+		case StateEncoder.STRING:
+			return string(in);
+		case StateEncoder.DOUBLE:
+			return in.getDouble();
+		case StateEncoder.LONG:
+			return getZigzag(in);
+		case StateEncoder.MAP:
+			return getMap(in, new HashMap<>());
+		case StateEncoder.LIST: {
+			int size = size(in);
+			return getCollection(in, new ArrayList<>(size), size);
+		}
+		case StateEncoder.SET: {
+			int size = size(in);
+			return getCollection(in, new HashSet<>(Math.max(16, (int) (size / .75f) + 1)), size);
+		}
+		default:
+			throw new InvalidDataTypeException("Unknown value tag: " + tag);
+		}
+	}
+
+	/**
+	 * Reads a collection size, rejecting sizes that cannot fit in the rest of
+	 * the buffer (every element takes at least one byte) before anything is
+	 * allocated for them.
+	 */
+	private static int size(ByteBuffer in) throws InvalidDataTypeException {
+		long size = getVarint(in);
+		if (size < 0L || size > in.remaining())
+			throw new InvalidDataTypeException("Invalid size: " + size);
+		return (int) size;
+	}
+
+	/**
+	 * Reads a String, rejecting lengths that are negative or go past the end
+	 * of the buffer.
+	 */
+	private static String string(ByteBuffer in) throws InvalidDataTypeException {
+		long length = getVarint(in);
+		if (length < 0L || length > in.remaining())
+			throw new InvalidDataTypeException("Invalid string length: " + length);
+		return getString(in, (int) length);
+	}
+}
@@ -0,0 +1,176 @@
+package com.logicalis.la.state.core;
+
+import static com.logicalis.la.state.core.BinaryFormat.putString;
+import static com.logicalis.la.state.core.BinaryFormat.putVarint;
+import static com.logicalis.la.state.core.BinaryFormat.putZigzag;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary encoder for state snapshots (the value model accepted by
+ * {@link DeepCopier#clone(Object)}: String, Long, Double, Map, Set and List),
+ * an alternative to JSON for publishing state.
+ * <p>
+ * A message is a header byte followed by the root map. Every value is a tag
+ * byte followed by its payload: varint length prefixed UTF-8 strings, zigzag
+ * varint longs, raw IEEE 754 doubles (8 bytes, big endian) and varint length
+ * prefixed maps, sets and lists. Map keys are written once and then referred
+ * to by a varint id: the key dictionary lives as long as the encoder, so a
+ * stream of snapshots of the same shape carries key names only in its first
+ * message. The matching {@link StateDecoder} must see every message, in order;
+ * call {@link #reset()} before sending to a new (or lost) decoder.
+ * </p>
+ * <p>
+ * Not thread safe: use one encoder per stream.
+ * </p>
+ */
+public final class StateEncoder {
+
+	static final int VERSION = 1;
+	static final int RESET = 0x80;
+
+	static final byte STRING = 1;
+	static final byte LONG = 2;
+	static final byte DOUBLE = 3;
+	static final byte MAP = 4;
+	static final byte LIST = 5;
+	static final byte SET = 6;
+
+	// key references: a new dictionary key, a key that is not kept, or 2 + id
+	static final int NEW_KEY = 0;
+	static final int LITERAL_KEY = 1;
+	static final int KEY_ID = 2;
+
+	public static final int DEFAULT_MAX_KEYS = 4096;
+
+	private final int maxKeys;
+	private final Map<String, Integer> keys = new HashMap<>();
+	// keys defined by the message being encoded (undone when it fails)
+	private final List<String> added = new ArrayList<>();
+	private boolean reset = true;
+
+	public StateEncoder() {
+		this(DEFAULT_MAX_KEYS);
+	}
+
+	/**
+	 * @param maxKeys
+	 *                    dictionary size: further keys are written in full
+	 *                    every time (bounds memory on both sides when keys are
+	 *                    not a fixed set)
+	 */
+	public StateEncoder(int maxKeys) {
+		if (maxKeys < 0)
+			throw new IllegalArgumentException("maxKeys must not be negative");
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * Encodes a state snapshot at the buffer's position. On failure (including
+	 * {@link java.nio.BufferOverflowException} when the buffer is too small)
+	 * neither the buffer position nor the dictionary change, so the same
+	 * snapshot can be encoded again into a larger buffer.
+	 *
+	 * @param state
+	 *                  snapshot, as returned by {@link StateStore#getState()}
+	 * @param out
+	 *                  destination buffer
+	 * @return number of bytes written
+	 * @throws InvalidDataTypeException
+	 *                                      when a value is not one of the
+	 *                                      supported types
+	 */
+	public int encode(Map<String, ?> state, ByteBuffer out) throws InvalidDataTypeException {
+		int start = out.position();
+		try {
+			if (reset)
+				keys.clear();
+			out.put((byte) (reset ? VERSION | RESET : VERSION));
+			putMap(out, state);
+		} catch (RuntimeException | InvalidDataTypeException e) {
+			for (String key : added)
+				keys.remove(key);
+			added.clear();
+			out.position(start);
+			throw e;
+		}
+		added.clear();
+		reset = false;
+		return out.position() - start;
+	}
+
+	/**
+	 * Clears the dictionary: the next message carries all its key names and
+	 * tells the decoder to drop its own dictionary.
+	 */
+	public void reset() {
+		reset = true;
+	}
+
+	/**
+	 * @return number of keys in the dictionary
+	 */
+	public int getKeys() {
+		return keys.size();
+	}
+
+	private void putMap(ByteBuffer out, Map<?, ?> map) throws InvalidDataTypeException {
+		putVarint(out, map.size());
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+			putKey(out, String.valueOf(e.getKey()));
+			putValue(out, e.getValue());
+		}
+	}
+
+	private void putKey(ByteBuffer out, String key) {
+		Integer id = keys.get(key);
+		if (id != null) {
+			putVarint(out, KEY_ID + id);
+		} else if (keys.size() < maxKeys) {
+			keys.put(key, keys.size());
+			added.add(key);
+			putVarint(out, NEW_KEY);
+			putString(out, key);
+		} else {
+			putVarint(out, LITERAL_KEY);
+			putString(out, key);
+		}
+	}
+
+	private void putCollection(ByteBuffer out, Collection<?> values) throws InvalidDataTypeException {
+		putVarint(out, values.size());
+		for (Object value : values)
+			putValue(out, value);
+	}
+
+	private void putValue(ByteBuffer out, Object value) throws InvalidDataTypeException {
+		if (value instanceof String) {
+			out.put(STRING);
+			putString(out, (String) value);
+		} else if (value instanceof Double) {
+			out.put(DOUBLE);
+			out.putDouble((Double) value);
+		} else if (value instanceof Long) {
+			out.put(LONG);
+			putZigzag(out, (Long) value);
+		} else if (value instanceof Map) {
+			out.put(MAP);
+			putMap(out, (Map<?, ?>) value);
+		} else if (value instanceof List) {
+			out.put(LIST);
+			putCollection(out, (List<?>) value);
+		} else if (value instanceof Set) {
+			out.put(SET);
+			putCollection(out, (Set<?>) value);
+		} else {
+			throw new InvalidDataTypeException(
+					"Unsupported type: " + (value == null ? "null" : value.getClass().getName()));
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package com.logicalis.la.state.core;
+
+/**
+ * One named entry of a {@link StateStore} (synchronized and concurrent
+ * backends). Always written under the monitor protecting its name; kind and
+ * value are also guarded by a sequence lock, so that {@link #peek()} can read
+ * them without that monitor. The fields are plain, so that primitive writes
+ * stay cheap: explicit fences keep the writes of the value between the two
+ * writes of the sequence, and the reads of {@link #peek()} between its two
+ * reads of the sequence.
+ */
+final class StateEntry {
+
+	// kinds of entry
+	static final byte OBJECT = 0;
+	static final byte DOUBLE = 1;
+	static final byte LONG = 2;
+
+	// returned by peek() for values to be copied under the monitor
+	static final Object MUTABLE = new Object();
+
+	final String name;
+
+	// where the value is kept
+	byte kind = OBJECT;
+
+	// String, Map, HashSet or ArrayList (OBJECT kind); null once removed
+	Object value;
+
+	// value is a map written through paths, owned by the store and updated in
+	// place
+	boolean tree;
+
+	// DOUBLE and LONG kinds are updated in place, boxed only when copied
+	double doubleValue;
+	long longValue;
+
+	// odd while kind, value, doubleValue or longValue are being changed
+	long seq;
+
+	// store version of the last write (or removal) of this entry
+	long version;
+
+	// kept when removed: a registered key holds it
+	boolean pinned;
+
+	// writes ever, since the last drain, and during the previous drain interval
+	long writes;
+	int intervalWrites;
+	int lastIntervalWrites;
+
+	// how numeric writes are combined between two drains
+	StateStore.Reducer reducer = StateStore.Reducer.LAST;
+	double alpha;
+
+	// aggregate of the numeric samples of this interval (running average for
+	// EWMA) and how many samples it holds (ever, for EWMA)
+	double aggregate;
+	long samples;
+
+	// value emitted by MIN, MAX and MEAN while no sample arrives
+	double held;
+
+	// UTF-8 name and its id in the current journal segment
+	byte[] journalName;
+	int journalId;
+	long journalSegment;
+
+	// shared memory mirror and offset of the entry's slot (registered entries),
+	// the slot's sequence (kept here, so that writers do not read it back) and
+	// the size of the set or list the slot holds the most recent events of
+	StateMirror mirror;
+	int mirrorSlot;
+	long mirrorSeq;
+	int mirrorSize;
+
+	// last numeric samples (null when not kept), and those of leaves of the
+	// map written through paths (null when none keeps them)
+	HistoryRing history;
+	String[][] historyPaths;
+	HistoryRing[] leafHistories;
+
+	// maximum number of events of a set or list (0 for no limit)
+	int capacity;
+	StateStore.Overflow overflow;
+
+	// time to live in nanoseconds (0 for none), when the value expires and
+	// its timer (null when not in the expiry wheel)
+	long ttl;
+	long deadline;
+	ExpiryWheel.Timer timer;
+
+	StateEntry(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * 
+	 * @return true when the entry was removed (kept as a tombstone for
+	 *         {@link StateStore#getChangesSince(long)})
+	 */
+	boolean isRemoved() {
+		return kind == OBJECT && value == null;
+	}
+
+	void counted() {
+		writes++;
+		intervalWrites++;
+	}
+
+	void setObject(Object value) {
+		long s = begin();
+		this.kind = OBJECT;
+		this.value = value;
+		end(s);
+		this.tree = false;
+		// anything but a number restarts the aggregation
+		samples = 0L;
+		aggregate = 0.0;
+	}
+
+	void setDouble(double value) {
+		long s = begin();
+		this.kind = DOUBLE;
+		this.value = null;
+		this.doubleValue = value;
+		end(s);
+		this.tree = false;
+		if (reducer != StateStore.Reducer.LAST)
+			sample(value);
+	}
+
+	void setLong(long value) {
+		long s = begin();
+		this.kind = LONG;
+		this.value = null;
+		this.longValue = value;
+		end(s);
+		this.tree = false;
+		if (reducer != StateStore.Reducer.LAST)
+			sample(value);
+	}
+
+	private long begin() {
+		long s = seq;
+		seq = s + 1L;
+		StateMirror.storeFence();
+		return s;
+	}
+
+	private void end(long s) {
+		StateMirror.storeFence();
+		seq = s + 2L;
+	}
+
+	/**
+	 * Reads the value without the monitor of the entry, retrying while a
+	 * writer changes it. Maps, sets and lists are mutable, so they are not
+	 * read this way.
+	 * 
+	 * @return the value (boxing primitive kinds), null when removed, or
+	 *         {@link #MUTABLE} for a map, set or list
+	 */
+	Object peek() {
+		for (int spins = 0;; spins++) {
+			long before = seq;
+			if ((before & 1L) == 0L) {
+				StateMirror.loadFence();
+				byte k = kind;
+				Object v = value;
+				double d = doubleValue;
+				long l = longValue;
+				StateMirror.loadFence();
+				if (seq == before) {
+					if (k == DOUBLE)
+						return Double.valueOf(d);
+					if (k == LONG)
+						return Long.valueOf(l);
+					return v == null || v instanceof String ? v : MUTABLE;
+				}
+			}
+			if (spins > 100)
+				Thread.yield();
+		}
+	}
+
+	/**
+	 * Same as {@link #peek()}, without boxing.
+	 * 
+	 * @return the value of a DOUBLE or LONG entry, absent otherwise
+	 */
+	double peekDouble(double absent) {
+		for (int spins = 0;; spins++) {
+			long before = seq;
+			if ((before & 1L) == 0L) {
+				StateMirror.loadFence();
+				byte k = kind;
+				double d = k == DOUBLE ? doubleValue : k == LONG ? longValue : absent;
+				StateMirror.loadFence();
+				if (seq == before)
+					return d;
+			}
+			if (spins > 100)
+				Thread.yield();
+		}
+	}
+
+	/**
+	 * Same as {@link #peek()}, without boxing.
+	 * 
+	 * @return the value of a LONG entry, absent otherwise
+	 */
+	long peekLong(long absent) {
+		for (int spins = 0;; spins++) {
+			long before = seq;
+			if ((before & 1L) == 0L) {
+				StateMirror.loadFence();
+				long l = kind == LONG ? longValue : absent;
+				StateMirror.loadFence();
+				if (seq == before)
+					return l;
+			}
+			if (spins > 100)
+				Thread.yield();
+		}
+	}
+
+	/**
+	 * Changes the reducer, starting a new interval held at the current value.
+	 */
+	void reduce(StateStore.Reducer reducer, double alpha) {
+		this.reducer = reducer;
+		this.alpha = alpha;
+		samples = 0L;
+		aggregate = 0.0;
+		held = kind == LONG ? longValue : doubleValue;
+		if (reducer == StateStore.Reducer.EWMA && kind != OBJECT) {
+			// the average starts from the current value
+			aggregate = held;
+			samples = 1L;
+		}
+	}
+
+	private void sample(double x) {
+		switch (reducer) {
+		case MIN:
+			aggregate = samples == 0L ? x : Math.min(aggregate, x);
+			break;
+		case MAX:
+			aggregate = samples == 0L ? x : Math.max(aggregate, x);
+			break;
+		case EWMA:
+			aggregate = samples == 0L ? x : aggregate + alpha * (x - aggregate);
+			break;
+		case SUM:
+		case MEAN:
+			aggregate = samples == 0L ? x : aggregate + x;
+			break;
+		default:
+			break;
+		}
+		samples++;
+	}
+
+	/**
+	 * 
+	 * @return the value to be emitted by a drain: the reduced value of a numeric
+	 *         entry, as {@link #get()} otherwise
+	 */
+	Object reduced() {
+		if (kind == OBJECT)
+			return value;
+		switch (reducer) {
+		case COUNT:
+			return Long.valueOf(samples);
+		case SUM:
+			return Double.valueOf(aggregate);
+		case MIN:
+		case MAX:
+			return Double.valueOf(samples == 0L ? held : aggregate);
+		case MEAN:
+			return Double.valueOf(samples == 0L ? held : aggregate / samples);
+		case EWMA:
+			return Double.valueOf(aggregate);
+		default:
+			return get();
+		}
+	}
+
+	/**
+	 * Starts a new aggregation interval (called by drains, after emitting).
+	 * 
+	 * @return true when the value to be emitted changed without a write (a SUM
+	 *         or COUNT back to zero)
+	 */
+	boolean closeInterval() {
+		switch (reducer) {
+		case SUM:
+		case COUNT:
+			boolean changed = samples > 0L;
+			samples = 0L;
+			aggregate = 0.0;
+			return changed;
+		case MIN:
+		case MAX:
+		case MEAN:
+			if (samples > 0L) {
+				held = ((Double) reduced()).doubleValue();
+				samples = 0L;
+				aggregate = 0.0;
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * 
+	 * @return the value, boxing primitive kinds
+	 */
+	Object get() {
+		switch (kind) {
+		case DOUBLE:
+			return Double.valueOf(doubleValue);
+		case LONG:
+			return Long.valueOf(longValue);
+		default:
+			return value;
+		}
+	}
+}
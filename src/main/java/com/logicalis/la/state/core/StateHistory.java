@@ -0,0 +1,101 @@
+package com.logicalis.la.state.core;
+
+import java.util.Arrays;
+
+/**
+ * Result of {@link StateStore#getHistory(String, long)}: samples of a numeric
+ * entry, oldest first, as two parallel primitive arrays. Can be passed back to
+ * {@link StateStore#getHistory(String, long, StateHistory)} to be refilled
+ * without allocating.
+ */
+public final class StateHistory {
+
+	private long[] timestamps;
+	private double[] values;
+	private int size;
+
+	public StateHistory() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity
+	 *                     initial number of samples (grows as needed)
+	 */
+	public StateHistory(int capacity) {
+		timestamps = new long[capacity];
+		values = new double[capacity];
+	}
+
+	/**
+	 * 
+	 * @return number of samples
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * 
+	 * @param index
+	 *                  sample index (0 is the oldest)
+	 * @return when the sample was written, in {@link System#nanoTime()} units
+	 */
+	public long getTimestamp(int index) {
+		check(index);
+		return timestamps[index];
+	}
+
+	/**
+	 * 
+	 * @param index
+	 *                  sample index (0 is the oldest)
+	 * @return value of the sample
+	 */
+	public double getValue(int index) {
+		check(index);
+		return values[index];
+	}
+
+	/**
+	 * 
+	 * @return timestamps of the samples, not copied: only the first
+	 *         {@link #size()} are valid
+	 */
+	public long[] getTimestamps() {
+		return timestamps;
+	}
+
+	/**
+	 * 
+	 * @return values of the samples, not copied: only the first {@link #size()}
+	 *         are valid
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	void ensure(int capacity) {
+		if (timestamps.length < capacity) {
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+	}
+
+	void add(long timestamp, double value) {
+		if (size == timestamps.length)
+			ensure(size * 2 + 1);
+		timestamps[size] = timestamp;
+		values[size] = value;
+		size++;
+	}
+
+	private void check(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+	}
+}
@@ -0,0 +1,480 @@
+package com.logicalis.la.state.core;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Non-blocking front end of a {@link StateStore}.
+ * <p>
+ * Producers (typically SDK callback threads) write into a bounded lock-free
+ * multi-producer ring of preallocated update records instead of calling the
+ * store. A single applier thread (see {@link #start()}) or the caller of
+ * {@link #drain()} moves them into the store in batches, skipping a write when
+ * the next record of the batch overwrites the same entry. Numbers written to
+ * an entry with a {@link StateStore.Reducer} or a history are never skipped;
+ * a journal records the writes applied, so skipped ones are not in it (its
+ * state is the same).
+ * </p>
+ * <p>
+ * What happens when the ring is full depends on the {@link OverflowPolicy}.
+ * </p>
+ */
+public class StateIngestor {
+
+	/**
+	 * What a producer does when the ring is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Spin (then park) until the applier frees a record.
+		 */
+		BLOCK,
+		/**
+		 * Discard the oldest pending record to make room.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Write the value over the newest pending record of the same entry,
+		 * when it is a value too (so the order of the writes to an entry
+		 * holds), otherwise wait as {@link #BLOCK} does. Events (sets and
+		 * lists) cannot be conflated and are dropped.
+		 */
+		OVERWRITE_LATEST_PER_KEY
+	}
+
+	// record operations
+	private static final byte SET_OBJECT = 0;
+	private static final byte SET_DOUBLE = 1;
+	private static final byte SET_LONG = 2;
+	private static final byte ADD_TO_SET = 3;
+	private static final byte ADD_TO_LIST = 4;
+	private static final byte REMOVE = 5;
+
+	private static final long IDLE_PARK_NANOS = 100000L;
+
+	private final StateStore store;
+	private final OverflowPolicy policy;
+	private final Record[] ring;
+	private final int mask;
+	private final Record[] batch;
+
+	// next position to be claimed by a producer / by the applier
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong overflowed = new AtomicLong();
+	private final AtomicLong applied = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	private volatile Thread applier;
+
+	/**
+	 * 
+	 * @param store
+	 *                      where updates are applied
+	 * @param capacity
+	 *                      number of preallocated records (rounded up to a power
+	 *                      of two)
+	 * @param batchSize
+	 *                      maximum number of records applied per batch
+	 * @param policy
+	 *                      what producers do when the ring is full
+	 */
+	public StateIngestor(StateStore store, int capacity, int batchSize, OverflowPolicy policy) {
+		if (capacity < 2 || batchSize < 1)
+			throw new IllegalArgumentException("capacity must be at least 2 and batchSize at least 1");
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		this.store = store;
+		this.policy = policy;
+		this.ring = new Record[size];
+		this.mask = size - 1;
+		this.batch = new Record[Math.min(batchSize, size)];
+		for (int i = 0; i < size; i++)
+			ring[i] = new Record(i);
+	}
+
+	/**
+	 * Starts the applier thread (a daemon), which is the only consumer of the
+	 * ring from now on.
+	 */
+	public synchronized void start() {
+		if (applier != null)
+			return;
+		Thread t = new Thread(() -> {
+			while (applier == Thread.currentThread()) {
+				if (drain() == 0)
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+			drain();
+		}, "state-ingestor");
+		t.setDaemon(true);
+		applier = t;
+		t.start();
+	}
+
+	/**
+	 * Stops the applier thread, after it applies what is pending.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			t = applier;
+			applier = null;
+		}
+		if (t != null)
+			t.join();
+	}
+
+	/**
+	 * Applies pending records to the store. Only one thread may drain at a
+	 * time: either the applier thread or a caller that never called
+	 * {@link #start()}.
+	 * 
+	 * @return number of records taken from the ring
+	 */
+	public int drain() {
+		int total = 0;
+		int n;
+		do {
+			n = claimBatch();
+			for (int i = 0; i < n; i++) {
+				Record r = batch[i];
+				if (i + 1 < n && overwrites(batch[i + 1], r))
+					coalesced.incrementAndGet();
+				else
+					apply(r);
+				release(r);
+			}
+			total += n;
+		} while (n == batch.length);
+		return total;
+	}
+
+	/**
+	 * Sets a 'string' value
+	 * 
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  value of state entry
+	 */
+	public void set(String name, String value) {
+		offer(SET_OBJECT, name, value, 0.0, 0L);
+	}
+
+	/**
+	 * Sets a 'map' value
+	 * 
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  map of state entry (must not be changed afterwards)
+	 */
+	public void set(String name, Map<String, ?> value) {
+		offer(SET_OBJECT, name, value, 0.0, 0L);
+	}
+
+	/**
+	 * Sets a 'floating point' value
+	 * 
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  value of state entry
+	 */
+	public void set(String name, double value) {
+		offer(SET_DOUBLE, name, null, value, 0L);
+	}
+
+	/**
+	 * Sets a 'integer' value
+	 * 
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  value of state entry
+	 */
+	public void set(String name, long value) {
+		offer(SET_LONG, name, null, 0.0, value);
+	}
+
+	/**
+	 * Add a message to a set (avoid duplicates).
+	 * 
+	 * @param event
+	 *                    name of entries set
+	 * @param message
+	 *                    message to be appended to state entry
+	 */
+	public void addToSet(String event, String message) {
+		offer(ADD_TO_SET, event, message, 0.0, 0L);
+	}
+
+	/**
+	 * Add a message to a list.
+	 * 
+	 * @param event
+	 *                    name of entries list
+	 * @param message
+	 *                    message to be appended to state entry
+	 */
+	public void addToList(String event, String message) {
+		offer(ADD_TO_LIST, event, message, 0.0, 0L);
+	}
+
+	/**
+	 * Removes an entry from state.
+	 * 
+	 * @param name
+	 *                 entry key to be removed.
+	 */
+	public void remove(String name) {
+		offer(REMOVE, name, null, 0.0, 0L);
+	}
+
+	/**
+	 * 
+	 * @return records discarded because the ring was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * 
+	 * @return values written over a pending one because the ring was full
+	 *         (OVERWRITE_LATEST_PER_KEY)
+	 */
+	public long getOverflowed() {
+		return overflowed.get();
+	}
+
+	/**
+	 * 
+	 * @return records applied to the store
+	 */
+	public long getApplied() {
+		return applied.get();
+	}
+
+	/**
+	 * 
+	 * @return records skipped because the next record overwrote the same entry
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * 
+	 * @return records waiting in the ring
+	 */
+	public int getPending() {
+		return (int) Math.max(0L, tail.get() - head.get());
+	}
+
+	/**
+	 * 
+	 * @return ring capacity
+	 */
+	public int getCapacity() {
+		return ring.length;
+	}
+
+	private void offer(byte op, String name, Object object, double d, long l) {
+		int spins = 0;
+		while (!tryOffer(op, name, object, d, l)) {
+			switch (policy) {
+			case OVERWRITE_LATEST_PER_KEY:
+				if (op == ADD_TO_SET || op == ADD_TO_LIST) {
+					dropped.incrementAndGet();
+					return;
+				}
+				if (overwrite(op, name, object, d, l)) {
+					overflowed.incrementAndGet();
+					return;
+				}
+				// nothing to write over: waits for room
+			case BLOCK:
+				if (++spins < 100)
+					Thread.yield();
+				else
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				break;
+
+			case DROP_OLDEST:
+				Record oldest = claim();
+				if (oldest != null) {
+					release(oldest);
+					dropped.incrementAndGet();
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Writes a value over the newest pending record of its entry, in place
+	 * (OVERWRITE_LATEST_PER_KEY), holding that record's monitor, which the
+	 * applier takes once it claimed the record.
+	 * 
+	 * @return false when that record is not a value that may be skipped, or
+	 *         there is none
+	 */
+	private boolean overwrite(byte op, String name, Object object, double d, long l) {
+		long first = head.get();
+		for (long pos = tail.get() - 1; pos >= first; pos--) {
+			Record r = ring[(int) (pos & mask)];
+			if (r.sequence != pos + 1 || !name.equals(r.name))
+				continue;
+			synchronized (r) {
+				if (r.sequence != pos + 1 || head.get() > pos || !overwrites(op, name, r))
+					return false;
+				r.op = op;
+				r.object = object;
+				r.doubleValue = d;
+				r.longValue = l;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean tryOffer(byte op, String name, Object object, double d, long l) {
+		long pos = tail.get();
+		for (;;) {
+			Record r = ring[(int) (pos & mask)];
+			long dif = r.sequence - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					r.op = op;
+					r.name = name;
+					r.object = object;
+					r.doubleValue = d;
+					r.longValue = l;
+					// publish
+					r.sequence = pos + 1;
+					return true;
+				}
+				pos = tail.get();
+
+			} else if (dif < 0) {
+				return false;
+
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Takes the oldest published record (to be released after use).
+	 * 
+	 * @return the record, or null when the ring is empty
+	 */
+	private Record claim() {
+		long pos = head.get();
+		for (;;) {
+			Record r = ring[(int) (pos & mask)];
+			long dif = r.sequence - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1))
+					return r;
+				pos = head.get();
+
+			} else if (dif < 0) {
+				return null;
+
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	private int claimBatch() {
+		int n = 0;
+		Record r;
+		while (n < batch.length && (r = claim()) != null) {
+			if (policy == OverflowPolicy.OVERWRITE_LATEST_PER_KEY) {
+				// waits for a producer writing over it (see overwrite)
+				synchronized (r) {
+					batch[n++] = r;
+				}
+			} else {
+				batch[n++] = r;
+			}
+		}
+		return n;
+	}
+
+	private void release(Record r) {
+		r.name = null;
+		r.object = null;
+		// free for the producer one lap ahead
+		r.sequence = r.sequence - 1 + ring.length;
+	}
+
+	private boolean overwrites(Record next, Record r) {
+		return overwrites(next.op, next.name, r);
+	}
+
+	/**
+	 * 
+	 * @return true when a write (or removal) makes a pending record useless
+	 */
+	private boolean overwrites(byte op, String name, Record r) {
+		return (r.op == SET_OBJECT || r.op == SET_DOUBLE || r.op == SET_LONG)
+				&& (op == SET_OBJECT || op == SET_DOUBLE || op == SET_LONG || op == REMOVE)
+				&& name.equals(r.name)
+				// aggregated or kept numbers all count
+				&& (r.op == SET_OBJECT || op == SET_OBJECT || op == REMOVE || !store.isSampled(r.name));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void apply(Record r) {
+		switch (r.op) {
+		case SET_DOUBLE:
+			store.set(r.name, r.doubleValue);
+			break;
+		case SET_LONG:
+			store.set(r.name, r.longValue);
+			break;
+		case SET_OBJECT:
+			if (r.object instanceof String)
+				store.set(r.name, (String) r.object);
+			else
+				store.set(r.name, (Map<String, ?>) r.object);
+			break;
+		case ADD_TO_SET:
+			store.addToSet(r.name, (String) r.object);
+			break;
+		case ADD_TO_LIST:
+			store.addToList(r.name, (String) r.object);
+			break;
+		default:
+			store.remove(r.name);
+		}
+		applied.incrementAndGet();
+	}
+
+	/**
+	 * One preallocated update.
+	 */
+	private static final class Record {
+		// position + 1 once published, position + capacity once free again
+		volatile long sequence;
+		byte op;
+		String name;
+		Object object;
+		double doubleValue;
+		long longValue;
+
+		Record(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+}
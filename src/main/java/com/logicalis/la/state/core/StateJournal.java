@@ -0,0 +1,838 @@
+package com.logicalis.la.state.core;
+
+import static com.logicalis.la.state.core.BinaryFormat.getString;
+import static com.logicalis.la.state.core.BinaryFormat.getVarint;
+import static com.logicalis.la.state.core.BinaryFormat.getZigzag;
+import static com.logicalis.la.state.core.BinaryFormat.putString;
+import static com.logicalis.la.state.core.BinaryFormat.putVarint;
+import static com.logicalis.la.state.core.BinaryFormat.putZigzag;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of a {@link StateStore} (synchronized or concurrent
+ * backend), so its state survives a restart.
+ * <p>
+ * Every write is appended as a compact binary record, before it is applied,
+ * to an in-memory buffer of the lock stripe of the entry: writers already hold
+ * that monitor, so records of an entry are in write order and writers of
+ * different stripes share nothing but the sequence counter. A flusher thread
+ * writes each buffer out as one checksummed frame and forces them to disk
+ * every sync interval (group commit): a crash loses at most that interval.
+ * Drains are journaled as one reset record per emptied set or list.
+ * </p>
+ * <p>
+ * Once writing to disk fails, the journal stops: every later write to the
+ * store throws an {@link UncheckedIOException} (before changing the store)
+ * rather than being silently lost.
+ * </p>
+ * <p>
+ * Once the journal segment grows past the checkpoint size, a new segment is
+ * started and the whole state is written to a compacted checkpoint, after
+ * which older segments are deleted. Each entry of the checkpoint carries the
+ * sequence number of the last record it reflects, so records written while the
+ * checkpoint was being taken are replayed exactly once.
+ * </p>
+ * <p>
+ * {@link #open(StateStore, Path)} replays checkpoint and segments into the
+ * store before attaching the journal; a torn frame at the end of a segment is
+ * ignored. Reducers and capacities are not journaled: set them before opening.
+ * </p>
+ */
+public final class StateJournal implements Closeable {
+
+	// sync interval when none is given
+	public static final long DEFAULT_SYNC_MILLIS = 50L;
+
+	// segment size that triggers a checkpoint when none is given
+	public static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+
+	// record types
+	private static final byte SET_DOUBLE = 1;
+	private static final byte SET_LONG = 2;
+	private static final byte SET_STRING = 3;
+	private static final byte SET_MAP = 4;
+	private static final byte ADD_TO_SET = 5;
+	private static final byte ADD_TO_LIST = 6;
+	private static final byte REMOVE = 7;
+	private static final byte RESET_SET = 8;
+	private static final byte RESET_LIST = 9;
+	// id of a name, for the following records of the segment
+	private static final byte DEFINE = 10;
+
+	// value tags (map values and checkpoint entries)
+	private static final byte STRING = 1;
+	private static final byte LONG = 2;
+	private static final byte DOUBLE = 3;
+	private static final byte MAP = 4;
+	private static final byte LIST = 5;
+	private static final byte SET = 6;
+
+	private static final int SEGMENT_MAGIC = 0x53534a31;
+	private static final int CHECKPOINT_MAGIC = 0x53534331;
+
+	// frame length and CRC
+	private static final int FRAME_HEADER = 8;
+
+	private static final String CHECKPOINT = "checkpoint.bin";
+
+	private final StateStore store;
+	private final Path directory;
+	private final long syncNanos;
+	private final long checkpointBytes;
+
+	// lock stripes of the store (the store itself when it has a single
+	// monitor), each guarding the records its writers appended since the last
+	// flush, and the sequence number of the last of them (0 when none)
+	private final Object[] locks;
+	private final ByteBuffer[] active;
+	private final long[] last;
+
+	// names are written once per segment, then referred to by id
+	private long segment;
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	// sequence number of the last record appended
+	private final AtomicLong sequence = new AtomicLong();
+
+	// guards the segment and the buffers being written
+	private final Object io = new Object();
+	private final ByteBuffer[] spare;
+	private FileChannel channel;
+	private volatile long segmentBytes;
+	private final CRC32 crc = new CRC32();
+
+	// one checkpoint at a time
+	private final Object checkpointLock = new Object();
+
+	private final Thread flusher;
+	private volatile boolean closed;
+	private volatile IOException failure;
+
+	private volatile long syncs;
+	private volatile long bytes;
+
+	private StateJournal(StateStore store, Path directory, long syncMillis, long checkpointBytes) {
+		this.store = store;
+		this.directory = directory;
+		this.syncNanos = syncMillis * 1000000L;
+		this.checkpointBytes = checkpointBytes;
+		this.locks = store.journalLocks();
+		// striped buffers start small and grow with their stripe
+		int capacity = locks.length == 1 ? 1 << 20 : 1 << 14;
+		this.active = new ByteBuffer[locks.length];
+		this.spare = new ByteBuffer[locks.length];
+		this.last = new long[locks.length];
+		for (int i = 0; i < locks.length; i++) {
+			active[i] = frame(ByteBuffer.allocate(capacity));
+			spare[i] = frame(ByteBuffer.allocate(capacity));
+		}
+		this.flusher = new Thread(this::flush, "state-journal");
+		this.flusher.setDaemon(true);
+	}
+
+	/**
+	 * Opens a journal with the default sync interval and checkpoint size.
+	 *
+	 * @param store
+	 *                      an empty store, filled with the recovered state
+	 * @param directory
+	 *                      where journal segments and checkpoint are kept
+	 *                      (created if missing)
+	 * @return the journal, attached to the store
+	 * @throws IOException
+	 */
+	public static StateJournal open(StateStore store, Path directory) throws IOException {
+		return open(store, directory, DEFAULT_SYNC_MILLIS, DEFAULT_CHECKPOINT_BYTES);
+	}
+
+	/**
+	 * Recovers the state kept in a directory into a store and journals its
+	 * writes from then on.
+	 *
+	 * @param store
+	 *                            an empty store, filled with the recovered state
+	 * @param directory
+	 *                            where journal segments and checkpoint are kept
+	 *                            (created if missing)
+	 * @param syncMillis
+	 *                            how often the journal is forced to disk
+	 * @param checkpointBytes
+	 *                            segment size that triggers a checkpoint
+	 * @return the journal, attached to the store
+	 * @throws IOException
+	 * @throws UnsupportedOperationException
+	 *                                           with the
+	 *                                           {@link StateStore.Backend#PERSISTENT}
+	 *                                           backend
+	 */
+	public static StateJournal open(StateStore store, Path directory, long syncMillis, long checkpointBytes)
+			throws IOException {
+		if (store.getBackend() == StateStore.Backend.PERSISTENT)
+			throw new UnsupportedOperationException("journal needs a synchronized or concurrent backend");
+		Files.createDirectories(directory);
+		StateJournal journal = new StateJournal(store, directory, syncMillis, checkpointBytes);
+		journal.recover();
+		journal.segment = journal.sequence.get() + 1L;
+		journal.channel = journal.startSegment(journal.segment);
+		store.attach(journal);
+		journal.flusher.start();
+		return journal;
+	}
+
+	/**
+	 * Writes the records appended so far and forces them to disk.
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		synchronized (io) {
+			if (failure != null)
+				throw failure;
+			try {
+				if (writeOut(channel))
+					channel.force(false);
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Starts a new segment, writes a compacted checkpoint of the store and
+	 * deletes the segments it covers.
+	 *
+	 * @throws IOException
+	 */
+	public void checkpoint() throws IOException {
+		synchronized (checkpointLock) {
+			long first;
+			synchronized (io) {
+				if (failure != null)
+					throw failure;
+				// records up to first - 1 go to the old segment
+				ByteBuffer[] full = new ByteBuffer[locks.length];
+				first = rollOver(full, 0);
+				try {
+					if (write(channel, full))
+						syncs++;
+					channel.force(false);
+					channel.close();
+					channel = startSegment(first);
+				} catch (IOException e) {
+					failure = e;
+					throw e;
+				}
+			}
+
+			Checkpoint checkpoint = new Checkpoint();
+			store.checkpoint(checkpoint);
+			Path tmp = directory.resolve(CHECKPOINT + ".tmp");
+			try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer header = ByteBuffer.allocate(12);
+				header.putInt(CHECKPOINT_MAGIC).putLong(first).flip();
+				writeFully(out, header);
+				writeFrame(out, checkpoint.buffer);
+				out.force(true);
+			}
+			Files.move(tmp, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+			for (Path segment : segments()) {
+				if (firstSequence(segment) < first)
+					Files.delete(segment);
+			}
+		}
+	}
+
+	/**
+	 * Detaches the journal from the store and writes out everything appended.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		store.attach((StateJournal) null);
+		closed = true;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (io) {
+			try {
+				sync();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return sequence number of the last record (records ever journaled in
+	 *         this directory)
+	 */
+	public long getSequence() {
+		return sequence.get();
+	}
+
+	/**
+	 *
+	 * @return frames forced to disk since opened
+	 */
+	public long getSyncs() {
+		return syncs;
+	}
+
+	/**
+	 *
+	 * @return bytes written to segments since opened
+	 */
+	public long getBytesWritten() {
+		return bytes;
+	}
+
+	private void flush() {
+		while (!closed) {
+			LockSupport.parkNanos(this, syncNanos);
+			if (closed)
+				break;
+			try {
+				sync();
+				if (segmentBytes >= checkpointBytes)
+					checkpoint();
+			} catch (IOException e) {
+				failure = e;
+				return;
+			}
+		}
+	}
+
+	// appends below are called holding the monitor of the entry (its lock
+	// stripe), before the write is applied
+
+	void setDouble(StateEntry entry, double value) {
+		ByteBuffer buffer = record(SET_DOUBLE, entry, 8);
+		buffer.putDouble(value);
+	}
+
+	void setLong(StateEntry entry, long value) {
+		ByteBuffer buffer = record(SET_LONG, entry, 10);
+		putZigzag(buffer, value);
+	}
+
+	/**
+	 * Journals a String or Map value (null for a removal).
+	 */
+	void setObject(StateEntry entry, Object value) {
+		if (value == null) {
+			remove(entry);
+			return;
+		}
+		if (value instanceof String) {
+			string(SET_STRING, entry, (String) value);
+			return;
+		}
+		int stripe = check(entry);
+		int mark = active[stripe].position();
+		long definedIn = entry.journalSegment;
+		long previous = last[stripe];
+		long seq = sequence.incrementAndGet();
+		while (true) {
+			try {
+				record(SET_MAP, entry, stripe, seq);
+				putValue(active[stripe], value);
+				return;
+			} catch (BufferOverflowException e) {
+				// grow and encode again, name included
+				entry.journalSegment = definedIn;
+				last[stripe] = previous;
+				active[stripe].position(mark);
+				active[stripe] = grow(active[stripe], active[stripe].capacity());
+			}
+		}
+	}
+
+	void addToSet(StateEntry entry, String message) {
+		string(ADD_TO_SET, entry, message);
+	}
+
+	void addToList(StateEntry entry, String message) {
+		string(ADD_TO_LIST, entry, message);
+	}
+
+	void remove(StateEntry entry) {
+		record(REMOVE, entry, 0);
+	}
+
+	void reset(StateEntry entry) {
+		record(entry.value instanceof Set ? RESET_SET : RESET_LIST, entry, 0);
+	}
+
+	private void string(byte type, StateEntry entry, String value) {
+		ByteBuffer buffer = record(type, entry, 5 + 3 * value.length());
+		putString(buffer, value);
+	}
+
+	/**
+	 * Starts a record with a value of up to n bytes.
+	 *
+	 * @return the buffer to write the value to
+	 */
+	private ByteBuffer record(byte type, StateEntry entry, int n) {
+		int stripe = check(entry);
+		int size = 32 + entry.journalName.length + n;
+		if (active[stripe].remaining() < size)
+			active[stripe] = grow(active[stripe], size);
+		record(type, entry, stripe, sequence.incrementAndGet());
+		return active[stripe];
+	}
+
+	/**
+	 * Fails when writing to disk did, for writes journaled once applied (path
+	 * writes journal the whole tree).
+	 */
+	void check() {
+		IOException e = failure;
+		if (e != null)
+			throw new UncheckedIOException("journal failed, the write was not applied", e);
+	}
+
+	/**
+	 * Fails when writing to disk did, before anything is appended.
+	 *
+	 * @return the lock stripe of the entry
+	 */
+	private int check(StateEntry entry) {
+		check();
+		if (entry.journalName == null)
+			entry.journalName = entry.name.getBytes(StandardCharsets.UTF_8);
+		return locks.length == 1 ? 0 : store.stripeOf(entry.name);
+	}
+
+	private void record(byte type, StateEntry entry, int stripe, long seq) {
+		ByteBuffer buffer = active[stripe];
+		if (entry.journalSegment != segment) {
+			entry.journalSegment = segment;
+			entry.journalId = nextId.getAndIncrement();
+			buffer.put(DEFINE);
+			putVarint(buffer, entry.journalId);
+			putVarint(buffer, entry.journalName.length);
+			buffer.put(entry.journalName);
+		}
+		// records of a frame carry the distance from the previous sequence
+		// number (stripes interleave)
+		buffer.put(type);
+		putVarint(buffer, seq - last[stripe]);
+		last[stripe] = seq;
+		putVarint(buffer, entry.journalId);
+	}
+
+	/**
+	 * Takes the records appended so far to a stripe, to be called holding it.
+	 *
+	 * @return the buffer holding them (null if none)
+	 */
+	private ByteBuffer swap(int stripe) {
+		if (active[stripe].position() == FRAME_HEADER)
+			return null;
+		ByteBuffer full = active[stripe];
+		active[stripe] = frame(spare[stripe]);
+		spare[stripe] = full;
+		last[stripe] = 0L;
+		return full;
+	}
+
+	/**
+	 * Takes the records of every stripe and starts a new segment, holding all
+	 * stripes at once (nested monitors, in the order batches take them).
+	 *
+	 * @return sequence number of the first record of the new segment
+	 */
+	private long rollOver(ByteBuffer[] full, int i) {
+		if (i < locks.length) {
+			synchronized (locks[i]) {
+				return rollOver(full, i + 1);
+			}
+		}
+		for (int stripe = 0; stripe < locks.length; stripe++)
+			full[stripe] = swap(stripe);
+		long first = sequence.get() + 1L;
+		segment = first;
+		nextId.set(0);
+		return first;
+	}
+
+	/**
+	 * Writes the records appended so far, to be called holding io.
+	 *
+	 * @return true if something was written
+	 */
+	private boolean writeOut(FileChannel out) throws IOException {
+		ByteBuffer[] full = new ByteBuffer[locks.length];
+		for (int stripe = 0; stripe < locks.length; stripe++) {
+			synchronized (locks[stripe]) {
+				full[stripe] = swap(stripe);
+			}
+		}
+		if (!write(out, full))
+			return false;
+		syncs++;
+		return true;
+	}
+
+	/**
+	 * Writes a frame for each buffer taken from a stripe.
+	 *
+	 * @return true if something was written
+	 */
+	private boolean write(FileChannel out, ByteBuffer[] full) throws IOException {
+		boolean written = false;
+		for (ByteBuffer buffer : full) {
+			if (buffer == null)
+				continue;
+			long n = writeFrame(out, buffer);
+			segmentBytes += n;
+			bytes += n;
+			written = true;
+		}
+		return written;
+	}
+
+	/**
+	 * Writes a buffer filled after its frame header as a checksummed frame.
+	 */
+	private long writeFrame(FileChannel out, ByteBuffer buffer) throws IOException {
+		int end = buffer.position();
+		ByteBuffer records = buffer.duplicate();
+		records.position(FRAME_HEADER).limit(end);
+		crc.reset();
+		crc.update(records);
+		buffer.putInt(0, end - FRAME_HEADER);
+		buffer.putInt(4, (int) crc.getValue());
+		buffer.flip();
+		writeFully(out, buffer);
+		return end;
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			out.write(buffer);
+	}
+
+	private FileChannel startSegment(long first) throws IOException {
+		Path path = directory.resolve(String.format("journal-%020d.log", first));
+		FileChannel segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(12);
+		header.putInt(SEGMENT_MAGIC).putLong(first).flip();
+		writeFully(segment, header);
+		segment.force(true);
+		segmentBytes = 12L;
+		return segment;
+	}
+
+	private List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.log")) {
+			for (Path file : files)
+				segments.add(file);
+		}
+		// names hold zero padded sequence numbers
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static long firstSequence(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+	}
+
+	/**
+	 * Replays checkpoint and segments into the store.
+	 */
+	private void recover() throws IOException {
+		// sequence number of the last record reflected by the checkpoint, by name
+		Map<String, Long> covered = new HashMap<>();
+		long start = 1L;
+		Path checkpoint = directory.resolve(CHECKPOINT);
+		if (Files.exists(checkpoint)) {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+			if (in.getInt() != CHECKPOINT_MAGIC)
+				throw new IOException(checkpoint + " is not a checkpoint");
+			start = in.getLong();
+			ByteBuffer frame = nextFrame(in);
+			if (frame == null)
+				throw new IOException(checkpoint + " is corrupt");
+			while (frame.hasRemaining()) {
+				String name = getString(frame);
+				covered.put(name, getVarint(frame));
+				restore(name, getValue(frame));
+			}
+		}
+
+		long last = start - 1L;
+		for (Path segment : segments()) {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(segment));
+			if (in.remaining() < 12 || in.getInt() != SEGMENT_MAGIC)
+				continue;
+			in.getLong();
+			Map<Long, String> names = new HashMap<>();
+			ByteBuffer frame;
+			// a torn frame ends the segment
+			while ((frame = nextFrame(in)) != null) {
+				long seq = 0L;
+				while (frame.hasRemaining()) {
+					byte type = frame.get();
+					if (type == DEFINE) {
+						long id = getVarint(frame);
+						names.put(id, getString(frame));
+						continue;
+					}
+					seq += getVarint(frame);
+					String name = names.get(getVarint(frame));
+					if (name == null)
+						throw new IOException(segment + " refers to an undefined name");
+					Long upTo = covered.get(name);
+					boolean apply = seq >= start && (upTo == null || seq > upTo.longValue());
+					replay(type, name, frame, apply);
+					last = Math.max(last, seq);
+				}
+			}
+		}
+		sequence.set(last);
+	}
+
+	/**
+	 *
+	 * @return the records of the next valid frame (null at the end or on a torn
+	 *         frame)
+	 */
+	private ByteBuffer nextFrame(ByteBuffer in) {
+		if (in.remaining() < FRAME_HEADER)
+			return null;
+		int length = in.getInt();
+		int checksum = in.getInt();
+		if (length < 0 || length > in.remaining())
+			return null;
+		ByteBuffer frame = in.slice();
+		frame.limit(length);
+		crc.reset();
+		crc.update(frame.duplicate());
+		if ((int) crc.getValue() != checksum)
+			return null;
+		in.position(in.position() + length);
+		return frame;
+	}
+
+	private void replay(byte type, String name, ByteBuffer in, boolean apply) throws IOException {
+		switch (type) {
+		case SET_DOUBLE: {
+			double value = in.getDouble();
+			if (apply)
+				store.set(name, value);
+			break;
+		}
+		case SET_LONG: {
+			long value = getZigzag(in);
+			if (apply)
+				store.set(name, value);
+			break;
+		}
+		case SET_STRING: {
+			String value = getString(in);
+			if (apply)
+				store.set(name, value);
+			break;
+		}
+		case SET_MAP: {
+			Object value = getValue(in);
+			if (apply)
+				restore(name, value);
+			break;
+		}
+		case ADD_TO_SET: {
+			String message = getString(in);
+			if (apply)
+				store.addToSet(name, message);
+			break;
+		}
+		case ADD_TO_LIST: {
+			String message = getString(in);
+			if (apply)
+				store.addToList(name, message);
+			break;
+		}
+		case REMOVE:
+			if (apply)
+				store.remove(name);
+			break;
+		case RESET_SET:
+		case RESET_LIST:
+			if (apply)
+				store.resetEvents(name, type == RESET_SET);
+			break;
+		default:
+			throw new IOException("unknown journal record " + type);
+		}
+	}
+
+	/**
+	 * Sets a value decoded from a checkpoint or map record.
+	 */
+	@SuppressWarnings("unchecked")
+	private void restore(String name, Object value) {
+		if (value instanceof String) {
+			store.set(name, (String) value);
+		} else if (value instanceof Double) {
+			store.set(name, ((Double) value).doubleValue());
+		} else if (value instanceof Long) {
+			store.set(name, ((Long) value).longValue());
+		} else if (value instanceof Map) {
+			store.set(name, (Map<String, ?>) value);
+		} else {
+			// events of a set or list
+			boolean set = value instanceof Set;
+			store.resetEvents(name, set);
+			for (String message : (Collection<String>) value) {
+				if (set)
+					store.addToSet(name, message);
+				else
+					store.addToList(name, message);
+			}
+		}
+	}
+
+	/**
+	 * Compacted copy of the store, filled by
+	 * {@link StateStore#checkpoint(Checkpoint)} one entry at a time.
+	 */
+	final class Checkpoint {
+		private ByteBuffer buffer = frame(ByteBuffer.allocate(1 << 16));
+
+		/**
+		 * Adds an entry, to be called holding its monitor.
+		 */
+		void add(StateEntry entry) {
+			if (entry.isRemoved())
+				return;
+			int mark = buffer.position();
+			while (true) {
+				try {
+					putString(buffer, entry.name);
+					// its records up to now are all reflected
+					putVarint(buffer, sequence.get());
+					putValue(buffer, entry.get());
+					return;
+				} catch (BufferOverflowException e) {
+					buffer.position(mark);
+					buffer = grow(buffer, buffer.capacity());
+				}
+			}
+		}
+	}
+
+	private static ByteBuffer frame(ByteBuffer buffer) {
+		buffer.clear();
+		buffer.position(FRAME_HEADER);
+		return buffer;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int n) {
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n));
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+	/**
+	 * Writes a tagged state value: String, Long, Double, Map, List or Set.
+	 */
+	@SuppressWarnings("rawtypes")
+	static void putValue(ByteBuffer out, Object value) {
+		if (value instanceof String) {
+			out.put(STRING);
+			putString(out, (String) value);
+		} else if (value instanceof Long) {
+			out.put(LONG);
+			putZigzag(out, ((Long) value).longValue());
+		} else if (value instanceof Double) {
+			out.put(DOUBLE);
+			out.putDouble(((Double) value).doubleValue());
+		} else if (value instanceof Map) {
+			out.put(MAP);
+			putVarint(out, ((Map) value).size());
+			for (Object o : ((Map) value).entrySet()) {
+				Map.Entry e = (Map.Entry) o;
+				putString(out, String.valueOf(e.getKey()));
+				putValue(out, e.getValue());
+			}
+		} else if (value instanceof Collection) {
+			out.put(value instanceof Set ? SET : LIST);
+			putVarint(out, ((Collection) value).size());
+			for (Object e : (Collection) value)
+				putValue(out, e);
+		} else {
+			throw new IllegalArgumentException("invalid data type: " + value);
+		}
+	}
+
+	static Object getValue(ByteBuffer in) {
+		byte tag = in.get();
+		switch (tag) {
+		case STRING:
+			return getString(in);
+		case LONG:
+			return Long.valueOf(getZigzag(in));
+		case DOUBLE:
+			return Double.valueOf(in.getDouble());
+		case MAP: {
+			int n = (int) getVarint(in);
+			Map<String, Object> map = new TreeMap<>();
+			for (int i = 0; i < n; i++) {
+				String key = getString(in);
+				map.put(key, getValue(in));
+			}
+			return map;
+		}
+		case LIST:
+		case SET: {
+			int n = (int) getVarint(in);
+			Collection<Object> events = tag == SET ? new HashSet<>() : new ArrayList<>(n);
+			for (int i = 0; i < n; i++)
+				events.add(getValue(in));
+			return events;
+		}
+		default:
+			throw new IllegalArgumentException("invalid value tag " + tag);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.logicalis.la.state.core;
+
+/**
+ * Handle of an entry registered with {@link StateStore#register(String, Type)}.
+ * <p>
+ * Writes through a handle go straight to the entry slot: no map lookup, no
+ * String hashing or comparison. Snapshots still show the entry by its name.
+ * </p>
+ */
+public final class StateKey {
+
+	/**
+	 * Kind of value a registered entry holds.
+	 */
+	public enum Type {
+		DOUBLE, LONG, STRING, SET, LIST
+	}
+
+	final StateStore store;
+	final String name;
+	final Type type;
+	final int index;
+
+	// slot and monitor of the entry (null with the persistent backend)
+	final StateEntry entry;
+	final Object monitor;
+
+	StateKey(StateStore store, String name, Type type, int index, StateEntry entry, Object monitor) {
+		this.store = store;
+		this.name = name;
+		this.type = type;
+		this.index = index;
+		this.entry = entry;
+		this.monitor = monitor;
+	}
+
+	/**
+	 * 
+	 * @return name of the entry
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * 
+	 * @return kind of value of the entry
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * 
+	 * @return registration order of this key in its store (0 for the first one)
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return name + ":" + type;
+	}
+}
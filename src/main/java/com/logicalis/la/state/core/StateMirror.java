@@ -0,0 +1,405 @@
+package com.logicalis.la.state.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import sun.misc.Unsafe;
+
+/**
+ * Mirror of the registered entries of a {@link StateStore} (see
+ * {@link StateStore#register(String, StateKey.Type)}) in a memory-mapped file,
+ * so other processes can read them with {@link StateMirrorReader}: no
+ * serialization, no socket, no system call per read.
+ * <p>
+ * The file holds one fixed-size slot per registered key, at the key's index.
+ * Each slot is guarded by a sequence lock: the writer (always holding the
+ * entry's monitor) makes the sequence odd, updates the slot and makes it even
+ * again; readers retry while it is odd or changed under them. A store fence
+ * after making it odd and another before making it even keep the slot writes
+ * between the two. Sets and lists keep their most recent events that fit in
+ * the slot, sliding that window as events are added.
+ * </p>
+ * <p>
+ * Layout (native byte order): a {@value #HEADER}-byte header (magic, slot
+ * count, slot size) followed by the slots. A slot starts with its sequence
+ * (long), type and flags (bytes), name length (short), event count (int),
+ * bytes used (int) and up to {@value #NAME_BYTES} bytes of UTF-8 name; its
+ * value starts at offset {@value #VALUE}.
+ * </p>
+ */
+public final class StateMirror implements Closeable {
+
+	static final int MAGIC = 0x53534d31;
+	static final int HEADER = 64;
+
+	// slot layout
+	static final int SEQUENCE = 0;
+	static final int TYPE = 8;
+	static final int FLAGS = 9;
+	static final int NAME_LENGTH = 10;
+	static final int COUNT = 12;
+	static final int USED = 16;
+	static final int NAME = 20;
+	static final int NAME_BYTES = 44;
+	static final int VALUE = 64;
+
+	// slot types
+	static final byte NONE = 0;
+	static final byte DOUBLE = 1;
+	static final byte LONG = 2;
+	static final byte STRING = 3;
+	static final byte SET = 4;
+	static final byte LIST = 5;
+
+	// flags
+	static final byte TRUNCATED = 1;
+
+	// slot size when none is given
+	public static final int DEFAULT_SLOT_SIZE = 512;
+
+	private static final Unsafe UNSAFE;
+
+	static {
+		try {
+			Field field = Unsafe.class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			UNSAFE = (Unsafe) field.get(null);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final StateStore store;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int slots;
+	private final int slotSize;
+
+	private StateMirror(StateStore store, FileChannel channel, int slots, int slotSize) throws IOException {
+		this.store = store;
+		this.channel = channel;
+		this.slots = slots;
+		this.slotSize = slotSize;
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, HEADER + (long) slots * slotSize);
+		this.buffer.order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Mirrors the registered entries of a store (and the ones registered later)
+	 * into a file, with slots of {@link #DEFAULT_SLOT_SIZE} bytes.
+	 *
+	 * @param store
+	 *                  store to be mirrored
+	 * @param file
+	 *                  file to be mapped (created or overwritten)
+	 * @param slots
+	 *                  maximum number of keys (keys registered beyond it are not
+	 *                  mirrored)
+	 * @return the mirror
+	 * @throws IOException
+	 */
+	public static StateMirror open(StateStore store, Path file, int slots) throws IOException {
+		return open(store, file, slots, DEFAULT_SLOT_SIZE);
+	}
+
+	/**
+	 * Same as {@link #open(StateStore, Path, int)}, with a given slot size.
+	 *
+	 * @param store
+	 *                     store to be mirrored
+	 * @param file
+	 *                     file to be mapped (created or overwritten)
+	 * @param slots
+	 *                     maximum number of keys
+	 * @param slotSize
+	 *                     bytes per slot (strings and events beyond it are
+	 *                     truncated)
+	 * @return the mirror
+	 * @throws IOException
+	 * @throws UnsupportedOperationException
+	 *                                           with the
+	 *                                           {@link StateStore.Backend#PERSISTENT}
+	 *                                           backend
+	 */
+	public static StateMirror open(StateStore store, Path file, int slots, int slotSize) throws IOException {
+		if (store.getBackend() == StateStore.Backend.PERSISTENT)
+			throw new UnsupportedOperationException("mirror needs a synchronized or concurrent backend");
+		if (slots <= 0 || slotSize < VALUE + 8 || (slotSize & 7) != 0)
+			throw new IllegalArgumentException("invalid slots " + slots + " or slot size " + slotSize);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		StateMirror mirror = new StateMirror(store, channel, slots, slotSize);
+		mirror.buffer.putInt(4, slots);
+		mirror.buffer.putInt(8, slotSize);
+		storeFence();
+		// readers check the magic last
+		mirror.buffer.putInt(0, MAGIC);
+		store.attach(mirror);
+		return mirror;
+	}
+
+	/**
+	 * Stops mirroring (the file keeps its last contents).
+	 */
+	@Override
+	public void close() throws IOException {
+		store.attach((StateMirror) null);
+		channel.close();
+	}
+
+	/**
+	 *
+	 * @return number of slots
+	 */
+	public int getSlots() {
+		return slots;
+	}
+
+	// calls below are made holding the monitor of the entry
+
+	/**
+	 * Gives an entry its slot and writes its name and current value.
+	 */
+	void assign(StateEntry entry, int index) {
+		if (index >= slots)
+			return;
+		int base = HEADER + index * slotSize;
+		entry.mirrorSlot = base;
+		entry.mirrorSeq = buffer.getLong(base + SEQUENCE);
+		entry.mirror = this;
+		long seq = begin(entry);
+		byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(name.length, NAME_BYTES);
+		for (int i = 0; i < length; i++)
+			buffer.put(base + NAME + i, name[i]);
+		buffer.putShort(base + NAME_LENGTH, (short) length);
+		end(entry, seq);
+		write(entry);
+	}
+
+	void setDouble(StateEntry entry, double value) {
+		int base = entry.mirrorSlot;
+		long seq = begin(entry);
+		buffer.putDouble(base + VALUE, value);
+		buffer.put(base + TYPE, DOUBLE);
+		end(entry, seq);
+	}
+
+	void setLong(StateEntry entry, long value) {
+		int base = entry.mirrorSlot;
+		long seq = begin(entry);
+		buffer.putLong(base + VALUE, value);
+		buffer.put(base + TYPE, LONG);
+		end(entry, seq);
+	}
+
+	/**
+	 * Mirrors a String (maps are not mirrored, null is a removal).
+	 */
+	void setObject(StateEntry entry, Object value) {
+		int base = entry.mirrorSlot;
+		long seq = begin(entry);
+		if (value instanceof String) {
+			int used = putUtf8(base + VALUE, (String) value, slotSize - VALUE);
+			buffer.putInt(base + USED, Math.abs(used));
+			buffer.put(base + FLAGS, used < 0 ? TRUNCATED : 0);
+			buffer.put(base + TYPE, STRING);
+		} else {
+			buffer.put(base + TYPE, NONE);
+		}
+		end(entry, seq);
+	}
+
+	/**
+	 * Mirrors the events of an entry after a message was added: appended to
+	 * the slot, after dropping the oldest events of the slot it does not leave
+	 * room for (and the one a bounded set or list evicted), so the cost does
+	 * not grow with the events held.
+	 */
+	@SuppressWarnings("unchecked")
+	void added(StateEntry entry, String message) {
+		int base = entry.mirrorSlot;
+		Collection<String> events = (Collection<String>) entry.value;
+		int size = events.size();
+		int length = 2 + utf8Length(message);
+		int room = slotSize - VALUE;
+		boolean evicted = size == entry.mirrorSize;
+		if (buffer.get(base + TYPE) != (events instanceof Set ? SET : LIST)
+				|| (size != entry.mirrorSize + 1 && !evicted) || length - 2 > Short.MAX_VALUE || length > room) {
+			write(entry);
+			return;
+		}
+		int count = buffer.getInt(base + COUNT);
+		int used = buffer.getInt(base + USED);
+		// the evicted event is the oldest of the slot when the slot holds all
+		int dropped = evicted && size == count ? 1 : 0;
+		int from = dropped > 0 ? 2 + eventLength(base + VALUE) : 0;
+		while (used - from + length > room) {
+			from += 2 + eventLength(base + VALUE + from);
+			dropped++;
+		}
+		long seq = begin(entry);
+		if (from > 0) {
+			// slide the window (forward copy, the regions may overlap)
+			for (int i = from; i < used; i++)
+				buffer.put(base + VALUE + i - from, buffer.get(base + VALUE + i));
+			used -= from;
+		}
+		putEvent(base + VALUE + used, message, room - used);
+		count += 1 - dropped;
+		buffer.putInt(base + USED, used + length);
+		buffer.putInt(base + COUNT, count);
+		buffer.put(base + FLAGS, count < size ? TRUNCATED : 0);
+		end(entry, seq);
+		entry.mirrorSize = size;
+	}
+
+	/**
+	 * Writes the whole value of an entry (after a drain, a removal or a capacity
+	 * change).
+	 */
+	@SuppressWarnings("unchecked")
+	void write(StateEntry entry) {
+		if (entry.kind == StateEntry.DOUBLE) {
+			setDouble(entry, entry.doubleValue);
+		} else if (entry.kind == StateEntry.LONG) {
+			setLong(entry, entry.longValue);
+		} else if (entry.value instanceof Collection) {
+			int base = entry.mirrorSlot;
+			Collection<String> events = (Collection<String>) entry.value;
+			List<String> all = new ArrayList<>(events);
+			int room = slotSize - VALUE;
+			// most recent events that fit
+			int from = all.size();
+			int size = 0;
+			while (from > 0 && size + 2 + utf8Length(all.get(from - 1)) <= room)
+				size += 2 + utf8Length(all.get(--from));
+			long seq = begin(entry);
+			int used = 0;
+			for (int i = from; i < all.size(); i++)
+				used += putEvent(base + VALUE + used, all.get(i), room - used);
+			buffer.putInt(base + USED, used);
+			buffer.putInt(base + COUNT, all.size() - from);
+			buffer.put(base + FLAGS, from > 0 ? TRUNCATED : 0);
+			buffer.put(base + TYPE, events instanceof Set ? SET : LIST);
+			end(entry, seq);
+			entry.mirrorSize = all.size();
+		} else {
+			setObject(entry, entry.value);
+		}
+	}
+
+	private long begin(StateEntry entry) {
+		long seq = entry.mirrorSeq;
+		buffer.putLong(entry.mirrorSlot + SEQUENCE, seq + 1L);
+		entry.mirrorSeq = seq + 1L;
+		storeFence();
+		return seq;
+	}
+
+	private void end(StateEntry entry, long seq) {
+		storeFence();
+		entry.mirrorSeq = seq + 2L;
+		buffer.putLong(entry.mirrorSlot + SEQUENCE, seq + 2L);
+	}
+
+	/**
+	 *
+	 * @return UTF-8 length of the event written at an offset
+	 */
+	private int eventLength(int index) {
+		return buffer.getShort(index) & 0xFFFF;
+	}
+
+	/**
+	 *
+	 * @return bytes written (length and UTF-8), 0 if it does not fit
+	 */
+	private int putEvent(int index, String message, int room) {
+		int length = utf8Length(message);
+		if (length > Short.MAX_VALUE || 2 + length > room)
+			return 0;
+		buffer.putShort(index, (short) length);
+		putUtf8(index + 2, message, length);
+		return 2 + length;
+	}
+
+	/**
+	 * Writes as much of a String as fits.
+	 *
+	 * @return bytes written (negated when truncated)
+	 */
+	private int putUtf8(int index, String s, int room) {
+		int n = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			int cp = c;
+			if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+				cp = Character.toCodePoint(c, s.charAt(++i));
+			int size = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+			if (n + size > room)
+				return -n;
+			switch (size) {
+			case 1:
+				buffer.put(index + n, (byte) cp);
+				break;
+			case 2:
+				buffer.put(index + n, (byte) (0xC0 | (cp >> 6)));
+				buffer.put(index + n + 1, (byte) (0x80 | (cp & 0x3F)));
+				break;
+			case 3:
+				buffer.put(index + n, (byte) (0xE0 | (cp >> 12)));
+				buffer.put(index + n + 1, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buffer.put(index + n + 2, (byte) (0x80 | (cp & 0x3F)));
+				break;
+			default:
+				buffer.put(index + n, (byte) (0xF0 | (cp >> 18)));
+				buffer.put(index + n + 1, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buffer.put(index + n + 2, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buffer.put(index + n + 3, (byte) (0x80 | (cp & 0x3F)));
+			}
+			n += size;
+		}
+		return n;
+	}
+
+	static void storeFence() {
+		UNSAFE.storeFence();
+	}
+
+	static void loadFence() {
+		UNSAFE.loadFence();
+	}
+
+	/**
+	 *
+	 * @return UTF-8 size of a String, without encoding it
+	 */
+	static int utf8Length(String s) {
+		int n = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				n++;
+			else if (c < 0x800)
+				n += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				n += 4;
+				i++;
+			} else
+				n += 3;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,172 @@
+package com.logicalis.la.state.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads a file written by {@link StateMirror}, usually from another process.
+ * Each slot is read without locking: the read is retried until the slot's
+ * sequence was even and unchanged around it, so every value is consistent
+ * (different slots may come from slightly different moments).
+ * <p>
+ * Not thread safe: use one reader per thread.
+ * </p>
+ */
+public final class StateMirrorReader implements Closeable {
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final int slots;
+	private final int slotSize;
+
+	// copy of the slot being read
+	private final ByteBuffer view;
+	private final byte[] slot;
+	private final ByteBuffer copy;
+
+	private long retries;
+
+	private StateMirrorReader(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()).order(ByteOrder.nativeOrder());
+		if (buffer.capacity() < StateMirror.HEADER || buffer.getInt(0) != StateMirror.MAGIC)
+			throw new IOException("not a state mirror");
+		StateMirror.loadFence();
+		this.slots = buffer.getInt(4);
+		this.slotSize = buffer.getInt(8);
+		if (StateMirror.HEADER + (long) slots * slotSize > buffer.capacity())
+			throw new IOException("truncated state mirror");
+		this.view = buffer.duplicate();
+		this.slot = new byte[slotSize];
+		this.copy = ByteBuffer.wrap(slot).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 *
+	 * @param file
+	 *                 file given to {@link StateMirror#open(StateStore, Path, int)}
+	 * @return a reader of it
+	 * @throws IOException
+	 *                         if it is not (yet) a state mirror
+	 */
+	public static StateMirrorReader open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			return new StateMirrorReader(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads every mirrored entry.
+	 *
+	 * @return entries by name: Double, Long, String, List or Set of String
+	 */
+	public Map<String, Object> read() {
+		Map<String, Object> state = new TreeMap<>();
+		for (int i = 0; i < slots; i++) {
+			byte type = snapshot(i);
+			if (type != StateMirror.NONE)
+				state.put(name(), value(type));
+		}
+		return state;
+	}
+
+	/**
+	 * Reads one slot.
+	 *
+	 * @param index
+	 *                  index of the registered key ({@link StateKey#getIndex()})
+	 * @return its value (null if not set or removed)
+	 */
+	public Object read(int index) {
+		if (index < 0 || index >= slots)
+			throw new IndexOutOfBoundsException("slot " + index + " of " + slots);
+		byte type = snapshot(index);
+		return type == StateMirror.NONE ? null : value(type);
+	}
+
+	/**
+	 *
+	 * @return number of slots
+	 */
+	public int getSlots() {
+		return slots;
+	}
+
+	/**
+	 *
+	 * @return reads retried because a writer was updating the slot
+	 */
+	public long getRetries() {
+		return retries;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Copies a slot under its sequence lock.
+	 *
+	 * @return type of the copied slot
+	 */
+	private byte snapshot(int index) {
+		int base = StateMirror.HEADER + index * slotSize;
+		int spins = 0;
+		while (true) {
+			long before = buffer.getLong(base + StateMirror.SEQUENCE);
+			if ((before & 1L) == 0L) {
+				StateMirror.loadFence();
+				view.position(base);
+				view.get(slot);
+				StateMirror.loadFence();
+				if (buffer.getLong(base + StateMirror.SEQUENCE) == before)
+					return slot[StateMirror.TYPE];
+			}
+			retries++;
+			if (++spins > 100)
+				Thread.yield();
+		}
+	}
+
+	private String name() {
+		int length = Math.min(copy.getShort(StateMirror.NAME_LENGTH), StateMirror.NAME_BYTES);
+		return new String(slot, StateMirror.NAME, length, StandardCharsets.UTF_8);
+	}
+
+	private Object value(byte type) {
+		switch (type) {
+		case StateMirror.DOUBLE:
+			return Double.valueOf(copy.getDouble(StateMirror.VALUE));
+		case StateMirror.LONG:
+			return Long.valueOf(copy.getLong(StateMirror.VALUE));
+		case StateMirror.STRING:
+			return new String(slot, StateMirror.VALUE, copy.getInt(StateMirror.USED), StandardCharsets.UTF_8);
+		default:
+			int count = copy.getInt(StateMirror.COUNT);
+			Collection<String> events = type == StateMirror.SET ? new LinkedHashSet<>() : new ArrayList<>(count);
+			int offset = StateMirror.VALUE;
+			for (int i = 0; i < count; i++) {
+				int length = copy.getShort(offset);
+				events.add(new String(slot, offset + 2, length, StandardCharsets.UTF_8));
+				offset += 2 + length;
+			}
+			return events;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package com.logicalis.la.state.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes state snapshots of a {@link StateStore} to subscribers, instead of
+ * having each consumer poll {@link StateStore#getState()} from a timer.
+ * <p>
+ * A dispatcher thread watches {@link StateStore#getVersion()} (a volatile
+ * read, and one increment when something was written) and delivers to a
+ * subscriber only when the state changed since its last snapshot, the
+ * subscriber has outstanding demand and its maximum rate allows it. One snapshot is taken per change and shared by every
+ * subscriber due at that moment; no snapshot is taken while nobody has demand.
+ * A subscriber that falls behind just gets the latest state when it asks
+ * again (conflation), never a backlog. Between deliveries the dispatcher
+ * parks until the earliest subscriber is due, or until the next write when a
+ * subscriber waits for one (the store wakes it).
+ * </p>
+ * <p>
+ * The snapshot is shared: it is unmodifiable, down to its nested maps, sets
+ * and lists.
+ * </p>
+ * <p>
+ * The publisher drains the store (getState() resets sets and lists), so it
+ * should be the only consumer of that store. Events drained while a
+ * subscriber was not due are not delivered to it.
+ * </p>
+ */
+public class StatePublisher implements AutoCloseable {
+
+	// how often the version of a persistent store is checked (its writes do
+	// not wake the dispatcher)
+	private static final long IDLE_NANOS = 1000000L;
+
+	// terminal signal of a completed subscription (failed ones hold the error)
+	private static final Object COMPLETE = new Object();
+
+	private final StateStore store;
+	private final Executor executor;
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	private final Thread dispatcher;
+	private volatile boolean closed;
+
+	// latest snapshot (dispatcher thread only)
+	private Map<String, Object> snapshot;
+	private long snapshotVersion = -1L;
+
+	/**
+	 * Delivers on the dispatcher thread: subscribers should hand heavy work
+	 * off.
+	 * 
+	 * @param store
+	 *                  store to be published
+	 */
+	public StatePublisher(StateStore store) {
+		this(store, Runnable::run);
+	}
+
+	/**
+	 * 
+	 * @param store
+	 *                     store to be published
+	 * @param executor
+	 *                     runs onNext calls (at most one in flight per
+	 *                     subscriber)
+	 */
+	public StatePublisher(StateStore store, Executor executor) {
+		this.store = store;
+		this.executor = executor;
+		this.dispatcher = new Thread(this::dispatch, "state-publisher");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * 
+	 * @param subscriber
+	 *                       receives the snapshots
+	 * @param maxRate
+	 *                       maximum snapshots per second for this subscriber
+	 * @return the subscription (also given to
+	 *         {@link StateSubscriber#onSubscribe(StateSubscription)})
+	 */
+	public StateSubscription subscribe(StateSubscriber subscriber, double maxRate) {
+		if (maxRate <= 0.0)
+			throw new IllegalArgumentException("maxRate must be positive");
+		Subscription subscription = new Subscription(subscriber, (long) (1e9 / maxRate));
+		subscriber.onSubscribe(subscription);
+		if (closed) {
+			subscriber.onComplete();
+		} else {
+			subscriptions.add(subscription);
+			LockSupport.unpark(dispatcher);
+		}
+		return subscription;
+	}
+
+	/**
+	 * Stops the dispatcher and completes every subscriber (right away, or once
+	 * the onNext call in flight for it returns).
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(dispatcher);
+		try {
+			dispatcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Subscription s : subscriptions) {
+			if (!s.cancelled)
+				s.terminate(COMPLETE);
+		}
+		subscriptions.clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void dispatch() {
+		while (!closed) {
+			long now = System.nanoTime();
+			// subscriptions, requests and the end of onNext calls unpark
+			long wait = Long.MAX_VALUE;
+			boolean waitsForWrite = false;
+			long version = store.getVersion();
+			for (Subscription s : subscriptions) {
+				if (s.cancelled) {
+					subscriptions.remove(s);
+					continue;
+				}
+				if (s.busy || s.demand.get() == 0L)
+					continue;
+				if (version <= s.delivered) {
+					waitsForWrite = true;
+					continue;
+				}
+				if (now < s.due) {
+					wait = Math.min(wait, s.due - now);
+					continue;
+				}
+				if (snapshotVersion < version) {
+					try {
+						Map<String, Object> state = store.getState();
+						// persistent snapshots are immutable already
+						snapshot = store.getBackend() == StateStore.Backend.PERSISTENT ? state
+								: (Map<String, Object>) unmodifiable(state);
+						snapshotVersion = version;
+					} catch (InvalidDataTypeException e) {
+						fail(e);
+						break;
+					}
+				}
+				deliver(s, now);
+			}
+			if (!waitsForWrite) {
+				LockSupport.parkNanos(this, wait);
+			} else {
+				if (store.getBackend() == StateStore.Backend.PERSISTENT)
+					wait = Math.min(wait, IDLE_NANOS);
+				store.awaitWrite(version, wait);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return an unmodifiable view of a state value, and of the maps, sets and
+	 *         lists it holds (the copies taken by getState(), changed in place)
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object unmodifiable(Object value) {
+		if (value instanceof Map) {
+			Map<String, Object> map = (Map<String, Object>) value;
+			for (Map.Entry<String, Object> e : map.entrySet())
+				e.setValue(unmodifiable(e.getValue()));
+			return Collections.unmodifiableMap(map);
+		}
+		if (value instanceof Set)
+			return Collections.unmodifiableSet((Set<Object>) value);
+		if (value instanceof List)
+			return Collections.unmodifiableList((List<Object>) value);
+		return value;
+	}
+
+	private void deliver(Subscription s, long now) {
+		if (s.demand.get() != Long.MAX_VALUE)
+			s.demand.decrementAndGet();
+		s.delivered = snapshotVersion;
+		s.due = now + s.interval;
+		s.busy = true;
+		Map<String, Object> state = snapshot;
+		executor.execute(() -> {
+			try {
+				if (!s.cancelled)
+					s.subscriber.onNext(state);
+			} catch (Throwable t) {
+				s.terminate(t);
+			} finally {
+				s.busy = false;
+				// a terminal signal raised meanwhile waited for this call
+				s.signal();
+				LockSupport.unpark(dispatcher);
+			}
+		});
+	}
+
+	private void fail(Throwable t) {
+		for (Subscription s : subscriptions) {
+			if (!s.cancelled)
+				s.terminate(t);
+		}
+		subscriptions.clear();
+	}
+
+	private final class Subscription implements StateSubscription {
+		final StateSubscriber subscriber;
+		// minimum nanos between two deliveries
+		final long interval;
+		final AtomicLong demand = new AtomicLong();
+
+		volatile boolean cancelled;
+		volatile boolean busy;
+		// onComplete (COMPLETE) or onError (the Throwable) to be called once,
+		// never while onNext runs
+		final AtomicReference<Object> terminal = new AtomicReference<>();
+		final AtomicBoolean signalled = new AtomicBoolean();
+		// dispatcher thread only
+		long delivered = -1L;
+		long due;
+
+		Subscription(StateSubscriber subscriber, long interval) {
+			this.subscriber = subscriber;
+			this.interval = interval;
+		}
+
+		/**
+		 * Ends the subscription: no onNext is started after this, and the
+		 * terminal signal is delivered now or by the onNext call in flight, once
+		 * it returns.
+		 */
+		void terminate(Object signal) {
+			cancelled = true;
+			terminal.compareAndSet(null, signal);
+			signal();
+		}
+
+		/**
+		 * Delivers the terminal signal, if any, unless onNext runs (busy and
+		 * terminal are both volatile: either this call or the one ending
+		 * onNext sees the other's write).
+		 */
+		void signal() {
+			Object signal = terminal.get();
+			if (signal == null || busy || !signalled.compareAndSet(false, true))
+				return;
+			if (signal == COMPLETE)
+				subscriber.onComplete();
+			else
+				subscriber.onError((Throwable) signal);
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0L) {
+				terminate(new IllegalArgumentException("request must be positive: " + n));
+				return;
+			}
+			long current;
+			long next;
+			do {
+				current = demand.get();
+				next = current + n < 0L ? Long.MAX_VALUE : current + n;
+			} while (!demand.compareAndSet(current, next));
+			LockSupport.unpark(dispatcher);
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+}
@@ -1,11 +1,37 @@
 package com.logicalis.la.state.core;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * 
@@ -15,30 +41,262 @@ import java.util.TreeMap;
  * Set or Map. Inner maps also are restricted to those data types.
  * </p>
  * <p>
- * All getters and setters are <i>synchronized</i> to avoid concurrency
- * exceptions. Since writes are expected to be much more frequent than reads,
- * read and write locks are pretty useless (like ReentrantReadWriteLock). In
- * current Java VM, <i>synchronized</i> methods for this scenario are almost as
- * fast as the new Java8 StampedLock. So ...
+ * With the default {@link Backend#SYNCHRONIZED} backend all getters and
+ * setters synchronize on the store to avoid concurrency exceptions. Since
+ * writes are expected to be much more frequent than reads, read and write
+ * locks are pretty useless (like ReentrantReadWriteLock). In current Java VM,
+ * <i>synchronized</i> methods for this scenario are almost as fast as the new
+ * Java8 StampedLock. So ...
+ * </p>
+ * <p>
+ * When many producer threads write at the same time, a store created with
+ * {@link Backend#CONCURRENT} keeps its entries in a concurrent sorted map and
+ * synchronizes on one of a fixed set of lock stripes chosen by the entry name,
+ * so producers writing different entries do not wait for each other and
+ * {@link #getState()} only holds one stripe at a time.
+ * </p>
+ * <p>
+ * A store created with {@link Backend#PERSISTENT} keeps its state as an
+ * immutable tree: writers publish new versions by path copying, and
+ * {@link #getState()} returns the current version as a read-only map instead
+ * of a deep copy, which makes frequent polling cheap.
+ * </p>
+ * <p>
+ * Writes that belong together (a position and its heading) go through
+ * {@link #update(Consumer)}: applied at once, as one update, with every
+ * backend.
  * </p>
  */
 public class StateStore {
 
-	// Singleton
-	private static StateStore _instance;
+	/**
+	 * How a store protects its entries from concurrent access.
+	 */
+	public enum Backend {
+		/**
+		 * One monitor (the store itself) for every operation. Snapshots are a
+		 * consistent cut of the whole state.
+		 */
+		SYNCHRONIZED,
+		/**
+		 * Concurrent sorted map plus striped monitors per entry name. Each entry
+		 * is copied (and its events reset) atomically, but a snapshot is not a
+		 * consistent cut across different entries (except for the entries of a
+		 * batch, see {@link StateStore#update(Consumer)}).
+		 */
+		CONCURRENT,
+		/**
+		 * Immutable persistent sorted map published by CAS. Writers never lock
+		 * and {@link StateStore#getState()} hands out the current version without
+		 * copying anything (maps given to {@link StateStore#set(String, Map)} are
+		 * copied once, when they are set).
+		 */
+		PERSISTENT
+	}
+
+	/**
+	 * How the numeric values written to an entry between two drains
+	 * ({@link StateStore#getState()}, {@link StateStore#getChangesSince(long)}
+	 * or a JSON snapshot) become the value it reports. Aggregates are kept in
+	 * primitive fields of the entry and reported as Double (Long for COUNT).
+	 */
+	public enum Reducer {
+		/**
+		 * Last value written (the default).
+		 */
+		LAST,
+		/**
+		 * Smallest value of the interval (the previous one while nothing is
+		 * written).
+		 */
+		MIN,
+		/**
+		 * Largest value of the interval (the previous one while nothing is
+		 * written).
+		 */
+		MAX,
+		/**
+		 * Sum of the interval (0 when nothing is written).
+		 */
+		SUM,
+		/**
+		 * Number of values written in the interval.
+		 */
+		COUNT,
+		/**
+		 * Average of the interval (the previous one while nothing is written).
+		 */
+		MEAN,
+		/**
+		 * Exponentially weighted moving average, never reset.
+		 */
+		EWMA
+	}
+
+	/**
+	 * What happens to an event added to a set or list that reached its
+	 * capacity. Every event lost is reported in the <code>_dropped</code> map of
+	 * the next snapshot.
+	 */
+	public enum Overflow {
+		/**
+		 * The oldest event is evicted to make room.
+		 */
+		DROP_OLDEST,
+		/**
+		 * The new event is discarded.
+		 */
+		DROP_NEWEST,
+		/**
+		 * The new event is discarded and addToSet/addToList throws
+		 * IllegalStateException.
+		 */
+		REJECT
+	}
+
+	/**
+	 * Which numeric writes the history of an entry keeps (see
+	 * {@link StateStore#setHistory(String, int, Sampling, int)}). Samples are
+	 * taken in buckets of <i>factor</i> consecutive writes.
+	 */
+	public enum Sampling {
+		/**
+		 * Every write (the factor is ignored).
+		 */
+		ALL,
+		/**
+		 * The first write of each bucket.
+		 */
+		EVERY,
+		/**
+		 * The smallest value of each bucket.
+		 */
+		MIN,
+		/**
+		 * The largest value of each bucket.
+		 */
+		MAX,
+		/**
+		 * The smallest and the largest values of each bucket, in the order they
+		 * were written (two samples per bucket).
+		 */
+		MIN_MAX
+	}
+
+	// smoothing factor of EWMA when none is given
+	public static final double DEFAULT_ALPHA = 0.2;
+
+	// number of lock stripes used by the concurrent backend (power of two)
+	private static final int STRIPES = 64;
+
+	// how often entries with a time to live are checked for expiry
+	public static final long EXPIRY_RESOLUTION_MILLIS = 10L;
+
+	// events an unbounded set or list holds between two drains while
+	// registered consumers read the events
+	public static final int UNDRAINED_EVENTS_LIMIT = 10000;
+
+	// name of the store returned by getInstance()
+	public static final String DEFAULT_NAME = "default";
+
+	// named stores (the singleton is the one named DEFAULT_NAME)
+	private static final ConcurrentMap<String, StateStore> _instances = new ConcurrentHashMap<>();
 
 	// state values
-	private Map<String, Object> _map;
+	private final Map<String, StateEntry> _map;
+
+	// entries by name for reads that do not lock: _map itself when it is
+	// concurrent, a concurrent copy otherwise (entries are never removed)
+	private final Map<String, StateEntry> index;
+
+	// striped monitors (null when a single monitor is used)
+	private final Object[] stripes;
+
+	// concurrent backend: batches hold the read lock and drains the write lock,
+	// so a snapshot sees all of a batch or none of it
+	private final ReentrantReadWriteLock batches;
+
+	// batches reused by their thread
+	private static final ThreadLocal<StateBatch> BATCHES = ThreadLocal.withInitial(StateBatch::new);
 
-	// how many updates since last getState() call
-	private int updateCount = 0;
+	// immutable state (only for the persistent backend)
+	private final PersistentState persistent;
+
+	// how many updates ever (a drain reports those since the previous one),
+	// striped so that writers of different entries do not share a counter
+	private final LongAdder updateCount = new LongAdder();
+
+	// version stamped on entries by writes and removals: readers move it on
+	// (see takeVersion()) only when something was written since, so writers
+	// just read it
+	private final AtomicLong version = new AtomicLong(1L);
+
+	// whether an entry was stamped with the current version
+	private volatile boolean dirty;
+
+	// thread waiting in awaitWrite(), woken by the write that flags the state
+	// dirty
+	private volatile Thread writeWaiter;
+
+	// since of the last getChangesSince() call (MAX_VALUE before the first
+	// one): removals up to it are no longer needed (guarded by drains)
+	private volatile long deltaSince = Long.MAX_VALUE;
+
+	// highest version of a removal purged (older deltas are resynchronized)
+	private final AtomicLong purged = new AtomicLong();
+
+	// names of entries with a reducer other than LAST or a history: every
+	// numeric write counts
+	private final Set<String> sampled = ConcurrentHashMap.newKeySet();
+
+	// events lost by bounded sets and lists since the last drain, by entry name
+	private final ConcurrentMap<String, AtomicLong> dropped = new ConcurrentHashMap<>();
+
+	// registered entries by name
+	private final Map<String, StateKey> keys = new HashMap<>();
+
+	// shared memory mirror of registered entries (guarded by keys)
+	private StateMirror mirror;
+
+	// reusable JSON buffers (guarded by itself)
+	private final JsonStateWriter json = new JsonStateWriter();
+
+	private final StoreMetrics metrics = new StoreMetrics();
+
+	// events read by registered consumers (null when there are none)
+	private volatile EventLog events;
+
+	// cursors of registered consumers, by id (guarded by itself when
+	// registering)
+	private final ConcurrentMap<String, EventLog.Cursor> consumers = new ConcurrentHashMap<>();
+
+	// updates already reported by drains (updateCount only grows)
+	private final AtomicLong drainedUpdates = new AtomicLong();
+
+	// write-ahead journal (null when not durable)
+	private volatile StateJournal journal;
 
 	/**
 	 * 
 	 */
-	private StateStore() {
-		// ordered map (because we like ordered attributes)
-		_map = new TreeMap<>();
+	private StateStore(Backend backend) {
+		persistent = backend == Backend.PERSISTENT ? new PersistentState() : null;
+		if (backend == Backend.CONCURRENT) {
+			// concurrent and still ordered
+			_map = new ConcurrentSkipListMap<>();
+			stripes = new Object[STRIPES];
+			for (int i = 0; i < STRIPES; i++)
+				stripes[i] = new Object();
+			batches = new ReentrantReadWriteLock();
+			index = _map;
+
+		} else {
+			// ordered map (because we like ordered attributes)
+			_map = new TreeMap<>();
+			stripes = null;
+			batches = null;
+			index = new ConcurrentHashMap<>();
+		}
 	}
 
 	/**
@@ -46,9 +304,121 @@ public class StateStore {
 	 * @return instance of StateStore
 	 */
 	public static StateStore getInstance() {
-		if (_instance == null)
-			_instance = new StateStore();
-		return _instance;
+		return getInstance(DEFAULT_NAME);
+	}
+
+	/**
+	 * Named store (created with the {@link Backend#SYNCHRONIZED} backend on
+	 * first use). Each named store has its own entries, monitors and counters,
+	 * e.g. one store per device of a fleet.
+	 * 
+	 * @param name
+	 *                 name of the store
+	 * @return instance of StateStore
+	 */
+	public static StateStore getInstance(String name) {
+		return getInstance(name, Backend.SYNCHRONIZED);
+	}
+
+	/**
+	 * Named store.
+	 * 
+	 * @param name
+	 *                    name of the store
+	 * @param backend
+	 *                    backend used if the store does not exist yet
+	 * @return instance of StateStore
+	 */
+	public static StateStore getInstance(String name, Backend backend) {
+		StateStore store = _instances.get(name);
+		if (store == null)
+			store = _instances.computeIfAbsent(name, n -> new StateStore(backend));
+		return store;
+	}
+
+	/**
+	 * Forgets a named store (it keeps working for whoever still holds it).
+	 * 
+	 * @param name
+	 *                 name of the store
+	 * @return the removed store, or null when there was none
+	 */
+	public static StateStore removeInstance(String name) {
+		return _instances.remove(name);
+	}
+
+	/**
+	 * 
+	 * @return names of all named stores, ordered
+	 */
+	public static Set<String> getInstanceNames() {
+		return new TreeSet<>(_instances.keySet());
+	}
+
+	/**
+	 * Fleet snapshot: calls {@link #getState()} on every named store, in
+	 * parallel (common fork/join pool).
+	 * 
+	 * @return state of each store, by store name (ordered)
+	 * @throws InvalidDataTypeException
+	 */
+	public static Map<String, Map<String, Object>> getStates() throws InvalidDataTypeException {
+		return getStates(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Fleet snapshot: calls {@link #getState()} on every named store, in
+	 * parallel.
+	 * 
+	 * @param executor
+	 *                     runs the snapshots
+	 * @return state of each store, by store name (ordered)
+	 * @throws InvalidDataTypeException
+	 */
+	public static Map<String, Map<String, Object>> getStates(Executor executor) throws InvalidDataTypeException {
+		Map<String, CompletableFuture<Map<String, Object>>> futures = new TreeMap<>();
+		for (Map.Entry<String, StateStore> e : _instances.entrySet()) {
+			StateStore store = e.getValue();
+			futures.put(e.getKey(), CompletableFuture.supplyAsync(() -> {
+				try {
+					return store.getState();
+				} catch (InvalidDataTypeException ex) {
+					throw new CompletionException(ex);
+				}
+			}, executor));
+		}
+		Map<String, Map<String, Object>> states = new TreeMap<>();
+		for (Map.Entry<String, CompletableFuture<Map<String, Object>>> e : futures.entrySet()) {
+			try {
+				states.put(e.getKey(), e.getValue().join());
+			} catch (CompletionException ex) {
+				if (ex.getCause() instanceof InvalidDataTypeException)
+					throw (InvalidDataTypeException) ex.getCause();
+				throw ex;
+			}
+		}
+		return states;
+	}
+
+	/**
+	 * Creates a new, independent store (not the singleton, nor a named store).
+	 * 
+	 * @param backend
+	 *                    how entries are protected from concurrent access
+	 * @return a new empty StateStore
+	 */
+	public static StateStore create(Backend backend) {
+		return new StateStore(backend);
+	}
+
+	/**
+	 * 
+	 * @return the backend chosen when this store was created
+	 */
+	public Backend getBackend() {
+		if (persistent != null)
+			return Backend.PERSISTENT;
+		return stripes == null ? Backend.SYNCHRONIZED : Backend.CONCURRENT;
 	}
 
 	/**
@@ -59,9 +429,8 @@ public class StateStore {
 	 * @param value
 	 *                  value of state entry
 	 */
-	public synchronized void set(String name, String value) {
-		_map.put(name, value);
-		updateCount++;
+	public void set(String name, String value) {
+		put(name, value);
 	}
 
 	/**
@@ -72,9 +441,35 @@ public class StateStore {
 	 * @param value
 	 *                  value of state entry
 	 */
-	public synchronized void set(String name, Double value) {
-		_map.put(name, value);
-		updateCount++;
+	public void set(String name, Double value) {
+		if (value == null)
+			put(name, value);
+		else
+			set(name, value.doubleValue());
+	}
+
+	/**
+	 * Sets a 'floating point' value without boxing it: the entry keeps a
+	 * primitive slot updated in place (except with the
+	 * {@link Backend#PERSISTENT} backend, which boxes).
+	 * 
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  value of state entry
+	 */
+	public void set(String name, double value) {
+		if (persistent != null) {
+			persistent.put(name, Double.valueOf(value));
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (monitor(name)) {
+			long acquired = metrics.lockAcquired(start);
+			writeDouble(entry(name), value);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
 	}
 
 	/**
@@ -85,9 +480,35 @@ public class StateStore {
 	 * @param value
 	 *                  value of state entry
 	 */
-	public synchronized void set(String name, Long value) {
-		_map.put(name, value);
-		updateCount++;
+	public void set(String name, Long value) {
+		if (value == null)
+			put(name, value);
+		else
+			set(name, value.longValue());
+	}
+
+	/**
+	 * Sets a 'integer' value without boxing it: the entry keeps a primitive
+	 * slot updated in place (except with the {@link Backend#PERSISTENT}
+	 * backend, which boxes).
+	 * 
+	 * @param name
+	 *                  name of entry
+	 * @param value
+	 *                  value of state entry
+	 */
+	public void set(String name, long value) {
+		if (persistent != null) {
+			persistent.put(name, Long.valueOf(value));
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (monitor(name)) {
+			long acquired = metrics.lockAcquired(start);
+			writeLong(entry(name), value);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
 	}
 
 	/**
@@ -97,10 +518,27 @@ public class StateStore {
 	 *                  name of entry
 	 * @param value
 	 *                  map of state entry
+	 * @throws IllegalArgumentException
+	 *                                      with the {@link Backend#PERSISTENT}
+	 *                                      backend, when the map holds an
+	 *                                      invalid data type
 	 */
-	public synchronized void set(String name, Map<String, ?> value) {
-		_map.put(name, value);
-		updateCount++;
+	public void set(String name, Map<String, ?> value) {
+		put(name, value);
+	}
+
+	private void put(String name, Object value) {
+		if (persistent != null) {
+			persistent.put(name, value);
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (monitor(name)) {
+			long acquired = metrics.lockAcquired(start);
+			writeObject(entry(name), value);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
 	}
 
 	/**
@@ -111,14 +549,18 @@ public class StateStore {
 	 * @param message
 	 *                    message to be appended to state entry
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized void addToSet(String event, String message) {
-		Object events = _map.get(event);
-		if (events == null || !(events instanceof HashSet<?>))
-			events = new HashSet<>();
-		((Set<String>) events).add(message);
-		_map.put(event, events);
-		updateCount++;
+	public void addToSet(String event, String message) {
+		if (persistent != null) {
+			persistent.addToSet(event, message);
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (monitor(event)) {
+			long acquired = metrics.lockAcquired(start);
+			appendToSet(entry(event), message);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
 	}
 
 	/**
@@ -129,61 +571,2372 @@ public class StateStore {
 	 * @param message
 	 *                    message to be appended to state entry
 	 */
+	public void addToList(String event, String message) {
+		if (persistent != null) {
+			persistent.addToList(event, message);
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (monitor(event)) {
+			long acquired = metrics.lockAcquired(start);
+			appendToList(entry(event), message);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
+	}
+
+	/**
+	 * Registers an entry for hot-path writes through a handle. Registering the
+	 * same name again returns the same handle.
+	 * 
+	 * @param name
+	 *                 name of entry
+	 * @param type
+	 *                 kind of value the entry holds
+	 * @return handle to be used with set(StateKey, ...), addToSet(StateKey,
+	 *         String) or addToList(StateKey, String)
+	 * @throws IllegalArgumentException
+	 *                                      if the name is already registered with
+	 *                                      another type
+	 */
+	public StateKey register(String name, StateKey.Type type) {
+		synchronized (keys) {
+			StateKey key = keys.get(name);
+			if (key != null) {
+				if (key.type != type)
+					throw new IllegalArgumentException(name + " is already registered as " + key.type);
+				return key;
+			}
+			StateEntry entry = null;
+			Object monitor = null;
+			if (persistent == null) {
+				monitor = monitor(name);
+				synchronized (monitor) {
+					entry = entry(name);
+					entry.pinned = true;
+				}
+			}
+			key = new StateKey(this, name, type, keys.size(), entry, monitor);
+			keys.put(name, key);
+			if (mirror != null) {
+				synchronized (monitor) {
+					mirror.assign(entry, key.index);
+				}
+			}
+			return key;
+		}
+	}
+
+	/**
+	 * Sets a 'floating point' value of a registered entry
+	 * 
+	 * @param key
+	 *                  handle of a {@link StateKey.Type#DOUBLE} entry
+	 * @param value
+	 *                  value of state entry
+	 */
+	public void set(StateKey key, double value) {
+		check(key, StateKey.Type.DOUBLE);
+		if (key.entry == null) {
+			set(key.name, value);
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (key.monitor) {
+			long acquired = metrics.lockAcquired(start);
+			writeDouble(key.entry, value);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
+	}
+
+	/**
+	 * Sets a 'integer' value of a registered entry
+	 * 
+	 * @param key
+	 *                  handle of a {@link StateKey.Type#LONG} entry
+	 * @param value
+	 *                  value of state entry
+	 */
+	public void set(StateKey key, long value) {
+		check(key, StateKey.Type.LONG);
+		if (key.entry == null) {
+			set(key.name, value);
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (key.monitor) {
+			long acquired = metrics.lockAcquired(start);
+			writeLong(key.entry, value);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
+	}
+
+	/**
+	 * Sets a 'string' value of a registered entry
+	 * 
+	 * @param key
+	 *                  handle of a {@link StateKey.Type#STRING} entry
+	 * @param value
+	 *                  value of state entry
+	 */
+	public void set(StateKey key, String value) {
+		check(key, StateKey.Type.STRING);
+		if (key.entry == null) {
+			set(key.name, value);
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (key.monitor) {
+			long acquired = metrics.lockAcquired(start);
+			writeObject(key.entry, value);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
+	}
+
+	/**
+	 * Add a message to a registered set (avoid duplicates).
+	 * 
+	 * @param key
+	 *                    handle of a {@link StateKey.Type#SET} entry
+	 * @param message
+	 *                    message to be appended to state entry
+	 */
+	public void addToSet(StateKey key, String message) {
+		check(key, StateKey.Type.SET);
+		if (key.entry == null) {
+			addToSet(key.name, message);
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (key.monitor) {
+			long acquired = metrics.lockAcquired(start);
+			appendToSet(key.entry, message);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
+	}
+
+	/**
+	 * Add a message to a registered list.
+	 * 
+	 * @param key
+	 *                    handle of a {@link StateKey.Type#LIST} entry
+	 * @param message
+	 *                    message to be appended to state entry
+	 */
+	public void addToList(StateKey key, String message) {
+		check(key, StateKey.Type.LIST);
+		if (key.entry == null) {
+			addToList(key.name, message);
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (key.monitor) {
+			long acquired = metrics.lockAcquired(start);
+			appendToList(key.entry, message);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
+	}
+
+	private void check(StateKey key, StateKey.Type type) {
+		if (key.store != this)
+			throw new IllegalArgumentException(key.name + " is registered in another store");
+		if (key.type != type)
+			throw new IllegalArgumentException(key.name + " is registered as " + key.type);
+	}
+
+	// writes below are called holding the monitor of the entry (callers count
+	// the update); the journal comes first, so a failing one leaves the entry
+	// untouched
+
+	private void writeDouble(StateEntry entry, double value) {
+		StateJournal j = journal;
+		if (j != null)
+			j.setDouble(entry, value);
+		entry.setDouble(value);
+		written(entry);
+		if (entry.mirror != null)
+			entry.mirror.setDouble(entry, value);
+		if (entry.history != null)
+			entry.history.add(System.nanoTime(), value);
+	}
+
+	private void writeLong(StateEntry entry, long value) {
+		StateJournal j = journal;
+		if (j != null)
+			j.setLong(entry, value);
+		entry.setLong(value);
+		written(entry);
+		if (entry.mirror != null)
+			entry.mirror.setLong(entry, value);
+		if (entry.history != null)
+			entry.history.add(System.nanoTime(), value);
+	}
+
+	private void writeObject(StateEntry entry, Object value) {
+		StateJournal j = journal;
+		if (j != null)
+			j.setObject(entry, value);
+		entry.setObject(value);
+		written(entry);
+		if (entry.mirror != null)
+			entry.mirror.setObject(entry, value);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void appendToSet(StateEntry entry, String message) {
+		if (!(entry.value instanceof HashSet<?> || entry.value instanceof EventSet))
+			entry.setObject(entry.capacity > 0 ? new EventSet(entry.capacity) : new HashSet<>());
+		Set<String> set = (Set<String>) entry.value;
+		if (!set.contains(message)) {
+			if (!admit(entry, set)) {
+				entry.counted();
+				return;
+			}
+			StateJournal j = journal;
+			if (j != null)
+				j.addToSet(entry, message);
+			set.add(message);
+			entry.version = stamp();
+			if (entry.mirror != null)
+				entry.mirror.added(entry, message);
+		}
+		logged(entry, message);
+	}
+
 	@SuppressWarnings("unchecked")
-	public synchronized void addToList(String event, String message) {
-		Object events = _map.get(event);
-		if (events == null || !(events instanceof ArrayList<?>))
-			events = new ArrayList<>();
-		List<String> list = (List<String>) events;
+	private void appendToList(StateEntry entry, String message) {
+		if (!(entry.value instanceof ArrayList<?> || entry.value instanceof EventRing))
+			entry.setObject(entry.capacity > 0 ? new EventRing(entry.capacity) : new ArrayList<>());
+		List<String> list = (List<String>) entry.value;
 		// append only if last element differs
-		if (list.isEmpty() || !list.get(list.size() - 1).equals(message))
+		if (list.isEmpty() || !list.get(list.size() - 1).equals(message)) {
+			if (!admit(entry, list)) {
+				entry.counted();
+				return;
+			}
+			StateJournal j = journal;
+			if (j != null)
+				j.addToList(entry, message);
 			list.add(message);
-		_map.put(event, list);
-		updateCount++;
+			entry.version = stamp();
+			if (entry.mirror != null)
+				entry.mirror.added(entry, message);
+		}
+		logged(entry, message);
 	}
 
 	/**
-	 * Removes an entry from state.
+	 * Counts an event, handing it to the consumers' log (even when the set or
+	 * list already ends with it: each consumer drops repeats since its own last
+	 * read).
+	 */
+	private void logged(StateEntry entry, String message) {
+		EventLog log = events;
+		if (log != null)
+			log.append(entry.name, message);
+		entry.counted();
+		if (entry.ttl != 0L)
+			refresh(entry);
+	}
+
+	/**
+	 * Makes room for a new event in a bounded set or list, as told by its
+	 * {@link Overflow} policy.
 	 * 
-	 * @param name
-	 *                 entry key to be removed.
+	 * @return false when the event is to be discarded
+	 * @throws IllegalStateException
+	 *                                   when full and the policy is
+	 *                                   {@link Overflow#REJECT}
+	 */
+	private boolean admit(StateEntry entry, Collection<String> events) {
+		if (entry.capacity == 0) {
+			if (events.size() >= UNDRAINED_EVENTS_LIMIT && this.events != null)
+				discard(entry, events);
+			return true;
+		}
+		if (events.size() < entry.capacity)
+			return true;
+		dropped.get(entry.name).incrementAndGet();
+		switch (entry.overflow) {
+		case DROP_OLDEST:
+			removeFirst(events);
+			return true;
+		case DROP_NEWEST:
+			return false;
+		default:
+			throw new IllegalStateException(entry.name + " is full (" + entry.capacity + " events)");
+		}
+	}
+
+	/**
+	 * Empties an unbounded set or list that grew to
+	 * {@link #UNDRAINED_EVENTS_LIMIT} while registered consumers read the
+	 * events (getState() may never be called then), counting its events as
+	 * dropped.
+	 */
+	private void discard(StateEntry entry, Collection<String> events) {
+		StateJournal j = journal;
+		if (j != null)
+			j.reset(entry);
+		dropped.computeIfAbsent(entry.name, name -> new AtomicLong()).addAndGet(events.size());
+		events.clear();
+	}
+
+	private void written(StateEntry entry) {
+		entry.version = stamp();
+		entry.counted();
+		if (entry.ttl != 0L)
+			refresh(entry);
+	}
+
+	/**
+	 * Moves the deadline of an entry with a time to live, scheduling its timer
+	 * when it has none (a timer already in the wheel is moved when its slot
+	 * comes).
+	 */
+	private void refresh(StateEntry entry) {
+		entry.deadline = System.nanoTime() + entry.ttl;
+		if (entry.timer == null) {
+			entry.timer = new ExpiryWheel.Timer(this, entry);
+			ExpiryWheel.shared().schedule(entry.timer, entry.deadline);
+		}
+	}
+
+	/**
+	 * Removes the entry of a due timer, unless it was written since (the timer
+	 * is then scheduled for the new deadline), removed or given another time to
+	 * live. Called by the expiry thread.
+	 * 
+	 * @param timer
+	 *                  timer taken out of the wheel
+	 * @param now
+	 *                  current {@link System#nanoTime()}
 	 */
-	public synchronized void remove(String name) {
-		_map.remove(name);
+	void expire(ExpiryWheel.Timer timer, long now) {
+		StateEntry entry = timer.entry;
+		synchronized (monitor(entry.name)) {
+			if (entry.timer != timer)
+				return;
+			if (entry.deadline - now > 0L) {
+				ExpiryWheel.shared().schedule(timer, entry.deadline);
+				return;
+			}
+			entry.timer = null;
+			removeEntry(entry);
+		}
 	}
 
 	/**
+	 * Sets how numeric writes to an entry are combined between two drains.
+	 * Applies from the next write on; string and map writes still replace the
+	 * value (and restart the aggregation).
 	 * 
-	 * @return a copy of state map (as an immutable map)
-	 * @throws InvalidDataTypeException
+	 * @param name
+	 *                    name of entry
+	 * @param reducer
+	 *                    how values are combined ({@link Reducer#EWMA} uses
+	 *                    {@link #DEFAULT_ALPHA})
+	 * @throws UnsupportedOperationException
+	 *                                           with the
+	 *                                           {@link Backend#PERSISTENT}
+	 *                                           backend
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized Map<String, Object> getState() throws InvalidDataTypeException {
-		TreeMap<String, Object> map = (TreeMap<String, Object>) _map;
-		map.put("_updates", new Long(updateCount));
-		updateCount = 0;
+	public void setReducer(String name, Reducer reducer) {
+		setReducer(name, reducer, DEFAULT_ALPHA);
+	}
 
-		Map<String, Object> immutableMap = (Map<String, Object>) DeepCopier.clone(_map);
-		resetEvents(_map);
-		return immutableMap;
+	/**
+	 * Same as {@link #setReducer(String, Reducer)}, with the smoothing factor of
+	 * {@link Reducer#EWMA}.
+	 * 
+	 * @param name
+	 *                    name of entry
+	 * @param reducer
+	 *                    how values are combined
+	 * @param alpha
+	 *                    weight of each new value (0 &lt; alpha &lt;= 1)
+	 */
+	public void setReducer(String name, Reducer reducer, double alpha) {
+		if (persistent != null)
+			throw new UnsupportedOperationException("reducers need a synchronized or concurrent backend");
+		if (!(alpha > 0.0 && alpha <= 1.0))
+			throw new IllegalArgumentException("alpha must be in (0, 1]: " + alpha);
+		synchronized (monitor(name)) {
+			StateEntry entry = entry(name);
+			entry.reduce(reducer, alpha);
+			sampled(entry);
+		}
 	}
 
 	/**
-	 * Empties all lists, sets or maps inside the state.
 	 * 
-	 * @param map
-	 *                the state map or any inner map entry
+	 * @param name
+	 *                 name of entry
+	 * @return true when numeric writes to the entry are aggregated or kept in
+	 *         its history (so none can be skipped)
 	 */
-	@SuppressWarnings("rawtypes")
-	private void resetEvents(Map map) {
-		for (Object key : map.keySet()) {
-			Object value = map.get(key);
-			if (Set.class.isInstance(value)) {
-				((Set) value).clear();
+	boolean isSampled(String name) {
+		return sampled.contains(name);
+	}
+
+	private void sampled(StateEntry entry) {
+		if (entry.reducer != Reducer.LAST || entry.history != null)
+			sampled.add(entry.name);
+		else
+			sampled.remove(entry.name);
+	}
+
+	private static void removeFirst(Collection<String> events) {
+		if (events instanceof EventRing)
+			((EventRing) events).removeFirst();
+		else
+			((EventSet) events).removeFirst();
+	}
 
-			} else if (List.class.isInstance(value)) {
-				((List) value).clear();
+	/**
+	 * Bounds the set or list of an entry: its events are kept in storage
+	 * allocated once for that many events, and the events lost are reported in
+	 * the <code>_dropped</code> map of the next snapshot (only present when
+	 * something was lost). Current events beyond the capacity are dropped
+	 * right away.
+	 * 
+	 * @param event
+	 *                     name of entries set or list
+	 * @param capacity
+	 *                     maximum number of events between two drains
+	 * @param overflow
+	 *                     what to do with events beyond the capacity
+	 * @throws UnsupportedOperationException
+	 *                                           with the
+	 *                                           {@link Backend#PERSISTENT}
+	 *                                           backend
+	 */
+	@SuppressWarnings("unchecked")
+	public void setCapacity(String event, int capacity, Overflow overflow) {
+		if (persistent != null)
+			throw new UnsupportedOperationException("bounded events need a synchronized or concurrent backend");
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		dropped.putIfAbsent(event, new AtomicLong());
+		synchronized (monitor(event)) {
+			StateEntry entry = entry(event);
+			entry.capacity = capacity;
+			entry.overflow = overflow;
+			if (entry.value instanceof Collection) {
+				Collection<String> bounded = entry.value instanceof Set ? new EventSet(capacity) : new EventRing(capacity);
+				for (String message : (Collection<String>) entry.value) {
+					if (bounded.size() == capacity) {
+						dropped.get(event).incrementAndGet();
+						if (overflow != Overflow.DROP_OLDEST)
+							continue;
+						removeFirst(bounded);
+					}
+					bounded.add(message);
+				}
+				entry.value = bounded;
+				if (entry.mirror != null)
+					entry.mirror.write(entry);
 			}
 		}
 	}
+
+	/**
+	 * Keeps the last numeric values written to an entry, with the time of each
+	 * write, for {@link #getHistory(String, long)}.
+	 * 
+	 * @param name
+	 *                     name of entry
+	 * @param capacity
+	 *                     number of samples kept (0 stops keeping them)
+	 * @throws UnsupportedOperationException
+	 *                                           with the
+	 *                                           {@link Backend#PERSISTENT}
+	 *                                           backend
+	 */
+	public void setHistory(String name, int capacity) {
+		setHistory(name, capacity, Sampling.ALL, 1);
+	}
+
+	/**
+	 * Keeps the last numeric values written to an entry (downsampled), with the
+	 * time of each write, for {@link #getHistory(String, long)}. The samples
+	 * live in primitive arrays allocated here, once: writes do not allocate,
+	 * and the oldest samples are overwritten. Replaces the current history, if
+	 * any. Only writes of the entry itself are sampled: leaves of its map
+	 * written through paths keep their own (see
+	 * {@link #setHistory(String[], int, Sampling, int)}). Samples are neither
+	 * journaled nor part of snapshots.
+	 * 
+	 * @param name
+	 *                     name of entry
+	 * @param capacity
+	 *                     number of samples kept (0 stops keeping them)
+	 * @param sampling
+	 *                     which writes become samples
+	 * @param factor
+	 *                     number of writes of each sampling bucket
+	 * @throws UnsupportedOperationException
+	 *                                           with the
+	 *                                           {@link Backend#PERSISTENT}
+	 *                                           backend
+	 */
+	public void setHistory(String name, int capacity, Sampling sampling, int factor) {
+		HistoryRing history = history(capacity, sampling, factor);
+		synchronized (monitor(name)) {
+			StateEntry entry = entry(name);
+			entry.history = history;
+			sampled(entry);
+		}
+	}
+
+	/**
+	 * Keeps the last numeric values written to a leaf of a map entry through
+	 * its path (see {@link #setHistory(String, int)}).
+	 * 
+	 * @param path
+	 *                     entry name followed by nested map keys
+	 * @param capacity
+	 *                     number of samples kept (0 stops keeping them)
+	 */
+	public void setHistory(String[] path, int capacity) {
+		setHistory(path, capacity, Sampling.ALL, 1);
+	}
+
+	/**
+	 * Keeps the last numeric values written to a leaf of a map entry through
+	 * its path, by set(String[], double), set(String[], long) or a batch (see
+	 * {@link #setHistory(String, int, Sampling, int)}). Writes of the whole map
+	 * with set(String, Map) are not sampled.
+	 * 
+	 * @param path
+	 *                     entry name followed by nested map keys
+	 * @param capacity
+	 *                     number of samples kept (0 stops keeping them)
+	 * @param sampling
+	 *                     which writes become samples
+	 * @param factor
+	 *                     number of writes of each sampling bucket
+	 * @throws UnsupportedOperationException
+	 *                                           with the
+	 *                                           {@link Backend#PERSISTENT}
+	 *                                           backend
+	 */
+	public void setHistory(String[] path, int capacity, Sampling sampling, int factor) {
+		if (path.length == 1) {
+			setHistory(path[0], capacity, sampling, factor);
+			return;
+		}
+		HistoryRing history = history(capacity, sampling, factor);
+		checkPath(path);
+		synchronized (monitor(path[0])) {
+			StateEntry entry = entry(path[0]);
+			int k = leafHistory(entry, path);
+			if (k >= 0 && history != null) {
+				entry.leafHistories[k] = history;
+			} else if (k >= 0) {
+				int n = entry.historyPaths.length - 1;
+				if (n == 0) {
+					entry.historyPaths = null;
+					entry.leafHistories = null;
+				} else {
+					entry.historyPaths[k] = entry.historyPaths[n];
+					entry.leafHistories[k] = entry.leafHistories[n];
+					entry.historyPaths = Arrays.copyOf(entry.historyPaths, n);
+					entry.leafHistories = Arrays.copyOf(entry.leafHistories, n);
+				}
+			} else if (history != null) {
+				int n = entry.historyPaths == null ? 0 : entry.historyPaths.length;
+				entry.historyPaths = n == 0 ? new String[1][] : Arrays.copyOf(entry.historyPaths, n + 1);
+				entry.leafHistories = n == 0 ? new HistoryRing[1] : Arrays.copyOf(entry.leafHistories, n + 1);
+				entry.historyPaths[n] = path.clone();
+				entry.leafHistories[n] = history;
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return a history, null for a capacity of 0
+	 */
+	private HistoryRing history(int capacity, Sampling sampling, int factor) {
+		if (persistent != null)
+			throw new UnsupportedOperationException("histories need a synchronized or concurrent backend");
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+		if (factor <= 0)
+			throw new IllegalArgumentException("factor must be positive: " + factor);
+		return capacity > 0 ? new HistoryRing(capacity, sampling, factor) : null;
+	}
+
+	/**
+	 * 
+	 * @return index of the history of a leaf of an entry, -1 when it keeps
+	 *         none
+	 */
+	private static int leafHistory(StateEntry entry, String[] path) {
+		String[][] paths = entry.historyPaths;
+		if (paths != null) {
+			for (int k = 0; k < paths.length; k++)
+				if (Arrays.equals(paths[k], path))
+					return k;
+		}
+		return -1;
+	}
+
+	/**
+	 * Samples of an entry (see {@link #setHistory(String, int, Sampling, int)}).
+	 * 
+	 * @param name
+	 *                       name of entry
+	 * @param sinceNanos
+	 *                       oldest timestamp wanted, as given by
+	 *                       {@link System#nanoTime()}
+	 *                       (<code>Long.MIN_VALUE</code> for all of them)
+	 * @return samples written at or after sinceNanos, oldest first (none when
+	 *         the entry keeps no history)
+	 */
+	public StateHistory getHistory(String name, long sinceNanos) {
+		return getHistory(name, sinceNanos, new StateHistory());
+	}
+
+	/**
+	 * Same as {@link #getHistory(String, long)}, refilling the result of a
+	 * previous call.
+	 * 
+	 * @param name
+	 *                       name of entry
+	 * @param sinceNanos
+	 *                       oldest timestamp wanted
+	 * @param into
+	 *                       result to be refilled
+	 * @return into
+	 */
+	public StateHistory getHistory(String name, long sinceNanos, StateHistory into) {
+		into.clear();
+		if (persistent != null)
+			return into;
+		synchronized (monitor(name)) {
+			StateEntry entry = _map.get(name);
+			if (entry != null && entry.history != null)
+				entry.history.copy(sinceNanos, into);
+		}
+		return into;
+	}
+
+	/**
+	 * Samples of a leaf of a map entry (see
+	 * {@link #setHistory(String[], int, Sampling, int)}).
+	 * 
+	 * @param path
+	 *                       entry name followed by nested map keys
+	 * @param sinceNanos
+	 *                       oldest timestamp wanted, as given by
+	 *                       {@link System#nanoTime()}
+	 *                       (<code>Long.MIN_VALUE</code> for all of them)
+	 * @return samples written at or after sinceNanos, oldest first (none when
+	 *         the leaf keeps no history)
+	 */
+	public StateHistory getHistory(String[] path, long sinceNanos) {
+		return getHistory(path, sinceNanos, new StateHistory());
+	}
+
+	/**
+	 * Same as {@link #getHistory(String[], long)}, refilling the result of a
+	 * previous call.
+	 * 
+	 * @param path
+	 *                       entry name followed by nested map keys
+	 * @param sinceNanos
+	 *                       oldest timestamp wanted
+	 * @param into
+	 *                       result to be refilled
+	 * @return into
+	 */
+	public StateHistory getHistory(String[] path, long sinceNanos, StateHistory into) {
+		if (path.length == 1)
+			return getHistory(path[0], sinceNanos, into);
+		into.clear();
+		if (persistent != null)
+			return into;
+		synchronized (monitor(path[0])) {
+			StateEntry entry = _map.get(path[0]);
+			int k = entry != null ? leafHistory(entry, path) : -1;
+			if (k >= 0)
+				entry.leafHistories[k].copy(sinceNanos, into);
+		}
+		return into;
+	}
+
+	/**
+	 * Gives an entry a time to live: it is removed once that long passes
+	 * without a write (each write, event or path write restarts the time), and
+	 * the removal shows in the next snapshot like {@link #remove(String)}'s.
+	 * The time to live stays with the name, also for values written after the
+	 * entry expired. Expiry runs every {@value #EXPIRY_RESOLUTION_MILLIS} ms on a
+	 * single thread shared by every store, from a hashed timing wheel; it is
+	 * not journaled, so it starts again from the first write after recovery.
+	 * 
+	 * @param name
+	 *                      name of entry
+	 * @param ttlMillis
+	 *                      time to live in milliseconds (0 for none)
+	 * @throws UnsupportedOperationException
+	 *                                           with the
+	 *                                           {@link Backend#PERSISTENT}
+	 *                                           backend
+	 */
+	public void setTtl(String name, long ttlMillis) {
+		if (persistent != null)
+			throw new UnsupportedOperationException("expiry needs a synchronized or concurrent backend");
+		if (ttlMillis < 0L)
+			throw new IllegalArgumentException("ttlMillis must not be negative: " + ttlMillis);
+		synchronized (monitor(name)) {
+			StateEntry entry = entry(name);
+			entry.ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+			if (entry.ttl == 0L) {
+				if (entry.timer != null) {
+					ExpiryWheel.shared().cancel(entry.timer);
+					entry.timer = null;
+				}
+			} else if (!entry.isRemoved()) {
+				refresh(entry);
+			}
+		}
+	}
+
+	/**
+	 * Sets a 'floating point' value with a time to live (see
+	 * {@link #setTtl(String, long)}, which applies to the later writes too).
+	 * 
+	 * @param name
+	 *                      name of entry
+	 * @param value
+	 *                      value of state entry
+	 * @param ttlMillis
+	 *                      time to live in milliseconds (0 for none)
+	 */
+	public void set(String name, double value, long ttlMillis) {
+		setTtl(name, ttlMillis);
+		set(name, value);
+	}
+
+	/**
+	 * Sets a 'integer' value with a time to live (see
+	 * {@link #setTtl(String, long)}, which applies to the later writes too).
+	 * 
+	 * @param name
+	 *                      name of entry
+	 * @param value
+	 *                      value of state entry
+	 * @param ttlMillis
+	 *                      time to live in milliseconds (0 for none)
+	 */
+	public void set(String name, long value, long ttlMillis) {
+		setTtl(name, ttlMillis);
+		set(name, value);
+	}
+
+	/**
+	 * Sets a 'string' value with a time to live (see
+	 * {@link #setTtl(String, long)}, which applies to the later writes too).
+	 * 
+	 * @param name
+	 *                      name of entry
+	 * @param value
+	 *                      value of state entry
+	 * @param ttlMillis
+	 *                      time to live in milliseconds (0 for none)
+	 */
+	public void set(String name, String value, long ttlMillis) {
+		setTtl(name, ttlMillis);
+		set(name, value);
+	}
+
+	/**
+	 * Sets a 'map' value with a time to live (see {@link #setTtl(String, long)},
+	 * which applies to the later writes too).
+	 * 
+	 * @param name
+	 *                      name of entry
+	 * @param value
+	 *                      map of state entry
+	 * @param ttlMillis
+	 *                      time to live in milliseconds (0 for none)
+	 */
+	public void set(String name, Map<String, ?> value, long ttlMillis) {
+		setTtl(name, ttlMillis);
+		set(name, value);
+	}
+
+	/**
+	 * Attaches (or detaches, with null) the journal of this store.
+	 */
+	void attach(StateJournal journal) {
+		if (journal != null && this.journal != null)
+			throw new IllegalStateException("store already has a journal");
+		this.journal = journal;
+	}
+
+	/**
+	 * Attaches (or detaches, with null) the shared memory mirror of this store,
+	 * giving every registered entry its slot.
+	 */
+	void attach(StateMirror mirror) {
+		synchronized (keys) {
+			if (mirror != null && this.mirror != null)
+				throw new IllegalStateException("store already has a mirror");
+			this.mirror = mirror;
+			for (StateKey key : keys.values()) {
+				synchronized (key.monitor) {
+					if (mirror != null)
+						mirror.assign(key.entry, key.index);
+					else
+						key.entry.mirror = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return the monitors writers hold, guarding the journal buffers of their
+	 *         stripe: the store itself when it has a single monitor
+	 */
+	Object[] journalLocks() {
+		return stripes == null ? new Object[] { this } : stripes;
+	}
+
+	/**
+	 * 
+	 * @return index of the lock stripe of an entry name (concurrent backend)
+	 */
+	int stripeOf(String name) {
+		return stripe(name);
+	}
+
+	/**
+	 * Hands every entry to a journal checkpoint, holding its monitor.
+	 */
+	void checkpoint(StateJournal.Checkpoint checkpoint) {
+		if (stripes == null) {
+			synchronized (this) {
+				for (StateEntry entry : _map.values())
+					checkpoint.add(entry);
+			}
+		} else {
+			for (StateEntry entry : _map.values()) {
+				synchronized (monitor(entry.name)) {
+					checkpoint.add(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Empties the set or list of an entry, creating an empty one when it holds
+	 * none (journal recovery).
+	 * 
+	 * @param event
+	 *                  name of entries set or list
+	 * @param set
+	 *                  whether it is a set
+	 */
+	void resetEvents(String event, boolean set) {
+		synchronized (monitor(event)) {
+			StateEntry entry = entry(event);
+			if (entry.value instanceof Collection) {
+				((Collection<?>) entry.value).clear();
+			} else if (set) {
+				entry.setObject(entry.capacity > 0 ? new EventSet(entry.capacity) : new HashSet<>());
+			} else {
+				entry.setObject(entry.capacity > 0 ? new EventRing(entry.capacity) : new ArrayList<>());
+			}
+			entry.version = stamp();
+			if (entry.mirror != null)
+				entry.mirror.write(entry);
+		}
+	}
+
+	/**
+	 * Removes an entry from state.
+	 * 
+	 * @param name
+	 *                 entry key to be removed.
+	 */
+	public void remove(String name) {
+		if (persistent != null) {
+			persistent.remove(name);
+			return;
+		}
+		long start = metrics.lockStart();
+		synchronized (monitor(name)) {
+			long acquired = metrics.lockAcquired(start);
+			removeEntry(_map.get(name));
+			metrics.lockReleased(acquired);
+		}
+	}
+
+	private void removeEntry(StateEntry entry) {
+		if (entry != null && entry.timer != null) {
+			ExpiryWheel.shared().cancel(entry.timer);
+			entry.timer = null;
+		}
+		if (entry != null && !entry.isRemoved()) {
+			StateJournal j = journal;
+			if (j != null)
+				j.remove(entry);
+			entry.setObject(null);
+			entry.version = stamp();
+			if (entry.mirror != null)
+				entry.mirror.write(entry);
+		}
+	}
+
+	/**
+	 * Applies several writes as one update: the consumer records them into a
+	 * {@link StateBatch}, then they are applied in order, holding the monitor
+	 * once ({@link Backend#SYNCHRONIZED}), the stripes of the entries written
+	 * (taken in a fixed order) and a read lock that snapshots wait for
+	 * ({@link Backend#CONCURRENT}), or with a single CAS
+	 * ({@link Backend#PERSISTENT}, which does not support paths). Snapshots see
+	 * either all of the writes or none of them, and they count as one update.
+	 * <p>
+	 * The consumer runs before anything is locked; it must not take snapshots
+	 * of this store while recording. A write that throws (a full
+	 * {@link Overflow#REJECT} set or list) leaves the writes before it applied.
+	 * </p>
+	 * 
+	 * @param operations
+	 *                       records the writes, for example
+	 *                       <code>batch -&gt; batch.set(LAT, lat).set(LNG, lng)</code>
+	 */
+	public void update(Consumer<StateBatch> operations) {
+		StateBatch batch = BATCHES.get();
+		if (batch.recording)
+			// update() called by a consumer
+			batch = new StateBatch();
+		batch.recording = true;
+		try {
+			operations.accept(batch);
+			if (batch.size > 0)
+				apply(batch);
+		} finally {
+			batch.clear();
+			batch.recording = false;
+		}
+	}
+
+	private void apply(StateBatch batch) {
+		if (persistent != null) {
+			if (batch.paths)
+				throw new UnsupportedOperationException("path writes need a synchronized or concurrent backend");
+			persistent.apply(batch);
+			return;
+		}
+		long start = metrics.lockStart();
+		if (stripes == null) {
+			synchronized (this) {
+				long acquired = metrics.lockAcquired(start);
+				applyLocked(batch);
+				updateCount.increment();
+				metrics.lockReleased(acquired);
+			}
+		} else {
+			int count = lockOrder(batch);
+			batches.readLock().lock();
+			try {
+				applyStriped(batch, count, 0, start);
+			} finally {
+				batches.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Sorts the distinct stripes of the entries of a batch into
+	 * batch.stripes. Batches lock them in that order, so that two batches
+	 * cannot deadlock.
+	 * 
+	 * @return number of stripes
+	 */
+	private int lockOrder(StateBatch batch) {
+		if (batch.stripes.length < batch.size)
+			batch.stripes = new int[batch.size];
+		int[] order = batch.stripes;
+		int count = 0;
+		for (int i = 0; i < batch.size; i++) {
+			int stripe = stripe(batch.name(i));
+			int j = count;
+			while (j > 0 && order[j - 1] > stripe)
+				j--;
+			if (j > 0 && order[j - 1] == stripe)
+				continue;
+			System.arraycopy(order, j, order, j + 1, count - j);
+			order[j] = stripe;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Takes the stripes of a batch one by one (nested monitors), then applies
+	 * it.
+	 */
+	private void applyStriped(StateBatch batch, int count, int i, long start) {
+		if (i < count) {
+			synchronized (stripes[batch.stripes[i]]) {
+				applyStriped(batch, count, i + 1, start);
+			}
+			return;
+		}
+		long acquired = metrics.lockAcquired(start);
+		applyLocked(batch);
+		updateCount.increment();
+		metrics.lockReleased(acquired);
+	}
+
+	/**
+	 * Applies a batch, holding the monitors of all its entries (callers count
+	 * the update).
+	 */
+	private void applyLocked(StateBatch batch) {
+		for (int i = 0; i < batch.size; i++) {
+			Object target = batch.targets[i];
+			byte op = batch.ops[i];
+			if (target instanceof String) {
+				String name = (String) target;
+				switch (op) {
+				case StateBatch.SET_DOUBLE:
+					writeDouble(entry(name), Double.longBitsToDouble(batch.numbers[i]));
+					break;
+				case StateBatch.SET_LONG:
+					writeLong(entry(name), batch.numbers[i]);
+					break;
+				case StateBatch.SET_OBJECT:
+					writeObject(entry(name), batch.objects[i]);
+					break;
+				case StateBatch.ADD_TO_SET:
+					appendToSet(entry(name), (String) batch.objects[i]);
+					break;
+				case StateBatch.ADD_TO_LIST:
+					appendToList(entry(name), (String) batch.objects[i]);
+					break;
+				default:
+					removeEntry(_map.get(name));
+				}
+			} else {
+				String[] path = (String[]) target;
+				// leaves of one entry set one after the other journal its
+				// tree once, with the last of them
+				boolean more = op <= StateBatch.SET_OBJECT && setsLeafOf(batch, i + 1, path[0]);
+				switch (op) {
+				case StateBatch.SET_DOUBLE:
+					writePath(entry(path[0]), path, Double.valueOf(Double.longBitsToDouble(batch.numbers[i])), more);
+					break;
+				case StateBatch.SET_LONG:
+					writePath(entry(path[0]), path, Long.valueOf(batch.numbers[i]), more);
+					break;
+				case StateBatch.SET_OBJECT:
+					writePath(entry(path[0]), path, batch.objects[i], more);
+					break;
+				case StateBatch.ADD_TO_SET:
+					appendToPath(entry(path[0]), path, (String) batch.objects[i], true);
+					break;
+				case StateBatch.ADD_TO_LIST:
+					appendToPath(entry(path[0]), path, (String) batch.objects[i], false);
+					break;
+				default:
+					removePath(_map.get(path[0]), path);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return true when operation i of a batch sets a leaf of the named entry
+	 */
+	private static boolean setsLeafOf(StateBatch batch, int i, String name) {
+		return i < batch.size && batch.ops[i] <= StateBatch.SET_OBJECT && batch.targets[i] instanceof String[]
+				&& ((String[]) batch.targets[i])[0].equals(name);
+	}
+
+	/**
+	 * Splits a dotted path ("coord.lat") into the path taken by
+	 * set(String[], ...), addToSet(String[], String), addToList(String[],
+	 * String) and remove(String[]). Split once and keep the array: names with
+	 * dots are only nested when written through a path.
+	 * 
+	 * @param dotted
+	 *                   entry name followed by nested map keys, separated by
+	 *                   dots
+	 * @return the path
+	 */
+	public static String[] path(String dotted) {
+		String[] path = dotted.split("\\.", -1);
+		for (String key : path)
+			if (key.isEmpty())
+				throw new IllegalArgumentException("empty key in path: " + dotted);
+		return path;
+	}
+
+	/**
+	 * Sets a 'floating point' value inside a map entry, in place: the entry
+	 * holds a map owned by the store, created (with any intermediate map) on
+	 * the first write. An entry holding a map given to set(String, Map) gets a
+	 * copy of it first, so caller maps are never changed.
+	 * <p>
+	 * Map values are objects: each write boxes the leaf (a {@link Double}),
+	 * and with a {@link StateJournal} it journals the whole map of the entry.
+	 * Setting several leaves of one entry in an {@link #update(Consumer)} batch
+	 * journals the map once. Numbers written many times a second whose map is
+	 * large are cheaper as top level entries (kept unboxed and journaled
+	 * alone).
+	 * </p>
+	 * 
+	 * @param path
+	 *                  entry name followed by nested map keys (see
+	 *                  {@link #path(String)})
+	 * @param value
+	 *                  value of the innermost key
+	 * @throws UnsupportedOperationException
+	 *                                           with the
+	 *                                           {@link Backend#PERSISTENT}
+	 *                                           backend
+	 */
+	public void set(String[] path, double value) {
+		if (path.length == 1)
+			set(path[0], value);
+		else
+			putPath(path, Double.valueOf(value));
+	}
+
+	/**
+	 * Sets a 'integer' value inside a map entry, in place (see
+	 * {@link #set(String[], double)}).
+	 * 
+	 * @param path
+	 *                  entry name followed by nested map keys
+	 * @param value
+	 *                  value of the innermost key
+	 */
+	public void set(String[] path, long value) {
+		if (path.length == 1)
+			set(path[0], value);
+		else
+			putPath(path, Long.valueOf(value));
+	}
+
+	/**
+	 * Sets a 'string' value inside a map entry, in place (see
+	 * {@link #set(String[], double)}).
+	 * 
+	 * @param path
+	 *                  entry name followed by nested map keys
+	 * @param value
+	 *                  value of the innermost key
+	 */
+	public void set(String[] path, String value) {
+		if (path.length == 1)
+			set(path[0], value);
+		else
+			putPath(path, value);
+	}
+
+	/**
+	 * Adds a message to a set inside a map entry (see
+	 * {@link #set(String[], double)}). Like top level sets, it is emptied by
+	 * every snapshot.
+	 * 
+	 * @param path
+	 *                    entry name followed by nested map keys
+	 * @param message
+	 *                    message to be added
+	 */
+	public void addToSet(String[] path, String message) {
+		if (path.length == 1)
+			addToSet(path[0], message);
+		else
+			appendToPath(path, message, true);
+	}
+
+	/**
+	 * Adds a message to a list inside a map entry (see
+	 * {@link #set(String[], double)}). Like top level lists, it is emptied by
+	 * every snapshot.
+	 * 
+	 * @param path
+	 *                    entry name followed by nested map keys
+	 * @param message
+	 *                    message to be appended
+	 */
+	public void addToList(String[] path, String message) {
+		if (path.length == 1)
+			addToList(path[0], message);
+		else
+			appendToPath(path, message, false);
+	}
+
+	/**
+	 * Removes a key from a map entry (nothing happens when the path does not
+	 * exist). Intermediate maps are kept, even when left empty.
+	 * 
+	 * @param path
+	 *                 entry name followed by nested map keys
+	 */
+	public void remove(String[] path) {
+		if (path.length == 1) {
+			remove(path[0]);
+			return;
+		}
+		checkPath(path);
+		long start = metrics.lockStart();
+		synchronized (monitor(path[0])) {
+			long acquired = metrics.lockAcquired(start);
+			removePath(_map.get(path[0]), path);
+			metrics.lockReleased(acquired);
+		}
+	}
+
+	private void checkPath(String[] path) {
+		if (path.length == 0)
+			throw new IllegalArgumentException("empty path");
+		if (persistent != null)
+			throw new UnsupportedOperationException("path writes need a synchronized or concurrent backend");
+	}
+
+	private void putPath(String[] path, Object value) {
+		checkPath(path);
+		long start = metrics.lockStart();
+		synchronized (monitor(path[0])) {
+			long acquired = metrics.lockAcquired(start);
+			writePath(entry(path[0]), path, value);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
+	}
+
+	private void appendToPath(String[] path, String message, boolean set) {
+		checkPath(path);
+		long start = metrics.lockStart();
+		synchronized (monitor(path[0])) {
+			long acquired = metrics.lockAcquired(start);
+			appendToPath(entry(path[0]), path, message, set);
+			updateCount.increment();
+			metrics.lockReleased(acquired);
+		}
+	}
+
+	// path writes below are called holding the monitor of the entry (callers
+	// count the update)
+
+	private void writePath(StateEntry entry, String[] path, Object value) {
+		writePath(entry, path, value, false);
+	}
+
+	/**
+	 * Sets a leaf, journaling the tree unless another leaf write follows.
+	 */
+	private void writePath(StateEntry entry, String[] path, Object value, boolean more) {
+		checkJournal();
+		node(entry, path).put(path[path.length - 1], value);
+		written(entry);
+		if (!more)
+			journalTree(entry);
+		if (entry.historyPaths != null && value instanceof Number) {
+			int k = leafHistory(entry, path);
+			if (k >= 0)
+				entry.leafHistories[k].add(System.nanoTime(), ((Number) value).doubleValue());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void appendToPath(StateEntry entry, String[] path, String message, boolean set) {
+		checkJournal();
+		Map<String, Object> node = node(entry, path);
+		String key = path[path.length - 1];
+		Object events = node.get(key);
+		boolean added;
+		if (set) {
+			if (!(events instanceof HashSet<?>))
+				node.put(key, events = new HashSet<String>());
+			added = ((Set<String>) events).add(message);
+		} else {
+			if (!(events instanceof ArrayList<?>))
+				node.put(key, events = new ArrayList<String>());
+			List<String> list = (List<String>) events;
+			// append only if last element differs
+			added = list.isEmpty() || !list.get(list.size() - 1).equals(message);
+			if (added)
+				list.add(message);
+		}
+		if (added) {
+			entry.version = stamp();
+			journalTree(entry);
+		}
+		entry.counted();
+	}
+
+	private void removePath(StateEntry entry, String[] path) {
+		String key = path[path.length - 1];
+		Map<?, ?> node = entry != null && entry.kind == StateEntry.OBJECT ? find(entry.value, path) : null;
+		if (node != null && node.containsKey(key)) {
+			checkJournal();
+			node(entry, path).remove(key);
+			entry.version = stamp();
+			journalTree(entry);
+		}
+	}
+
+	/**
+	 * 
+	 * @return the map holding the last key of a path, or null when missing
+	 */
+	private static Map<?, ?> find(Object value, String[] path) {
+		for (int i = 1; i < path.length - 1 && value instanceof Map; i++)
+			value = ((Map<?, ?>) value).get(path[i]);
+		return value instanceof Map ? (Map<?, ?>) value : null;
+	}
+
+	/**
+	 * 
+	 * @return the map holding the last key of a path, created (with the store
+	 *         owned tree and intermediate maps) when missing; values in the way
+	 *         are replaced by maps
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> node(StateEntry entry, String[] path) {
+		if (!entry.tree) {
+			Object tree;
+			if (entry.kind == StateEntry.OBJECT && entry.value instanceof Map) {
+				try {
+					tree = DeepCopier.clone((Map<?, ?>) entry.value);
+				} catch (InvalidDataTypeException e) {
+					throw new IllegalArgumentException(e);
+				}
+			} else {
+				tree = new TreeMap<String, Object>();
+			}
+			entry.setObject(tree);
+			entry.tree = true;
+		}
+		Map<String, Object> node = (Map<String, Object>) entry.value;
+		for (int i = 1; i < path.length - 1; i++) {
+			Object child = node.get(path[i]);
+			if (!(child instanceof Map)) {
+				child = new TreeMap<String, Object>();
+				node.put(path[i], child);
+			}
+			node = (Map<String, Object>) child;
+		}
+		return node;
+	}
+
+	/**
+	 * Fails before a path write when the journal did (it is journaled once
+	 * applied).
+	 */
+	private void checkJournal() {
+		StateJournal j = journal;
+		if (j != null)
+			j.check();
+	}
+
+	/**
+	 * Journals (and mirrors) the whole tree of an entry after a path write.
+	 */
+	private void journalTree(StateEntry entry) {
+		StateJournal j = journal;
+		if (j != null)
+			j.setObject(entry, entry.value);
+		if (entry.mirror != null)
+			entry.mirror.write(entry);
+	}
+
+	/**
+	 * Empties the sets and lists of a tree written through paths.
+	 * 
+	 * @return true when any was not empty
+	 */
+	static boolean clearEvents(Map<?, ?> node) {
+		boolean cleared = false;
+		for (Object value : node.values()) {
+			if (value instanceof Collection) {
+				Collection<?> events = (Collection<?>) value;
+				if (!events.isEmpty()) {
+					events.clear();
+					cleared = true;
+				}
+			} else if (value instanceof Map) {
+				cleared |= clearEvents((Map<?, ?>) value);
+			}
+		}
+		return cleared;
+	}
+
+	/**
+	 * 
+	 * @return current version of the state: it grows when anything was written
+	 *         or removed since the previous call (or drain), and stays the same
+	 *         otherwise
+	 */
+	public long getVersion() {
+		if (persistent != null)
+			return persistent.getVersion();
+		return takeVersion();
+	}
+
+	/**
+	 * 
+	 * @return the version to stamp on an entry written now, to be called
+	 *         holding its monitor
+	 */
+	private long stamp() {
+		long v = version.get();
+		// flagged after reading the version: a reader that takes the flag has
+		// moved past it, or sees the flag again next time
+		if (!dirty) {
+			dirty = true;
+			Thread waiter = writeWaiter;
+			if (waiter != null)
+				LockSupport.unpark(waiter);
+		}
+		return v;
+	}
+
+	/**
+	 * Parks the calling thread until something is written or removed after a
+	 * version was taken with {@link #getVersion()}, the time is up or the
+	 * thread is unparked; returns right away when something already was. One
+	 * thread waits at a time. Writes to the {@link Backend#PERSISTENT} backend
+	 * do not wake it.
+	 * 
+	 * @param version
+	 *                    version last taken
+	 * @param nanos
+	 *                    longest wait
+	 */
+	void awaitWrite(long version, long nanos) {
+		if (persistent != null) {
+			LockSupport.parkNanos(this, nanos);
+			return;
+		}
+		// written before reading the flag, which writers set before reading
+		// this: either the write sees the waiter or the waiter sees the flag
+		writeWaiter = Thread.currentThread();
+		if (!dirty && this.version.get() - 1L == version)
+			LockSupport.parkNanos(this, nanos);
+		writeWaiter = null;
+	}
+
+	/**
+	 * 
+	 * @return the highest version stamped so far, moving on to a new one when
+	 *         anything was stamped with the current version (later writes get
+	 *         a higher one)
+	 */
+	private long takeVersion() {
+		if (dirty) {
+			dirty = false;
+			return version.getAndIncrement();
+		}
+		return version.get() - 1L;
+	}
+
+	/**
+	 * 
+	 * @return a copy of state map (as an immutable map)
+	 * @throws InvalidDataTypeException
+	 */
+	public Map<String, Object> getState() throws InvalidDataTypeException {
+		return getState(null);
+	}
+
+	/**
+	 * Like {@link #getState()}, recycling the maps, sets and lists of the
+	 * previous snapshot (see {@link DeepCopier#cloneInto(Object, Object)}) for
+	 * consumers that are done with it by the time they take the next one: its
+	 * sets and lists become the event buffers producers fill next. The
+	 * PERSISTENT backend shares its values between snapshots, so it has
+	 * nothing to recycle.
+	 * 
+	 * @param previous
+	 *                     snapshot returned by the previous call (or null),
+	 *                     not to be used after this call
+	 * @return a copy of state map
+	 * @throws InvalidDataTypeException
+	 */
+	public Map<String, Object> getState(Map<String, Object> previous) throws InvalidDataTypeException {
+		if (persistent != null) {
+			long start = metrics.snapshotStart();
+			Map<String, Object> state = persistent.getState();
+			metrics.snapshotDone(start, 0L, 0L);
+			return state;
+		}
+		if (previous != null) {
+			// emptied before locking, so that a drain can swap them in as the
+			// new event buffers
+			for (Object value : previous.values())
+				if (value instanceof Collection)
+					((Collection<?>) value).clear();
+		}
+		Map<String, Object> state = new TreeMap<>();
+		Drain drain = new Drain(journal);
+		drain.previous = previous;
+		drain(drain, -1L, state, null);
+		Map<String, Long> lost = takeDropped();
+		if (lost != null)
+			state.put("_dropped", lost);
+		state.put("_updates", Long.valueOf(takeUpdates()));
+		return state;
+	}
+
+	/**
+	 * Registers a consumer that reads the state with {@link #read(String)},
+	 * independently of {@link #getState()} and of other consumers. Events
+	 * added from now on are kept in a log shared by all consumers until every
+	 * one of them has read them, so a consumer that stops reading must be
+	 * unregistered. While consumers are registered, a set or list without a
+	 * capacity that reaches {@link #UNDRAINED_EVENTS_LIMIT} events between two
+	 * drains is emptied, its events reported in <code>_dropped</code>: they
+	 * are still in the log, and the live set or list does not grow forever when
+	 * only consumers read.
+	 * 
+	 * @param consumerId
+	 *                       name of the consumer
+	 * @return false when already registered
+	 * @throws UnsupportedOperationException
+	 *                                           with the
+	 *                                           {@link Backend#PERSISTENT}
+	 *                                           backend
+	 */
+	public boolean registerConsumer(String consumerId) {
+		if (persistent != null)
+			throw new UnsupportedOperationException("consumers need a synchronized or concurrent backend");
+		synchronized (consumers) {
+			if (consumers.containsKey(consumerId))
+				return false;
+			if (events == null)
+				events = new EventLog();
+			EventLog.Cursor cursor = events.cursor();
+			cursor.updates = updateCount.sum();
+			consumers.put(consumerId, cursor);
+			return true;
+		}
+	}
+
+	/**
+	 * Forgets a consumer, releasing the events only it had not read yet.
+	 * 
+	 * @param consumerId
+	 *                       name of the consumer
+	 * @return false when not registered
+	 */
+	public boolean unregisterConsumer(String consumerId) {
+		synchronized (consumers) {
+			if (consumers.remove(consumerId) == null)
+				return false;
+			if (consumers.isEmpty())
+				// nothing is logged while nobody reads it
+				events = null;
+			return true;
+		}
+	}
+
+	/**
+	 * State as seen by a registered consumer: the current value of every
+	 * entry (read as {@link #peek(String)} does) and, for sets and lists, the
+	 * events added since this consumer's previous call, as if it were the
+	 * only one calling {@link #getState()}. Nothing is reset for
+	 * {@link #getState()} or other consumers. <code>_updates</code> counts the
+	 * updates since the previous call; sets and lists nested in maps written
+	 * through paths hold the events since the last {@link #getState()}.
+	 * 
+	 * @param consumerId
+	 *                       name of the consumer
+	 * @return a copy of state map
+	 * @throws IllegalArgumentException
+	 *                                      when the consumer is not registered
+	 * @throws InvalidDataTypeException
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public Map<String, Object> read(String consumerId) throws InvalidDataTypeException {
+		EventLog.Cursor cursor = consumers.get(consumerId);
+		if (cursor == null)
+			throw new IllegalArgumentException("unknown consumer: " + consumerId);
+		synchronized (cursor) {
+			// events first: an entry holding events by then still does below
+			Map<String, List<String>> logged = EventLog.read(cursor);
+			Map<String, Object> state = new TreeMap<>();
+			for (StateEntry entry : index.values()) {
+				Object value = entry.peek();
+				if (value == StateEntry.MUTABLE) {
+					List<String> messages = logged.get(entry.name);
+					synchronized (monitor(entry.name)) {
+						if (entry.value instanceof Set)
+							value = new LinkedHashSet<>();
+						else if (entry.value instanceof List)
+							value = new ArrayList<>();
+					}
+					if (value instanceof Set) {
+						if (messages != null)
+							((Set) value).addAll(messages);
+					} else if (value instanceof List) {
+						if (messages != null) {
+							// append only if last element differs
+							List<String> list = (List<String>) value;
+							for (String message : messages)
+								if (list.isEmpty() || !list.get(list.size() - 1).equals(message))
+									list.add(message);
+						}
+					} else {
+						value = peek(entry);
+					}
+				} else if (value == null && deltaSince == Long.MAX_VALUE) {
+					// no delta reader: nobody needs the tombstone
+					synchronized (monitor(entry.name)) {
+						if (purge(entry, Long.MAX_VALUE))
+							_map.remove(entry.name, entry);
+					}
+				}
+				if (value != null)
+					state.put(entry.name, value);
+			}
+			long total = updateCount.sum();
+			state.put("_updates", Long.valueOf(total - cursor.updates));
+			cursor.updates = total;
+			return state;
+		}
+	}
+
+	/**
+	 * Current value of an entry, read without resetting anything (unlike
+	 * {@link #getState()}) and, for numbers and strings, without locking:
+	 * the read is retried if a writer changes the entry meanwhile, so writers
+	 * never wait for it. Maps, sets and lists are copied holding the monitor of
+	 * the entry; sets and lists hold the events since the last drain. Numbers
+	 * are the last value written, whatever the reducer.
+	 * 
+	 * @param name
+	 *                 name of entry
+	 * @return a copy of the value, or null when there is no such entry
+	 * @throws InvalidDataTypeException
+	 */
+	public Object peek(String name) throws InvalidDataTypeException {
+		if (persistent != null)
+			return persistent.peek(name);
+		StateEntry entry = index.get(name);
+		return entry == null ? null : peek(entry);
+	}
+
+	/**
+	 * Same as {@link #peek(String)} for a number, without boxing it.
+	 * 
+	 * @param name
+	 *                 name of entry
+	 * @return the value of a 'floating point' or 'integer' entry, NaN when
+	 *         there is no such entry or it is not a number
+	 */
+	public double peekDouble(String name) {
+		if (persistent != null) {
+			Object value = persistent.peek(name);
+			return value instanceof Double || value instanceof Long ? ((Number) value).doubleValue() : Double.NaN;
+		}
+		StateEntry entry = index.get(name);
+		return entry == null ? Double.NaN : entry.peekDouble(Double.NaN);
+	}
+
+	/**
+	 * Same as {@link #peek(String)} for an 'integer', without boxing it.
+	 * 
+	 * @param name
+	 *                   name of entry
+	 * @param absent
+	 *                   returned when there is no such entry or it is not an
+	 *                   'integer'
+	 * @return the value of the entry
+	 */
+	public long peekLong(String name, long absent) {
+		if (persistent != null) {
+			Object value = persistent.peek(name);
+			return value instanceof Long ? ((Long) value).longValue() : absent;
+		}
+		StateEntry entry = index.get(name);
+		return entry == null ? absent : entry.peekLong(absent);
+	}
+
+	/**
+	 * Every entry, read as {@link #peek(String)} does: nothing is reset (so
+	 * there are no <code>_updates</code> and <code>_dropped</code> entries) and
+	 * producers are not held up by the copy of numbers and strings. Each entry
+	 * is consistent, but different entries may be read at slightly different
+	 * moments (except with the {@link Backend#PERSISTENT} backend, whose state
+	 * is an immutable view of one version).
+	 * 
+	 * @return a copy of the state map
+	 * @throws InvalidDataTypeException
+	 */
+	public Map<String, Object> readState() throws InvalidDataTypeException {
+		if (persistent != null)
+			return persistent.readState();
+		Map<String, Object> state = new TreeMap<>();
+		for (StateEntry entry : index.values()) {
+			Object value = peek(entry);
+			if (value != null)
+				state.put(entry.name, value);
+		}
+		return state;
+	}
+
+	private Object peek(StateEntry entry) throws InvalidDataTypeException {
+		Object value = entry.peek();
+		if (value != StateEntry.MUTABLE)
+			return value;
+		synchronized (monitor(entry.name)) {
+			value = entry.value;
+			if (entry.kind != StateEntry.OBJECT || value == null || value instanceof String)
+				return entry.get();
+			if (value instanceof EventRing)
+				return new ArrayList<>((EventRing) value);
+			if (value instanceof EventSet)
+				return new LinkedHashSet<>((EventSet) value);
+			return DeepCopier.clone(value);
+		}
+	}
+
+	/**
+	 * Like {@link #getState()}, but returns only entries written or removed
+	 * after a given version. Sets and lists are reset exactly as in
+	 * {@link #getState()}.
+	 * <p>
+	 * Removed entries are kept (as tombstones) only until no delta needs them:
+	 * those removed before the version given to the latest call are dropped by
+	 * the next drain (by any drain, while this method was never called). A
+	 * call with an older version, e.g. from a second delta reader falling
+	 * behind, gets the whole state instead (see {@link StateChanges#isFull()}).
+	 * </p>
+	 * 
+	 * @param since
+	 *                  version returned by the previous call (or 0 for all
+	 *                  entries)
+	 * @return changed entries, removed entry names and the new version
+	 * @throws InvalidDataTypeException
+	 */
+	public StateChanges getChangesSince(long since) throws InvalidDataTypeException {
+		if (persistent != null)
+			return persistent.getChangesSince(since);
+		Map<String, Object> changed = new TreeMap<>();
+		Set<String> removed = new TreeSet<>();
+		Drain drain = new Drain(journal);
+		long current = drain(drain, since, changed, removed);
+		if (drain.full)
+			removed.clear();
+		Map<String, Long> lost = takeDropped();
+		if (lost != null)
+			changed.put("_dropped", lost);
+		changed.put("_updates", Long.valueOf(takeUpdates()));
+		return new StateChanges(current, changed, removed, drain.full);
+	}
+
+	/**
+	 * Writes the state as JSON, exactly as {@link #getState()} would return it
+	 * (events are reset the same way), straight from the live entries: there is
+	 * no intermediate copy. The text is built in a buffer reused between calls
+	 * while holding the monitor(s), and written out after releasing them.
+	 * 
+	 * @param out
+	 *                where the UTF-8 JSON goes
+	 * @return number of bytes written
+	 * @throws IOException
+	 * @throws InvalidDataTypeException
+	 */
+	public int writeStateAsJson(OutputStream out) throws IOException, InvalidDataTypeException {
+		synchronized (json) {
+			encodeState();
+			return json.writeTo(out);
+		}
+	}
+
+	/**
+	 * Same as {@link #writeStateAsJson(OutputStream)}, into a buffer.
+	 * 
+	 * @param out
+	 *                where the UTF-8 JSON goes
+	 * @return number of bytes written
+	 * @throws java.nio.BufferOverflowException
+	 *                                              if out has not enough room
+	 *                                              (the state is reset anyway)
+	 * @throws InvalidDataTypeException
+	 */
+	public int writeStateAsJson(ByteBuffer out) throws InvalidDataTypeException {
+		synchronized (json) {
+			encodeState();
+			return json.writeTo(out);
+		}
+	}
+
+	/**
+	 * Same as {@link #writeStateAsJson(OutputStream)}, as text.
+	 * 
+	 * @param out
+	 *                where the JSON goes
+	 * @return number of chars written
+	 * @throws IOException
+	 * @throws InvalidDataTypeException
+	 */
+	public int writeStateAsJson(Appendable out) throws IOException, InvalidDataTypeException {
+		synchronized (json) {
+			encodeState();
+			return json.writeTo(out);
+		}
+	}
+
+	/**
+	 * Encodes (and resets) the state into the JSON buffer, to be called holding
+	 * its lock.
+	 * 
+	 * @throws InvalidDataTypeException
+	 */
+	private void encodeState() throws InvalidDataTypeException {
+		json.reset();
+		json.beginObject();
+		if (persistent != null) {
+			for (Map.Entry<String, Object> e : getState().entrySet()) {
+				json.name(e.getKey());
+				json.value(e.getValue());
+			}
+			json.endObject();
+			return;
+		}
+
+		long start = metrics.snapshotStart();
+		Drain drain = new Drain(journal);
+		Map<String, Long> lost = takeDropped();
+		long copied = 0L;
+		if (stripes != null) {
+			int specials = 0;
+			long reset = 0L;
+			batches.writeLock().lock();
+			try {
+				for (Iterator<StateEntry> i = _map.values().iterator(); i.hasNext();) {
+					StateEntry entry = i.next();
+					specials = encodeSpecials(entry.name, specials, lost);
+					synchronized (monitor(entry.name)) {
+						encode(entry, drain);
+						reset += drain.resetEvents(start != 0L);
+						if (purge(entry, deltaSince))
+							i.remove();
+					}
+				}
+			} finally {
+				batches.writeLock().unlock();
+			}
+			encodeSpecials(null, specials, lost);
+			if (start != 0L)
+				copied = System.nanoTime() - reset;
+
+		} else {
+			synchronized (this) {
+				int specials = 0;
+				for (Iterator<StateEntry> i = _map.values().iterator(); i.hasNext();) {
+					StateEntry entry = i.next();
+					specials = encodeSpecials(entry.name, specials, lost);
+					encode(entry, drain);
+					if (purge(entry, deltaSince))
+						i.remove();
+				}
+				encodeSpecials(null, specials, lost);
+				copied = start != 0L ? System.nanoTime() : 0L;
+				drain.resetEvents();
+			}
+		}
+		json.endObject();
+		metrics.drained(drain.writes, drain.emitted, drain.entries);
+		metrics.snapshotDone(start, copied, 0L);
+	}
+
+	/**
+	 * Encodes <code>_dropped</code> and <code>_updates</code> where they belong
+	 * in the sorted entries.
+	 * 
+	 * @param next
+	 *                     name of the next entry (null after the last one)
+	 * @param specials
+	 *                     how many of them were already encoded
+	 * @param lost
+	 *                     the <code>_dropped</code> map (null when nothing was
+	 *                     lost)
+	 * @return how many of them are encoded now
+	 */
+	private int encodeSpecials(String next, int specials, Map<String, Long> lost) {
+		if (specials == 0 && (next == null || next.compareTo("_dropped") > 0)) {
+			if (lost != null) {
+				json.name("_dropped");
+				json.beginObject();
+				for (Map.Entry<String, Long> e : lost.entrySet()) {
+					json.name(e.getKey());
+					json.value(e.getValue().longValue());
+				}
+				json.endObject();
+			}
+			specials = 1;
+		}
+		if (specials == 1 && (next == null || next.compareTo("_updates") > 0)) {
+			json.name("_updates");
+			json.value(takeUpdates());
+			specials = 2;
+		}
+		return specials;
+	}
+
+	/**
+	 * 
+	 * @return updates since the last drain
+	 */
+	private long takeUpdates() {
+		long drained;
+		long total;
+		do {
+			drained = drainedUpdates.get();
+			total = updateCount.sum();
+		} while (!drainedUpdates.compareAndSet(drained, total));
+		return total - drained;
+	}
+
+	/**
+	 * 
+	 * @return events lost by bounded sets and lists since the last call, by
+	 *         entry name (null when none)
+	 */
+	private Map<String, Long> takeDropped() {
+		Map<String, Long> lost = null;
+		for (Map.Entry<String, AtomicLong> e : dropped.entrySet()) {
+			long n = e.getValue().getAndSet(0L);
+			if (n > 0L) {
+				if (lost == null)
+					lost = new TreeMap<>();
+				lost.put(e.getKey(), Long.valueOf(n));
+			}
+		}
+		return lost;
+	}
+
+	/**
+	 * Encodes an entry (its events are reset by the drain).
+	 */
+	private void encode(StateEntry entry, Drain drain) throws InvalidDataTypeException {
+		if (entry.isRemoved())
+			return;
+		drain.account(entry);
+		json.name(entry.name);
+		if (entry.reducer != Reducer.LAST && entry.kind != StateEntry.OBJECT) {
+			json.value(entry.reduced());
+			closeInterval(entry);
+			return;
+		}
+		switch (entry.kind) {
+		case StateEntry.DOUBLE:
+			json.value(entry.doubleValue);
+			break;
+		case StateEntry.LONG:
+			json.value(entry.longValue);
+			break;
+		default:
+			json.value(entry.value);
+			if (entry.value instanceof Collection || entry.tree)
+				drain.events.add(entry);
+		}
+	}
+
+	/**
+	 * Copies entries and resets their events. With striped monitors the state
+	 * is copied one entry at a time, holding only the stripe of the entry being
+	 * copied (and reset).
+	 * 
+	 * Tombstones no delta needs any more are unlinked on the way.
+	 * 
+	 * @param drain
+	 *                    bookkeeping of this drain (previous snapshot given)
+	 * @param since
+	 *                    copy only entries written after this version (-1 for
+	 *                    all)
+	 * @param removed
+	 *                    where removed entry names go (null for a full state)
+	 * @return version of the state when the copy started
+	 */
+	private long drain(Drain drain, long since, Map<String, Object> state, Set<String> removed)
+			throws InvalidDataTypeException {
+		long start = metrics.snapshotStart();
+		drain.swap = true;
+		long current;
+		long copied = 0L;
+		if (stripes != null) {
+			// entries written while copying may show up again next time
+			long reset = 0L;
+			batches.writeLock().lock();
+			try {
+				current = takeVersion();
+				since = horizon(drain, since, removed);
+				for (Iterator<StateEntry> i = _map.values().iterator(); i.hasNext();) {
+					StateEntry entry = i.next();
+					synchronized (monitor(entry.name)) {
+						copy(entry, since, state, removed, drain);
+						reset += drain.resetEvents(start != 0L);
+						if (purge(entry, removed != null ? since : deltaSince))
+							i.remove();
+					}
+				}
+			} finally {
+				batches.writeLock().unlock();
+			}
+			// entries are reset as they are copied: the copy is the rest
+			if (start != 0L)
+				copied = System.nanoTime() - reset;
+
+		} else {
+			synchronized (this) {
+				current = takeVersion();
+				since = horizon(drain, since, removed);
+				for (Iterator<StateEntry> i = _map.values().iterator(); i.hasNext();) {
+					StateEntry entry = i.next();
+					copy(entry, since, state, removed, drain);
+					if (purge(entry, removed != null ? since : deltaSince))
+						i.remove();
+				}
+				copied = start != 0L ? System.nanoTime() : 0L;
+				drain.resetEvents();
+			}
+		}
+		metrics.drained(drain.writes, drain.emitted, drain.entries);
+		metrics.snapshotDone(start, copied, 0L);
+		return current;
+	}
+
+	/**
+	 * Checks the version of a delta against the removals already purged, to be
+	 * called by a drain holding its locks.
+	 * 
+	 * @return the version to copy from: -1 (a full copy) when removals after
+	 *         since were purged
+	 */
+	private long horizon(Drain drain, long since, Set<String> removed) {
+		if (removed == null)
+			return since;
+		if (since < purged.get()) {
+			drain.full = true;
+			since = -1L;
+		}
+		deltaSince = since;
+		return since;
+	}
+
+	/**
+	 * Tells whether an entry is a tombstone no delta needs any more, and
+	 * forgets it if so (the caller unlinks it from the entries), to be called
+	 * holding its monitor. Tombstones of entries with settings (registered,
+	 * reduced, bounded, with history or a time to live) are kept with them.
+	 * 
+	 * @param entry
+	 *                    entry just copied
+	 * @param horizon
+	 *                    removals up to this version are no longer needed
+	 * @return true when the entry is to be unlinked
+	 */
+	private boolean purge(StateEntry entry, long horizon) {
+		if (!entry.isRemoved() || entry.version > horizon || entry.pinned || entry.reducer != Reducer.LAST
+				|| entry.capacity != 0 || entry.history != null || entry.historyPaths != null
+				|| entry.ttl != 0L)
+			return false;
+		if (index != _map)
+			index.remove(entry.name, entry);
+		purged.accumulateAndGet(entry.version, Math::max);
+		return true;
+	}
+
+	/**
+	 * Copies an entry written after a given version and resets its events.
+	 * 
+	 * @param entry
+	 *                    entry to be copied
+	 * @param since
+	 *                    copy only if written after this version (-1 to always
+	 *                    copy)
+	 * @param state
+	 *                    where the copy goes
+	 * @param removed
+	 *                    where removed entry names go (null to skip removals and
+	 *                    keep empty sets and lists)
+	 * @param drain
+	 *                    bookkeeping of this drain
+	 * @throws InvalidDataTypeException
+	 */
+	@SuppressWarnings("rawtypes")
+	private void copy(StateEntry entry, long since, Map<String, Object> state, Set<String> removed, Drain drain)
+			throws InvalidDataTypeException {
+		if (entry.isRemoved()) {
+			if (removed != null && entry.version > since)
+				removed.add(entry.name);
+			return;
+		}
+		drain.account(entry);
+		if (entry.kind != StateEntry.OBJECT) {
+			if (entry.version > since)
+				state.put(entry.name, entry.reduced());
+			closeInterval(entry);
+			return;
+		}
+		Object value = entry.value;
+		boolean events = value instanceof Collection;
+		if (entry.version > since && !(removed != null && events && ((Collection) value).isEmpty())) {
+			Object reuse = drain.previous != null ? drain.previous.get(entry.name) : null;
+			if (Drain.swaps(value) && !((Collection) value).isEmpty())
+				// handed out as is, the entry gets another buffer when reset
+				state.put(entry.name, value);
+			else if (value instanceof EventRing)
+				state.put(entry.name, reuse instanceof ArrayList ? refill((Collection) reuse, (EventRing) value)
+						: new ArrayList<>((EventRing) value));
+			else if (value instanceof EventSet)
+				state.put(entry.name, reuse instanceof LinkedHashSet ? refill((Collection) reuse, (EventSet) value)
+						: new LinkedHashSet<>((EventSet) value));
+			else
+				state.put(entry.name, DeepCopier.cloneInto(value, reuse));
+		}
+		if (events || entry.tree)
+			drain.events.add(entry);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Collection refill(Collection target, Collection<String> events) {
+		target.clear();
+		target.addAll(events);
+		return target;
+	}
+
+	/**
+	 * Starts a new aggregation interval of a drained entry. A SUM or COUNT back
+	 * to zero is a change, so it gets a new version for delta snapshots.
+	 */
+	private void closeInterval(StateEntry entry) {
+		if (entry.closeInterval())
+			entry.version = stamp();
+	}
+
+	/**
+	 * Metrics of this store (per entry write counts, conflation of the last
+	 * drain interval, lock and snapshot timing, estimated size). Entries are
+	 * read holding their monitor, so this is meant for monitoring, not for hot
+	 * paths.
+	 * 
+	 * @return a snapshot of the metrics
+	 */
+	public StateStoreMetrics getMetrics() {
+		Map<String, StateStoreMetrics.KeyMetrics> perKey = new TreeMap<>();
+		long bytes = 0L;
+		if (persistent == null) {
+			if (stripes == null) {
+				synchronized (this) {
+					for (StateEntry entry : _map.values())
+						bytes += measure(entry, perKey);
+				}
+			} else {
+				for (StateEntry entry : _map.values()) {
+					synchronized (monitor(entry.name)) {
+						bytes += measure(entry, perKey);
+					}
+				}
+			}
+		}
+		return new StateStoreMetrics(metrics, perKey, bytes);
+	}
+
+	private long measure(StateEntry entry, Map<String, StateStoreMetrics.KeyMetrics> perKey) {
+		if (entry.isRemoved())
+			return 0L;
+		perKey.put(entry.name,
+				new StateStoreMetrics.KeyMetrics(entry.name, entry.writes, entry.lastIntervalWrites));
+		return 64L + StoreMetrics.estimateBytes(entry.name) + StoreMetrics.estimateBytes(entry.value);
+	}
+
+	/**
+	 * Turns timing metrics (lock wait and hold, snapshot latency) on or off.
+	 * Write counts are always kept.
+	 * 
+	 * @param enabled
+	 *                    whether timing is recorded (default true)
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		metrics.enabled = enabled;
+	}
+
+	/**
+	 * 
+	 * @return whether timing metrics are recorded
+	 */
+	public boolean isMetricsEnabled() {
+		return metrics.enabled;
+	}
+
+	/**
+	 * Registers the metrics of this store as a platform MXBean, named
+	 * <code>com.logicalis.la.state:type=StateStore,name=&lt;name&gt;</code>.
+	 * 
+	 * @param name
+	 *                 name of the store in JMX
+	 * @return the registered object name
+	 * @throws JMException
+	 *                         if it cannot be registered (e.g. name already in
+	 *                         use)
+	 */
+	public ObjectName registerMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName("com.logicalis.la.state:type=StateStore,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StateStoreMetricsBean(this), objectName);
+		return objectName;
+	}
+
+	/**
+	 * Bookkeeping of one drain (getState(), getChangesSince() or a JSON
+	 * snapshot).
+	 * <p>
+	 * Unbounded sets and lists are double buffered: a drain hands the filled
+	 * HashSet or ArrayList to the snapshot and swaps in an empty one (taken from
+	 * the previous snapshot when given back), so the time spent holding the
+	 * monitors does not depend on how many events piled up. Bounded ones keep
+	 * their storage and are copied, then emptied.
+	 * </p>
+	 */
+	private static final class Drain {
+		// entries whose sets and lists are to be emptied once copied
+		final List<StateEntry> events = new ArrayList<>();
+		final StateJournal journal;
+		// previous snapshot, whose containers are recycled
+		Map<String, Object> previous;
+		// whether event buffers went to the snapshot (not for JSON)
+		boolean swap;
+		// whether a delta became the whole state (removals were purged)
+		boolean full;
+		long writes;
+		long emitted;
+		int entries;
+
+		/**
+		 * Closes the drain interval of an entry.
+		 */
+		void account(StateEntry entry) {
+			entries++;
+			if (entry.intervalWrites > 0) {
+				writes += entry.intervalWrites;
+				emitted++;
+			}
+			entry.lastIntervalWrites = entry.intervalWrites;
+			entry.intervalWrites = 0;
+		}
+
+		Drain(StateJournal journal) {
+			this.journal = journal;
+		}
+
+		/**
+		 * Same as {@link #resetEvents()}, timed when asked (striped drains
+		 * reset each entry right after copying it).
+		 * 
+		 * @return nanoseconds spent resetting (0 when not timed)
+		 */
+		long resetEvents(boolean timed) {
+			if (!timed || events.isEmpty()) {
+				resetEvents();
+				return 0L;
+			}
+			long start = System.nanoTime();
+			resetEvents();
+			return System.nanoTime() - start;
+		}
+
+		void resetEvents() {
+			for (int i = 0; i < events.size(); i++) {
+				StateEntry entry = events.get(i);
+				if (entry.tree) {
+					// events nested in a tree written through paths
+					if (clearEvents((Map<?, ?>) entry.value)) {
+						if (journal != null)
+							journal.setObject(entry, entry.value);
+						if (entry.mirror != null)
+							entry.mirror.write(entry);
+					}
+					continue;
+				}
+				Collection<?> collection = (Collection<?>) entry.value;
+				if (!collection.isEmpty()) {
+					if (journal != null)
+						journal.reset(entry);
+					if (swap && swaps(collection))
+						entry.value = spare(entry.name, collection);
+					else
+						collection.clear();
+					if (entry.mirror != null)
+						entry.mirror.write(entry);
+				}
+			}
+			events.clear();
+		}
+
+		/**
+		 * 
+		 * @return true for event buffers handed out to snapshots (rather than
+		 *         copied)
+		 */
+		static boolean swaps(Object value) {
+			return value != null && (value.getClass() == HashSet.class || value.getClass() == ArrayList.class);
+		}
+
+		/**
+		 * 
+		 * @return an empty buffer of the same type: the one of the previous
+		 *         snapshot (emptied by getState()), or a new one
+		 */
+		private Collection<?> spare(String name, Collection<?> filled) {
+			Object reuse = previous != null ? previous.get(name) : null;
+			if (reuse != null && reuse.getClass() == filled.getClass() && ((Collection<?>) reuse).isEmpty())
+				return (Collection<?>) reuse;
+			return filled instanceof HashSet ? new HashSet<>() : new ArrayList<>();
+		}
+	}
+
+	/**
+	 * 
+	 * @param name
+	 *                 entry name
+	 * @return the entry (created when missing), to be called holding its monitor
+	 */
+	private StateEntry entry(String name) {
+		StateEntry entry = _map.get(name);
+		if (entry == null) {
+			entry = new StateEntry(name);
+			_map.put(name, entry);
+			if (index != _map)
+				index.put(name, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * 
+	 * @param name
+	 *                 entry name
+	 * @return the monitor protecting the entry
+	 */
+	private Object monitor(String name) {
+		if (stripes == null)
+			return this;
+		return stripes[stripe(name)];
+	}
+
+	private static int stripe(String name) {
+		int h = name.hashCode();
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
 }
@@ -0,0 +1,193 @@
+package com.logicalis.la.state.core;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Metrics of a {@link StateStore}, as returned by
+ * {@link StateStore#getMetrics()}.
+ * <p>
+ * A drain interval is the time between two snapshots (getState(),
+ * getChangesSince() or writeStateAsJson()): every write to an entry during an
+ * interval but the last one is conflated (never seen by the consumer).
+ * </p>
+ */
+public class StateStoreMetrics {
+
+	/**
+	 * Write counts of one entry.
+	 */
+	public static class KeyMetrics {
+		private final String name;
+		private final long writes;
+		private final long intervalWrites;
+
+		KeyMetrics(String name, long writes, long intervalWrites) {
+			this.name = name;
+			this.writes = writes;
+			this.intervalWrites = intervalWrites;
+		}
+
+		/**
+		 * 
+		 * @return entry name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * 
+		 * @return writes since the entry was created
+		 */
+		public long getWrites() {
+			return writes;
+		}
+
+		/**
+		 * 
+		 * @return writes during the last drain interval
+		 */
+		public long getIntervalWrites() {
+			return intervalWrites;
+		}
+
+		/**
+		 * 
+		 * @return share of the last interval writes that were conflated (0 when
+		 *         every write reached the consumer)
+		 */
+		public double getConflationRatio() {
+			return intervalWrites <= 1 ? 0.0 : (intervalWrites - 1) / (double) intervalWrites;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": writes=" + writes + " interval=" + intervalWrites;
+		}
+	}
+
+	private final Map<String, KeyMetrics> keys;
+	private final long bytes;
+	private final int entries;
+	private final long snapshots;
+	private final long intervalWrites;
+	private final long intervalEmitted;
+	private final LatencyHistogram lockWait;
+	private final LatencyHistogram lockHold;
+	private final LatencyHistogram snapshot;
+	private final LatencyHistogram snapshotCopy;
+	private final LatencyHistogram snapshotReset;
+
+	StateStoreMetrics(StoreMetrics metrics, Map<String, KeyMetrics> keys, long bytes) {
+		this.keys = Collections.unmodifiableMap(keys);
+		this.bytes = bytes;
+		this.entries = keys.isEmpty() ? metrics.entries : keys.size();
+		this.snapshots = metrics.snapshots.sum();
+		this.intervalWrites = metrics.intervalWrites;
+		this.intervalEmitted = metrics.intervalEmitted;
+		this.lockWait = metrics.lockWait.copy();
+		this.lockHold = metrics.lockHold.copy();
+		this.snapshot = metrics.snapshot.copy();
+		this.snapshotCopy = metrics.snapshotCopy.copy();
+		this.snapshotReset = metrics.snapshotReset.copy();
+	}
+
+	/**
+	 * 
+	 * @return write counts per entry, ordered by name (empty with the
+	 *         persistent backend)
+	 */
+	public Map<String, KeyMetrics> getKeys() {
+		return keys;
+	}
+
+	/**
+	 * 
+	 * @return number of live entries
+	 */
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * 
+	 * @return rough estimate of the state size, in bytes (0 with the persistent
+	 *         backend)
+	 */
+	public long getEstimatedBytes() {
+		return bytes;
+	}
+
+	/**
+	 * 
+	 * @return snapshots taken so far
+	 */
+	public long getSnapshots() {
+		return snapshots;
+	}
+
+	/**
+	 * 
+	 * @return writes during the last drain interval
+	 */
+	public long getIntervalWrites() {
+		return intervalWrites;
+	}
+
+	/**
+	 * 
+	 * @return share of the last interval writes that were conflated
+	 */
+	public double getIntervalConflationRatio() {
+		return intervalWrites == 0 ? 0.0 : (intervalWrites - intervalEmitted) / (double) intervalWrites;
+	}
+
+	/**
+	 * 
+	 * @return time producers waited for a monitor (sampled)
+	 */
+	public LatencyHistogram getLockWait() {
+		return lockWait;
+	}
+
+	/**
+	 * 
+	 * @return time producers held a monitor (sampled)
+	 */
+	public LatencyHistogram getLockHold() {
+		return lockHold;
+	}
+
+	/**
+	 * 
+	 * @return duration of whole snapshots
+	 */
+	public LatencyHistogram getSnapshotLatency() {
+		return snapshot;
+	}
+
+	/**
+	 * 
+	 * @return duration of the copy phase of snapshots (single monitor backend)
+	 */
+	public LatencyHistogram getSnapshotCopy() {
+		return snapshotCopy;
+	}
+
+	/**
+	 * 
+	 * @return duration of the event reset phase of snapshots (single monitor
+	 *         backend)
+	 */
+	public LatencyHistogram getSnapshotReset() {
+		return snapshotReset;
+	}
+
+	@Override
+	public String toString() {
+		return "entries=" + entries + " bytes~" + bytes + " snapshots=" + snapshots + " intervalWrites="
+				+ intervalWrites + " conflation=" + getIntervalConflationRatio() + "\n lockWait: " + lockWait
+				+ "\n lockHold: " + lockHold + "\n snapshot: " + snapshot;
+	}
+}
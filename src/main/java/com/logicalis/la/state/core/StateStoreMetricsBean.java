@@ -0,0 +1,95 @@
+package com.logicalis.la.state.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * MXBean registered by {@link StateStore#registerMBean(String)}; every getter
+ * takes a fresh {@link StateStoreMetrics}.
+ */
+final class StateStoreMetricsBean implements StateStoreMetricsMXBean {
+
+	private final StateStore store;
+
+	StateStoreMetricsBean(StateStore store) {
+		this.store = store;
+	}
+
+	@Override
+	public int getEntries() {
+		return store.getMetrics().getEntries();
+	}
+
+	@Override
+	public long getEstimatedBytes() {
+		return store.getMetrics().getEstimatedBytes();
+	}
+
+	@Override
+	public long getSnapshots() {
+		return store.getMetrics().getSnapshots();
+	}
+
+	@Override
+	public long getIntervalWrites() {
+		return store.getMetrics().getIntervalWrites();
+	}
+
+	@Override
+	public double getIntervalConflationRatio() {
+		return store.getMetrics().getIntervalConflationRatio();
+	}
+
+	@Override
+	public Map<String, Long> getKeyWrites() {
+		Map<String, Long> writes = new TreeMap<>();
+		for (StateStoreMetrics.KeyMetrics key : store.getMetrics().getKeys().values())
+			writes.put(key.getName(), key.getWrites());
+		return writes;
+	}
+
+	@Override
+	public long getLockWaitP99() {
+		return store.getMetrics().getLockWait().getPercentile(99);
+	}
+
+	@Override
+	public long getLockHoldP99() {
+		return store.getMetrics().getLockHold().getPercentile(99);
+	}
+
+	@Override
+	public long getSnapshotP50() {
+		return store.getMetrics().getSnapshotLatency().getPercentile(50);
+	}
+
+	@Override
+	public long getSnapshotP99() {
+		return store.getMetrics().getSnapshotLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getSnapshotMax() {
+		return store.getMetrics().getSnapshotLatency().getMax();
+	}
+
+	@Override
+	public long getSnapshotCopyP99() {
+		return store.getMetrics().getSnapshotCopy().getPercentile(99);
+	}
+
+	@Override
+	public long getSnapshotResetP99() {
+		return store.getMetrics().getSnapshotReset().getPercentile(99);
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return store.isMetricsEnabled();
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		store.setMetricsEnabled(enabled);
+	}
+}
@@ -0,0 +1,40 @@
+package com.logicalis.la.state.core;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link StateStoreMetrics} (see
+ * {@link StateStore#registerMBean(String)}). Durations are in nanoseconds.
+ */
+public interface StateStoreMetricsMXBean {
+
+	int getEntries();
+
+	long getEstimatedBytes();
+
+	long getSnapshots();
+
+	long getIntervalWrites();
+
+	double getIntervalConflationRatio();
+
+	Map<String, Long> getKeyWrites();
+
+	long getLockWaitP99();
+
+	long getLockHoldP99();
+
+	long getSnapshotP50();
+
+	long getSnapshotP99();
+
+	long getSnapshotMax();
+
+	long getSnapshotCopyP99();
+
+	long getSnapshotResetP99();
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+}
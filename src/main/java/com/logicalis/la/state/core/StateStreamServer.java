@@ -0,0 +1,524 @@
+package com.logicalis.la.state.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedded HTTP server streaming the state of a {@link StateStore} as
+ * Server-Sent Events: every <code>GET</code> request (whatever its path) gets a
+ * <code>text/event-stream</code> response carrying one <code>data:</code>
+ * event per snapshot, the JSON of {@link StateStore#writeStateAsJson(OutputStream)}.
+ * <p>
+ * A single thread runs a {@link Selector}. Once per tick, when the store
+ * version changed and someone is connected, it takes one snapshot and encodes
+ * it once into a direct buffer shared by every client: each client writes
+ * from its own view of that buffer, so the cost of a snapshot does not grow
+ * with the number of clients. A client whose socket is not ready for the next
+ * snapshot is conflated: it finishes the event it is writing and then gets the
+ * latest one, never a backlog, so memory is at most two snapshots per client
+ * (shared, not copied).
+ * </p>
+ * <p>
+ * Like {@link StatePublisher}, the server drains the store (sets and lists are
+ * reset by each snapshot), so it should be its only consumer; a conflated
+ * client misses the events of the snapshots it skipped. A client that
+ * connects first gets the current state as read by
+ * {@link StateStore#readState()}, which does not drain: the events in it
+ * come again in the next snapshot.
+ * </p>
+ * <p>
+ * A snapshot that cannot be encoded (an entry of an unsupported type) is
+ * skipped and counted, see {@link #getFailedFrames()}; an I/O error of the
+ * server ends every stream and is thrown by {@link #close()}.
+ * </p>
+ */
+public final class StateStreamServer implements AutoCloseable {
+
+	// snapshots per second when none is given
+	public static final long DEFAULT_TICK_MILLIS = 100L;
+
+	private static final byte[] RESPONSE = ("HTTP/1.1 200 OK\r\n" + "Content-Type: text/event-stream\r\n"
+			+ "Cache-Control: no-cache\r\n" + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] DATA = "data: ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] END = "\n\n".getBytes(StandardCharsets.US_ASCII);
+
+	// largest request head accepted
+	private static final int MAX_REQUEST = 8192;
+
+	// frames kept for reuse
+	private static final int POOL = 4;
+
+	private final StateStore store;
+	private final long tickNanos;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final Thread thread;
+	private volatile boolean closed;
+
+	// below, selector thread only
+
+	private final List<Client> clients = new ArrayList<>();
+	private final ArrayDeque<Frame> pool = new ArrayDeque<>();
+	private final Frame response;
+	// scratch space for input after the request
+	private final ByteBuffer discard = ByteBuffer.allocate(1024);
+	// encoder of the state sent on connect
+	private final JsonStateWriter json = new JsonStateWriter();
+	private long latestVersion = -1L;
+	private int streaming;
+
+	private volatile int clientCount;
+	private volatile long frames;
+	private volatile long conflated;
+	private volatile long failedFrames;
+	private volatile InvalidDataTypeException frameError;
+	// what stopped the server, rethrown by close()
+	private volatile IOException failure;
+
+	/**
+	 * Starts a server taking a snapshot every {@link #DEFAULT_TICK_MILLIS}.
+	 *
+	 * @param store
+	 *                    store to be streamed
+	 * @param address
+	 *                    where to listen (port 0 for any free port)
+	 * @throws IOException
+	 */
+	public StateStreamServer(StateStore store, InetSocketAddress address) throws IOException {
+		this(store, address, DEFAULT_TICK_MILLIS);
+	}
+
+	/**
+	 *
+	 * @param store
+	 *                       store to be streamed
+	 * @param address
+	 *                       where to listen (port 0 for any free port)
+	 * @param tickMillis
+	 *                       time between two snapshots
+	 * @throws IOException
+	 */
+	public StateStreamServer(StateStore store, InetSocketAddress address, long tickMillis) throws IOException {
+		if (tickMillis <= 0L)
+			throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+		this.store = store;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		ByteBuffer headers = ByteBuffer.allocateDirect(RESPONSE.length);
+		headers.put(RESPONSE).flip();
+		this.response = new Frame(headers, false);
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		try {
+			server.bind(address, 1024);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			server.close();
+			selector.close();
+			throw e;
+		}
+		this.thread = new Thread(this::run, "state-stream-server");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 *
+	 * @return port the server listens on
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 *
+	 * @return connected clients
+	 */
+	public int getClients() {
+		return clientCount;
+	}
+
+	/**
+	 *
+	 * @return snapshots taken (and encoded, once each)
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 *
+	 * @return snapshots skipped by clients that were not ready for them
+	 */
+	public long getConflated() {
+		return conflated;
+	}
+
+	/**
+	 *
+	 * @return snapshots that could not be encoded (an entry of an unsupported
+	 *         type), skipped
+	 */
+	public long getFailedFrames() {
+		return failedFrames;
+	}
+
+	/**
+	 *
+	 * @return why the last snapshot that could not be encoded failed (null
+	 *         when none did)
+	 */
+	public InvalidDataTypeException getFrameError() {
+		return frameError;
+	}
+
+	/**
+	 *
+	 * @return whether the server still accepts clients (false once closed, or
+	 *         stopped by an I/O error)
+	 */
+	public boolean isRunning() {
+		return thread.isAlive();
+	}
+
+	/**
+	 * Stops the server and closes every connection.
+	 *
+	 * @throws IOException
+	 *                         the error that stopped the server before, if any
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private void run() {
+		try {
+			long next = System.nanoTime() + tickNanos;
+			while (!closed) {
+				long wait = TimeUnit.NANOSECONDS.toMillis(next - System.nanoTime());
+				if (wait > 0L)
+					selector.select(wait);
+				else
+					selector.selectNow();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else
+						ready((Client) key.attachment(), key);
+				}
+				long now = System.nanoTime();
+				if (now - next >= 0L) {
+					tick();
+					next = now + tickNanos;
+				}
+			}
+		} catch (IOException e) {
+			// the server is unusable: every client sees its stream end, and
+			// close() reports it
+			failure = e;
+		} catch (ClosedSelectorException e) {
+			failure = new IOException("selector closed", e);
+		} finally {
+			for (Client c : new ArrayList<>(clients))
+				drop(c);
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Client c = new Client(channel);
+			c.key = channel.register(selector, SelectionKey.OP_READ, c);
+			clients.add(c);
+			clientCount = clients.size();
+		}
+	}
+
+	private void ready(Client c, SelectionKey key) {
+		try {
+			if (key.isReadable())
+				read(c);
+			if (key.isValid() && key.isWritable())
+				flush(c);
+		} catch (IOException e) {
+			drop(c);
+		}
+	}
+
+	private void read(Client c) throws IOException {
+		if (c.request == null) {
+			// streaming: input is ignored, until the end of the stream
+			discard.clear();
+			if (c.channel.read(discard) < 0)
+				drop(c);
+			return;
+		}
+		if (c.channel.read(c.request) < 0) {
+			drop(c);
+			return;
+		}
+		if (!endOfHead(c.request)) {
+			// no room left for the blank line
+			if (!c.request.hasRemaining())
+				drop(c);
+			return;
+		}
+		boolean get = c.request.get(0) == 'G' && c.request.get(1) == 'E' && c.request.get(2) == 'T'
+				&& c.request.get(3) == ' ';
+		c.request = null;
+		if (!get) {
+			drop(c);
+			return;
+		}
+		streaming++;
+		offer(c, response);
+		Frame frame = frame();
+		try {
+			json.reset();
+			json.value(store.readState());
+			json.writeTo(frame.output);
+		} catch (InvalidDataTypeException e) {
+			// the client waits for the next snapshot
+			failed(frame, e);
+			return;
+		}
+		frame.output.write(END);
+		frame.buffer.flip();
+		offer(c, frame);
+		release(frame);
+	}
+
+	/**
+	 * 
+	 * @return whether the request holds a blank line (bytes may follow it,
+	 *         e.g. a pipelined request, read in the same packet)
+	 */
+	private static boolean endOfHead(ByteBuffer request) {
+		for (int i = request.position() - 4; i >= 0; i--) {
+			if (request.get(i) == '\r' && request.get(i + 1) == '\n' && request.get(i + 2) == '\r'
+					&& request.get(i + 3) == '\n')
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 
+	 * @return an empty frame (from the pool when possible), starting with the
+	 *         data field and held until released
+	 */
+	private Frame frame() throws IOException {
+		Frame frame = pool.poll();
+		if (frame == null)
+			frame = new Frame(ByteBuffer.allocateDirect(4096), true);
+		frame.buffer.clear();
+		frame.output.write(DATA);
+		frame.users++;
+		return frame;
+	}
+
+	/**
+	 * Counts a snapshot that could not be encoded, and releases its frame.
+	 */
+	private void failed(Frame frame, InvalidDataTypeException e) {
+		failedFrames++;
+		frameError = e;
+		release(frame);
+	}
+
+	/**
+	 * Takes and encodes a snapshot when the state changed and someone is
+	 * listening.
+	 */
+	private void tick() throws IOException {
+		if (streaming == 0)
+			return;
+		long version = store.getVersion();
+		if (version == latestVersion)
+			return;
+		latestVersion = version;
+		Frame frame = frame();
+		try {
+			store.writeStateAsJson(frame.output);
+		} catch (InvalidDataTypeException e) {
+			// skipped (the state was drained anyway): the server keeps
+			// streaming the next ones
+			failed(frame, e);
+			return;
+		}
+		frame.output.write(END);
+		frame.buffer.flip();
+		frames++;
+
+		// held (since frame()) while offered, so that it is not pooled before
+		// the last client
+		for (int i = clients.size() - 1; i >= 0; i--) {
+			Client c = clients.get(i);
+			if (c.request == null)
+				offer(c, frame);
+		}
+		release(frame);
+	}
+
+	/**
+	 * Queues a frame for a client: written right away when the client is idle,
+	 * otherwise replacing the one waiting, if any.
+	 */
+	private void offer(Client c, Frame frame) {
+		if (!c.channel.isOpen())
+			return;
+		frame.users++;
+		if (c.pending != null) {
+			release(c.pending);
+			conflated++;
+		}
+		c.pending = frame;
+		if (c.current == null) {
+			try {
+				flush(c);
+			} catch (IOException e) {
+				drop(c);
+			}
+		}
+	}
+
+	/**
+	 * Writes as much as the socket takes, moving on to the pending frame once
+	 * the current one is out.
+	 */
+	private void flush(Client c) throws IOException {
+		while (true) {
+			if (c.current == null) {
+				if (c.pending == null)
+					break;
+				c.current = c.pending;
+				c.pending = null;
+				c.view = c.current.buffer.duplicate();
+			}
+			c.channel.write(c.view);
+			if (c.view.hasRemaining()) {
+				c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			release(c.current);
+			c.current = null;
+			c.view = null;
+		}
+		c.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void release(Frame frame) {
+		if (--frame.users == 0 && frame.pooled && pool.size() < POOL)
+			pool.add(frame);
+	}
+
+	private void drop(Client c) {
+		if (!clients.remove(c))
+			return;
+		clientCount = clients.size();
+		if (c.request == null)
+			streaming--;
+		if (c.current != null)
+			release(c.current);
+		if (c.pending != null)
+			release(c.pending);
+		c.current = null;
+		c.pending = null;
+		c.key.cancel();
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+			// dropped anyway
+		}
+	}
+
+	/**
+	 * One encoded snapshot, shared by the clients writing it.
+	 */
+	private static final class Frame {
+		ByteBuffer buffer;
+		final boolean pooled;
+		// clients holding it (plus one while it is being encoded and offered)
+		int users;
+
+		final OutputStream output = new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				ensure(1);
+				buffer.put((byte) b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				ensure(len);
+				buffer.put(b, off, len);
+			}
+		};
+
+		Frame(ByteBuffer buffer, boolean pooled) {
+			this.buffer = buffer;
+			this.pooled = pooled;
+		}
+
+		private void ensure(int n) {
+			if (buffer.remaining() < n) {
+				ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + n));
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+		}
+	}
+
+	private static final class Client {
+		final SocketChannel channel;
+		SelectionKey key;
+		// request head being read (null once streaming)
+		ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+		// frame being written and the client's view of it
+		Frame current;
+		ByteBuffer view;
+		// latest frame, written next
+		Frame pending;
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+}
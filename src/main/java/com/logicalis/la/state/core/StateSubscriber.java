@@ -0,0 +1,42 @@
+package com.logicalis.la.state.core;
+
+import java.util.Map;
+
+/**
+ * Receives state snapshots from a {@link StatePublisher}. Same contract as
+ * java.util.concurrent.Flow.Subscriber (not available in Java 8): calls are
+ * never concurrent for one subscriber, and {@link #onNext(Map)} is only called
+ * after {@link StateSubscription#request(long)}.
+ */
+public interface StateSubscriber {
+
+	/**
+	 * Called once, before anything else.
+	 * 
+	 * @param subscription
+	 *                         used to request snapshots or cancel
+	 */
+	void onSubscribe(StateSubscription subscription);
+
+	/**
+	 * A snapshot of the state, delivered only when it changed since the previous
+	 * one. The map is shared by all subscribers and must not be modified.
+	 * 
+	 * @param state
+	 *                  latest state
+	 */
+	void onNext(Map<String, Object> state);
+
+	/**
+	 * Terminal failure (e.g. the state holds an invalid data type).
+	 * 
+	 * @param throwable
+	 *                      the failure
+	 */
+	void onError(Throwable throwable);
+
+	/**
+	 * The publisher was closed.
+	 */
+	void onComplete();
+}
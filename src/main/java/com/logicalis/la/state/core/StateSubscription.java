@@ -0,0 +1,21 @@
+package com.logicalis.la.state.core;
+
+/**
+ * Link between a {@link StatePublisher} and one {@link StateSubscriber} (same
+ * contract as java.util.concurrent.Flow.Subscription).
+ */
+public interface StateSubscription {
+
+	/**
+	 * Allows n more snapshots to be delivered.
+	 * 
+	 * @param n
+	 *              number of snapshots (must be positive)
+	 */
+	void request(long n);
+
+	/**
+	 * Stops deliveries.
+	 */
+	void cancel();
+}
@@ -0,0 +1,129 @@
+package com.logicalis.la.state.core;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live metrics of one {@link StateStore}. Counters are striped (LongAdder)
+ * and lock timing is sampled (1 in 64 acquisitions), so it can stay enabled
+ * in production.
+ */
+final class StoreMetrics {
+
+	private static final int LOCK_SAMPLE_MASK = 63;
+
+	volatile boolean enabled = true;
+
+	final LatencyHistogram lockWait = new LatencyHistogram();
+	final LatencyHistogram lockHold = new LatencyHistogram();
+	final LatencyHistogram snapshot = new LatencyHistogram();
+	final LatencyHistogram snapshotCopy = new LatencyHistogram();
+	final LatencyHistogram snapshotReset = new LatencyHistogram();
+
+	final LongAdder snapshots = new LongAdder();
+
+	// last drain interval (written by the snapshot thread)
+	volatile long intervalWrites;
+	volatile long intervalEmitted;
+	volatile int entries;
+
+	/**
+	 * Called just before acquiring a monitor.
+	 * 
+	 * @return start time when this acquisition is sampled, 0 otherwise
+	 */
+	long lockStart() {
+		if (!enabled || (ThreadLocalRandom.current().nextInt() & LOCK_SAMPLE_MASK) != 0)
+			return 0L;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Called right after acquiring the monitor.
+	 * 
+	 * @param start
+	 *                  value returned by {@link #lockStart()}
+	 * @return acquisition time when sampled, 0 otherwise
+	 */
+	long lockAcquired(long start) {
+		if (start == 0L)
+			return 0L;
+		long now = System.nanoTime();
+		lockWait.record(now - start);
+		return now;
+	}
+
+	/**
+	 * Called just before releasing the monitor.
+	 * 
+	 * @param acquired
+	 *                     value returned by {@link #lockAcquired(long)}
+	 */
+	void lockReleased(long acquired) {
+		if (acquired != 0L)
+			lockHold.record(System.nanoTime() - acquired);
+	}
+
+	/**
+	 * 
+	 * @return start time of a snapshot, 0 when disabled
+	 */
+	long snapshotStart() {
+		return enabled ? System.nanoTime() : 0L;
+	}
+
+	void snapshotDone(long start, long copied, long reset) {
+		snapshots.increment();
+		if (start == 0L)
+			return;
+		long now = System.nanoTime();
+		snapshot.record(now - start);
+		if (copied != 0L) {
+			snapshotCopy.record(copied - start);
+			snapshotReset.record((reset != 0L ? reset : now) - copied);
+		}
+	}
+
+	/**
+	 * Closes a drain interval.
+	 * 
+	 * @param writes
+	 *                    writes during the interval
+	 * @param emitted
+	 *                    entries written during the interval (one value each
+	 *                    in the snapshot)
+	 * @param entries
+	 *                    live entries
+	 */
+	void drained(long writes, long emitted, int entries) {
+		this.intervalWrites = writes;
+		this.intervalEmitted = emitted;
+		this.entries = entries;
+	}
+
+	/**
+	 * Rough (shallow) size of a value, in bytes.
+	 */
+	@SuppressWarnings("rawtypes")
+	static long estimateBytes(Object value) {
+		if (value instanceof String)
+			return 40L + 2L * ((String) value).length();
+		if (value instanceof Map) {
+			long n = 48L;
+			for (Object o : ((Map) value).entrySet()) {
+				Map.Entry e = (Map.Entry) o;
+				n += 32L + estimateBytes(e.getKey()) + estimateBytes(e.getValue());
+			}
+			return n;
+		}
+		if (value instanceof Collection) {
+			long n = 48L;
+			for (Object e : (Collection) value)
+				n += 32L + estimateBytes(e);
+			return n;
+		}
+		return 16L;
+	}
+}
@@ -1,9 +1,7 @@
 package com.logicalis.la.state.samples;
 
-import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeMap;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -25,6 +23,9 @@ public class DroneSample {
 	static double lat = -22.842830;
 	static double lng = -47.035735;
 
+	static final String[] LOCATION_LAT = StateStore.path("location.lat");
+	static final String[] LOCATION_LNG = StateStore.path("location.lng");
+
 	static String[] randomEvents = { "droneconnectionlost", "dronestoragefull" };
 
 	private long stopTime = 0L;
@@ -60,7 +61,7 @@ public class DroneSample {
 
 		// obtido do WaypointMissionOperatorListener.OnMissionUploadProgress
 		for (int i = 0; i < 100; i++) {
-			StateStore.getInstance().set("missionuploadprogress", new Long(i + 1));
+			StateStore.getInstance().set("missionuploadprogress", i + 1L);
 			sleep(30);
 		}
 		sleep(1000);
@@ -89,18 +90,19 @@ public class DroneSample {
 			}
 		});
 
+		// guarda a trajetória recente (últimas 200 posições) para o mapa
+		StateStore.getInstance().setHistory(LOCATION_LAT, 200);
+		StateStore.getInstance().setHistory(LOCATION_LNG, 200);
+
 		// obtido do FlightControllerState.OnDroneUpdateLocation
 		Thread flightOnDroneUpdateLocation = new Thread(new Runnable() {
 
 			@Override
 			public void run() {
 				while (isFlying()) {
-					Map<String, Double> coords = new TreeMap<>();
 					lat += Math.random() * 0.0001;
 					lng += Math.random() * 0.0001;
-					coords.put("lat", lat);
-					coords.put("lng", lng);
-					StateStore.getInstance().set("location", coords);
+					StateStore.getInstance().update(batch -> batch.set(LOCATION_LAT, lat).set(LOCATION_LNG, lng));
 					sleep(50);
 				}
 			}
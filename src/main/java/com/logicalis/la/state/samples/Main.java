@@ -1,13 +1,12 @@
 package com.logicalis.la.state.samples;
 
-import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeMap;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.logicalis.la.state.core.InvalidDataTypeException;
+import com.logicalis.la.state.core.StateKey;
 import com.logicalis.la.state.core.StateStore;
 
 /**
@@ -24,6 +23,10 @@ public class Main {
 	static double lng = -47.035735;
 	static double alt = 300.0;
 
+	static final String[] COORD_LAT = StateStore.path("coord.lat");
+	static final String[] COORD_LNG = StateStore.path("coord.lng");
+	static final String[] COORD_ALT = StateStore.path("coord.alt");
+
 	public Main() {
 
 		// simula a geração de aprox. 200 chamadas/segundo ao callback de atualização
@@ -33,14 +36,13 @@ public class Main {
 			@Override
 			public void run() {
 				while (true) {
-					Map<String, Double> coords = new TreeMap<>();
 					lat += Math.random() * 0.0001;
 					lng += Math.random() * 0.0001;
 					alt += -0.001 + (Math.random() * 0.002);
-					coords.put("lat", lat);
-					coords.put("lng", lng);
-					coords.put("alt", alt);
-					StateStore.getInstance().set("coord", coords);
+					// atualiza o mapa "coord" no lugar, sem alocar um novo mapa, numa
+					// única atualização (o journal grava o mapa uma vez)
+					StateStore.getInstance().update(batch -> batch.set(COORD_LAT, lat).set(COORD_LNG, lng)
+							.set(COORD_ALT, alt));
 					sleep(4);
 				}
 			}
@@ -49,10 +51,14 @@ public class Main {
 		// simula a geração de aprox. 100 chamadas/segundo ao callback de atualização
 		// de nível de bateria
 		Thread populateBattery = new Thread(new Runnable() {
+
+			// chave registrada: escrita direta no slot, sem busca por nome
+			private final StateKey battery = StateStore.getInstance().register("battery", StateKey.Type.DOUBLE);
+
 			@Override
 			public void run() {
 				while (true) {
-					StateStore.getInstance().set("battery", batteryLevel);
+					StateStore.getInstance().set(battery, batteryLevel);
 					batteryLevel -= 0.00001;
 					sleep(9);
 				}
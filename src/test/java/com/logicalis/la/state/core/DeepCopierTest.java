@@ -0,0 +1,125 @@
+package com.logicalis.la.state.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.jupiter.api.Test;
+
+class DeepCopierTest {
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testClone() throws Exception {
+		Map<String, Object> inner = new HashMap<>();
+		inner.put("lat", -22.842830);
+		inner.put("sats", 9L);
+		inner.put("events", new LinkedHashSet<>(Arrays.asList("b", "a")));
+		Map<String, Object> map = new TreeMap<>(Collections.reverseOrder());
+		map.put("inner", inner);
+		map.put("list", new ArrayList<>(Arrays.asList("x", new LinkedList<>(Arrays.asList(1L, 2L)))));
+		map.put("sorted", new TreeSet<>(Arrays.asList("z", "y")));
+		map.put("linked", new LinkedHashMap<>(Collections.singletonMap("k", "v")));
+		map.put("other", new ConcurrentSkipListMap<>(Collections.singletonMap("k", 1.5)));
+
+		Map<String, Object> copy = (Map<String, Object>) DeepCopier.clone(map);
+		assertEquals(map, copy);
+		assertEquals(TreeMap.class, copy.getClass());
+		assertEquals(Arrays.asList("sorted", "other", "list", "linked", "inner"), new ArrayList<>(copy.keySet()),
+				"Comparator is kept");
+		for (String key : map.keySet()) {
+			assertNotSame(map.get(key), copy.get(key), key);
+			assertEquals(map.get(key).getClass(), copy.get(key).getClass(), key);
+		}
+		Map<String, Object> innerCopy = (Map<String, Object>) copy.get("inner");
+		assertNotSame(inner.get("events"), innerCopy.get("events"));
+		assertSame(inner.get("lat"), innerCopy.get("lat"), "Immutable values are shared");
+		assertEquals(Arrays.asList("b", "a"), new ArrayList<>((LinkedHashSet<String>) innerCopy.get("events")));
+		assertNotSame(((List<?>) map.get("list")).get(1), ((List<?>) copy.get("list")).get(1));
+	}
+
+	@Test
+	void testInvalidData() {
+		Map<String, Object> map = new HashMap<>();
+		map.put("integer", 1);
+		assertThrows(InvalidDataTypeException.class, () -> DeepCopier.clone(map));
+		map.put("integer", null);
+		assertThrows(InvalidDataTypeException.class, () -> DeepCopier.clone(map));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testCloneInto() throws Exception {
+		Map<String, Object> inner = new HashMap<>();
+		inner.put("lat", -22.842830);
+		Map<String, Object> map = new HashMap<>();
+		map.put("inner", inner);
+		map.put("list", new ArrayList<>(Arrays.asList("a", "b", "c")));
+		map.put("events", new HashSet<>(Arrays.asList("a")));
+		map.put("gone", "soon");
+		Map<String, Object> previous = (Map<String, Object>) DeepCopier.clone(map);
+		Object previousInner = previous.get("inner");
+		Object previousList = previous.get("list");
+		Object previousEvents = previous.get("events");
+
+		inner.put("lat", -22.5);
+		inner.put("lng", -47.0);
+		map.put("list", new ArrayList<>(Arrays.asList("d")));
+		map.put("events", new HashSet<>(Arrays.asList("b", "c")));
+		map.remove("gone");
+		map.put("new", 1L);
+		Object copy = DeepCopier.cloneInto(map, previous);
+		assertSame(previous, copy);
+		assertEquals(map, copy);
+		assertSame(previousInner, previous.get("inner"));
+		assertSame(previousList, previous.get("list"));
+		assertSame(previousEvents, previous.get("events"));
+
+		// another type is not recycled
+		map.put("list", new LinkedList<>(Arrays.asList("e")));
+		DeepCopier.cloneInto(map, previous);
+		assertEquals(map, previous);
+		assertEquals(LinkedList.class, previous.get("list").getClass());
+		assertNotSame(map, DeepCopier.cloneInto(map, new HashMap<>()));
+
+		// TreeMaps, with the same keys and with other keys
+		Map<String, Object> sorted = new TreeMap<>(map);
+		Map<String, Object> sortedCopy = (Map<String, Object>) DeepCopier.clone(sorted);
+		Object nested = sortedCopy.get("inner");
+		assertSame(sortedCopy, DeepCopier.cloneInto(sorted, sortedCopy));
+		assertEquals(sorted, sortedCopy);
+		assertSame(nested, sortedCopy.get("inner"));
+		sorted.remove("events");
+		sorted.put("a", "first");
+		sorted.put("z", new ArrayList<>(Arrays.asList("last")));
+		assertSame(sortedCopy, DeepCopier.cloneInto(sorted, sortedCopy));
+		assertEquals(sorted, sortedCopy);
+		assertSame(nested, sortedCopy.get("inner"));
+		sorted.remove("a");
+		sorted.put("b", 2L);
+		assertSame(sortedCopy, DeepCopier.cloneInto(sorted, sortedCopy));
+		assertEquals(sorted, sortedCopy);
+
+		// another order is not recycled
+		Map<String, Object> reversed = new TreeMap<>(Collections.reverseOrder());
+		reversed.putAll(sorted);
+		Map<String, Object> reversedCopy = (Map<String, Object>) DeepCopier.cloneInto(reversed, sortedCopy);
+		assertNotSame(sortedCopy, reversedCopy);
+		assertEquals("z", reversedCopy.keySet().iterator().next());
+	}
+}
@@ -0,0 +1,47 @@
+package com.logicalis.la.state.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+class PersistentSortedMapTest {
+
+	@Test
+	void testBehavesLikeTreeMap() {
+		Random random = new Random(42L);
+		TreeMap<String, Integer> expected = new TreeMap<>();
+		PersistentSortedMap<Integer> map = PersistentSortedMap.empty();
+		for (int i = 0; i < 20000; i++) {
+			String key = "k" + random.nextInt(500);
+			if (random.nextInt(3) == 0) {
+				expected.remove(key);
+				map = map.minus(key);
+			} else {
+				expected.put(key, i);
+				map = map.plus(key, i);
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected, map);
+		assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(map.keySet()), "Keys should be ordered");
+	}
+
+	@Test
+	void testVersionsAreIndependent() {
+		PersistentSortedMap<Integer> v1 = PersistentSortedMap.<Integer>empty().plus("a", 1).plus("b", 2);
+		PersistentSortedMap<Integer> v2 = v1.plus("c", 3).minus("a");
+		assertEquals(2, v1.size());
+		assertEquals(Integer.valueOf(1), v1.get("a"));
+		assertEquals(null, v1.get("c"));
+		List<String> keys = new ArrayList<>();
+		for (Map.Entry<String, Integer> e : v2.entrySet())
+			keys.add(e.getKey());
+		assertEquals("[b, c]", keys.toString());
+	}
+}
@@ -0,0 +1,212 @@
+package com.logicalis.la.state.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+class StateCodecTest {
+
+	@Test
+	void testRoundTrip() throws Exception {
+		Map<String, Object> state = new TreeMap<>();
+		state.put("status", "flying");
+		state.put("name", "drone \u00e7\u00e3o \ud83d\ude81");
+		state.put("empty", "");
+		state.put("progress", 12L);
+		state.put("negative", -1L);
+		state.put("min", Long.MIN_VALUE);
+		state.put("max", Long.MAX_VALUE);
+		state.put("battery", 98.5);
+		state.put("nan", Double.NaN);
+		state.put("infinity", Double.NEGATIVE_INFINITY);
+		Map<String, Object> coord = new HashMap<>();
+		coord.put("lat", -22.842830);
+		coord.put("lng", -47.035735);
+		Map<String, Object> nested = new HashMap<>();
+		nested.put("sats", Arrays.asList(3L, 7L, 9L));
+		coord.put("gps", nested);
+		state.put("coord", coord);
+		state.put("mission", new ArrayList<>(Arrays.asList("takeoff", "waypoint 1", "takeoff")));
+		state.put("events", new HashSet<>(Arrays.asList("missionstart", "droneconnectionlost")));
+		state.put("nothing", new HashSet<>());
+
+		StateEncoder encoder = new StateEncoder();
+		StateDecoder decoder = new StateDecoder();
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		int length = encoder.encode(state, buffer);
+		assertEquals(length, buffer.position());
+		buffer.flip();
+		Map<String, Object> decoded = decoder.decode(buffer);
+		assertEquals(0, buffer.remaining());
+		assertEquals(state, decoded);
+		assertEquals(encoder.getKeys(), decoder.getKeys());
+	}
+
+	@Test
+	void testStoreSnapshot() throws Exception {
+		for (Backend backend : Backend.values()) {
+			StateStore store = StateStore.create(backend);
+			fill(store, 0);
+			Map<String, Object> state = store.getState();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+			new StateEncoder().encode(state, buffer);
+			buffer.flip();
+			assertEquals(state, new StateDecoder().decode(buffer), backend.name());
+		}
+	}
+
+	@Test
+	void testDictionary() throws Exception {
+		StateEncoder encoder = new StateEncoder();
+		StateDecoder decoder = new StateDecoder();
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+		fill(store, 0);
+		int first = encoder.encode(store.getState(), buffer);
+		fill(store, 1);
+		int second = encoder.encode(store.getState(), buffer);
+		assertTrue(3 * second < 2 * first, "Key names are written once: " + first + " / " + second);
+
+		// a new decoder joins the stream
+		encoder.reset();
+		fill(store, 2);
+		Map<String, Object> expected = store.getState();
+		int third = encoder.encode(expected, buffer);
+		assertEquals(first, third);
+
+		buffer.flip();
+		decoder.decode(buffer);
+		decoder.decode(buffer);
+		StateDecoder late = new StateDecoder();
+		ByteBuffer last = buffer.duplicate();
+		assertEquals(expected, decoder.decode(buffer));
+		last.position(first + second);
+		assertEquals(expected, late.decode(last));
+	}
+
+	@Test
+	void testDictionaryLimit() throws Exception {
+		StateEncoder encoder = new StateEncoder(2);
+		StateDecoder decoder = new StateDecoder();
+		Map<String, Object> state = new TreeMap<>();
+		for (int i = 0; i < 5; i++)
+			state.put("key" + i, (long) i);
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		encoder.encode(state, buffer);
+		encoder.encode(state, buffer);
+		assertEquals(2, encoder.getKeys());
+		buffer.flip();
+		assertEquals(state, decoder.decode(buffer));
+		assertEquals(state, decoder.decode(buffer));
+		assertEquals(2, decoder.getKeys());
+	}
+
+	@Test
+	void testOverflow() throws Exception {
+		StateEncoder encoder = new StateEncoder();
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		fill(store, 0);
+		Map<String, Object> state = store.getState();
+		ByteBuffer small = ByteBuffer.allocate(32);
+		small.put((byte) 42);
+		assertThrows(BufferOverflowException.class, () -> encoder.encode(state, small));
+		assertEquals(1, small.position(), "Buffer position is restored");
+		assertEquals(0, encoder.getKeys(), "Dictionary is restored");
+
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		encoder.encode(state, buffer);
+		buffer.flip();
+		assertEquals(state, new StateDecoder().decode(buffer));
+	}
+
+	@Test
+	void testInvalidData() throws Exception {
+		StateEncoder encoder = new StateEncoder();
+		Map<String, Object> state = new TreeMap<>();
+		state.put("ok", 1L);
+		state.put("wrong", 1);
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		assertThrows(InvalidDataTypeException.class, () -> encoder.encode(state, buffer));
+		assertEquals(0, buffer.position());
+		assertEquals(0, encoder.getKeys());
+
+		state.remove("wrong");
+		encoder.encode(state, buffer);
+		buffer.flip();
+		buffer.limit(buffer.limit() - 1);
+		assertThrows(InvalidDataTypeException.class, () -> new StateDecoder().decode(buffer));
+		assertThrows(InvalidDataTypeException.class,
+				() -> new StateDecoder().decode(ByteBuffer.wrap(new byte[] { 1, 1, 3 })));
+	}
+
+	@Test
+	void testMalformedMessages() throws Exception {
+		// -1 as a varint: ten bytes, the last one without continuation
+		byte[] negative = { -1, -1, -1, -1, -1, -1, -1, -1, -1, 1 };
+		for (byte[] message : new byte[][] {
+				// map of one key, new key of length -1
+				concat(new byte[] { 1, 1, StateEncoder.NEW_KEY }, negative),
+				// literal key of length -1
+				concat(new byte[] { 1, 1, StateEncoder.LITERAL_KEY }, negative),
+				// key id -1
+				concat(new byte[] { 1, 1 }, negative),
+				// string value of length -1
+				concat(new byte[] { 1, 1, StateEncoder.LITERAL_KEY, 1, 'a', StateEncoder.STRING }, negative),
+				// list of -1 elements
+				concat(new byte[] { 1, 1, StateEncoder.LITERAL_KEY, 1, 'a', StateEncoder.LIST }, negative),
+				// map of -1 entries
+				concat(new byte[] { 1 }, negative) }) {
+			assertThrows(InvalidDataTypeException.class, () -> new StateDecoder().decode(ByteBuffer.wrap(message)));
+		}
+	}
+
+	@Test
+	void testSmallerThanJson() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		StateEncoder encoder = new StateEncoder();
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+		fill(store, 0);
+		Map<String, Object> state = store.getState();
+		int json = mapper.writeValueAsBytes(state).length;
+		encoder.encode(state, buffer);
+		buffer.clear();
+		int binary = encoder.encode(state, buffer);
+		assertTrue(3 * binary < 2 * json, "Once keys are in the dictionary");
+	}
+
+	private static byte[] concat(byte[] head, byte[] tail) {
+		byte[] all = Arrays.copyOf(head, head.length + tail.length);
+		System.arraycopy(tail, 0, all, head.length, tail.length);
+		return all;
+	}
+
+	private static void fill(StateStore store, int tick) {
+		Map<String, Double> coords = new TreeMap<>();
+		coords.put("lat", -22.842830 + tick * 0.0001);
+		coords.put("lng", -47.035735 + tick * 0.0001);
+		store.set("location", coords);
+		store.set("windlevel", 1.52 + tick * 0.0001);
+		store.set("gpssignallevel", 4.8 + tick * 0.0001);
+		store.set("batterylevel", 87.6 - tick * 0.0001);
+		store.set("missionuploadprogress", 100L);
+		store.addToList("mission", "missionstart");
+		store.addToSet("events", "droneconnectionlost");
+	}
+}
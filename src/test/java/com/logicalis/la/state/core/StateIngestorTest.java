@@ -0,0 +1,163 @@
+package com.logicalis.la.state.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+import com.logicalis.la.state.core.StateIngestor.OverflowPolicy;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+class StateIngestorTest {
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testManyProducersNothingLost() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StateIngestor ingestor = new StateIngestor(store, 1024, 64, OverflowPolicy.BLOCK);
+		ingestor.start();
+		int threads = 4;
+		int writes = 10000;
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			new Thread(() -> {
+				for (int i = 0; i < writes; i++) {
+					ingestor.set("battery" + id, (double) i);
+					ingestor.addToList("mission" + id, "event " + i);
+				}
+				done.countDown();
+			}).start();
+		}
+		done.await();
+		ingestor.stop();
+
+		Map<String, Object> state = store.getState();
+		for (int t = 0; t < threads; t++) {
+			assertEquals(Double.valueOf(writes - 1), state.get("battery" + t));
+			assertEquals(writes, ((List<String>) state.get("mission" + t)).size());
+		}
+		assertEquals(0L, ingestor.getDropped());
+		assertEquals(2L * threads * writes, ingestor.getApplied() + ingestor.getCoalesced());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testDropOldest() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StateIngestor ingestor = new StateIngestor(store, 4, 4, OverflowPolicy.DROP_OLDEST);
+		for (int i = 0; i < 10; i++)
+			ingestor.addToList("mission", "event " + i);
+		assertEquals(6L, ingestor.getDropped());
+		assertEquals(4, ingestor.getPending());
+
+		assertEquals(4, ingestor.drain());
+		List<String> mission = (List<String>) store.getState().get("mission");
+		assertEquals("[event 6, event 7, event 8, event 9]", mission.toString(), "Newest records are kept");
+	}
+
+	@Test
+	void testOverwriteLatestPerKey() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StateIngestor ingestor = new StateIngestor(store, 2, 2, OverflowPolicy.OVERWRITE_LATEST_PER_KEY);
+		ingestor.set("battery", 100.0);
+		ingestor.set("windlevel", 1L);
+		// ring is full from now on
+		ingestor.set("battery", 99.0);
+		ingestor.set("battery", 98.0);
+		ingestor.addToList("mission", "missionerror");
+		assertEquals(2L, ingestor.getOverflowed());
+		assertEquals(1L, ingestor.getDropped(), "Events cannot be conflated");
+		assertEquals(2, ingestor.getPending(), "Written over the pending record");
+
+		ingestor.drain();
+		Map<String, Object> state = store.getState();
+		assertEquals(98.0, state.get("battery"), "Latest value wins");
+		assertEquals(1L, state.get("windlevel"));
+		assertEquals(2L, state.get("_updates"));
+	}
+
+	@Test
+	void testOverwriteKeepsOrderPerKey() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StateIngestor ingestor = new StateIngestor(store, 4, 4, OverflowPolicy.OVERWRITE_LATEST_PER_KEY);
+		ingestor.set("battery", 100.0);
+		ingestor.remove("mission");
+		ingestor.addToList("mission", "takeoff");
+		ingestor.set("windlevel", 1L);
+		// ring is full: written over the pending records, which keep their place
+		ingestor.set("battery", 99.0);
+		ingestor.remove("battery");
+		ingestor.set("windlevel", 2L);
+		assertEquals(3L, ingestor.getOverflowed());
+
+		assertEquals(4, ingestor.drain());
+		Map<String, Object> state = store.getState();
+		assertFalse(state.containsKey("battery"));
+		assertEquals(2L, state.get("windlevel"));
+		assertEquals(Arrays.asList("takeoff"), state.get("mission"), "Removed before the event");
+	}
+
+	@Test
+	void testEntriesWithHistoryAreNotOverwritten() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		store.setHistory("battery", 10);
+		StateIngestor ingestor = new StateIngestor(store, 2, 2, OverflowPolicy.OVERWRITE_LATEST_PER_KEY);
+		ingestor.set("battery", 100.0);
+		ingestor.set("battery", 99.0);
+		// ring is full: the producer waits instead of losing a sample
+		Thread producer = new Thread(() -> ingestor.set("battery", 98.0));
+		producer.start();
+		while (producer.getState() == Thread.State.RUNNABLE && ingestor.getPending() == 2)
+			Thread.yield();
+		assertEquals(0L, ingestor.getOverflowed());
+		while (producer.isAlive())
+			ingestor.drain();
+		ingestor.drain();
+
+		assertEquals(3, store.getHistory("battery", Long.MIN_VALUE).size());
+		assertEquals(0L, ingestor.getCoalesced());
+		assertEquals(98.0, store.getState().get("battery"));
+	}
+
+	@Test
+	void testCoalescesConsecutiveWrites() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StateIngestor ingestor = new StateIngestor(store, 16, 16, OverflowPolicy.BLOCK);
+		ingestor.set("coord", 1.0);
+		ingestor.set("coord", 2.0);
+		ingestor.set("coord", 3.0);
+		ingestor.set("battery", 99.0);
+		ingestor.remove("battery");
+
+		assertEquals(5, ingestor.drain());
+		assertEquals(3L, ingestor.getCoalesced());
+		assertEquals(2L, ingestor.getApplied());
+		Map<String, Object> state = store.getState();
+		assertEquals(Double.valueOf(3.0), state.get("coord"));
+		assertEquals(false, state.containsKey("battery"));
+	}
+
+	@Test
+	void testReducedEntriesAreNotCoalesced() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		store.setReducer("distance", StateStore.Reducer.SUM);
+		StateIngestor ingestor = new StateIngestor(store, 64, 64, OverflowPolicy.BLOCK);
+		for (int i = 1; i <= 10; i++) {
+			ingestor.set("distance", (double) i);
+			ingestor.set("battery", (double) i);
+		}
+		for (int i = 1; i <= 10; i++)
+			ingestor.set("battery", (double) i);
+		ingestor.drain();
+		Map<String, Object> state = store.getState();
+		assertEquals(55.0, state.get("distance"));
+		assertEquals(10.0, state.get("battery"));
+		assertEquals(10L, ingestor.getCoalesced(), "Only battery writes are skipped");
+	}
+}
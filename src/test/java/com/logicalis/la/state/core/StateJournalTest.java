@@ -0,0 +1,250 @@
+package com.logicalis.la.state.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.logicalis.la.state.core.StateStore.Backend;
+
+class StateJournalTest {
+
+	private Path directory;
+
+	@BeforeEach
+	void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("state-journal");
+	}
+
+	@AfterEach
+	void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+				Files.delete(file);
+		}
+	}
+
+	@Test
+	void testRecovery() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore store = StateStore.create(backend);
+			StateJournal journal = StateJournal.open(store, directory.resolve(backend.name()));
+			fill(store);
+			journal.close();
+			StateStore twin = StateStore.create(backend);
+			fill(twin);
+			Map<String, Object> expected = peek(twin);
+
+			StateStore recovered = StateStore.create(backend);
+			StateJournal.open(recovered, directory.resolve(backend.name())).close();
+			assertEquals(expected, peek(recovered), backend.name());
+		}
+	}
+
+	@Test
+	void testDrainedEventsAreNotReplayed() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StateJournal journal = StateJournal.open(store, directory);
+		store.addToList("mission", "takeoff");
+		store.addToSet("events", "missionstart");
+		store.getState();
+		store.addToList("mission", "land");
+		journal.close();
+
+		StateStore recovered = StateStore.create(Backend.SYNCHRONIZED);
+		StateJournal.open(recovered, directory).close();
+		Map<String, Object> state = recovered.getState();
+		assertEquals(Arrays.asList("land"), state.get("mission"));
+		assertEquals(new HashSet<>(), state.get("events"));
+	}
+
+	@Test
+	void testCheckpoint() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		StateJournal journal = StateJournal.open(store, directory);
+		fill(store);
+		journal.checkpoint();
+		store.addToList("mission", "land");
+		store.set("battery", 20.0);
+		journal.close();
+		StateStore twin = StateStore.create(Backend.CONCURRENT);
+		fill(twin);
+		twin.addToList("mission", "land");
+		twin.set("battery", 20.0);
+		Map<String, Object> expected = peek(twin);
+		try (Stream<Path> segments = Files.list(directory)) {
+			assertEquals(1L, segments.filter(p -> p.toString().endsWith(".log")).count(),
+					"Covered segments are deleted");
+		}
+
+		StateStore recovered = StateStore.create(Backend.CONCURRENT);
+		StateJournal reopened = StateJournal.open(recovered, directory);
+		assertEquals(journal.getSequence(), reopened.getSequence());
+		assertEquals(expected, peek(recovered));
+		reopened.close();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testCheckpointWhileWriting() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		StateJournal journal = StateJournal.open(store, directory, 1L, 4096L);
+		int threads = 2;
+		int writes = 20000;
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			new Thread(() -> {
+				for (int i = 0; i < writes; i++) {
+					store.addToList("list" + id, "event " + i);
+					store.set("counter" + id, (long) i);
+				}
+				done.countDown();
+			}).start();
+		}
+		while (done.getCount() > 0)
+			journal.checkpoint();
+		journal.close();
+
+		StateStore recovered = StateStore.create(Backend.CONCURRENT);
+		StateJournal.open(recovered, directory).close();
+		Map<String, Object> state = recovered.getState();
+		for (int t = 0; t < threads; t++) {
+			assertEquals(Long.valueOf(writes - 1), state.get("counter" + t));
+			List<String> list = (List<String>) state.get("list" + t);
+			assertEquals(writes, list.size(), "Each event is replayed exactly once");
+			assertEquals("event " + (writes - 1), list.get(writes - 1));
+		}
+	}
+
+	@Test
+	void testTornFrameIsIgnored() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StateJournal journal = StateJournal.open(store, directory);
+		store.set("battery", 80.0);
+		journal.sync();
+		store.set("battery", 70.0);
+		journal.close();
+
+		// half written frame at the end of the last segment
+		Path segment;
+		try (Stream<Path> segments = Files.list(directory)) {
+			segment = segments.filter(p -> p.toString().endsWith(".log")).sorted().reduce((a, b) -> b).get();
+		}
+		try (FileChannel out = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+			out.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 1, 7 }));
+		}
+
+		StateStore recovered = StateStore.create(Backend.SYNCHRONIZED);
+		StateJournal reopened = StateJournal.open(recovered, directory);
+		assertEquals(70.0, recovered.getState().get("battery"));
+		recovered.set("battery", 60.0);
+		reopened.close();
+
+		StateStore again = StateStore.create(Backend.SYNCHRONIZED);
+		StateJournal.open(again, directory).close();
+		assertEquals(60.0, again.getState().get("battery"));
+	}
+
+	@Test
+	void testPersistentBackendIsNotSupported() {
+		assertThrows(UnsupportedOperationException.class,
+				() -> StateJournal.open(StateStore.create(Backend.PERSISTENT), directory));
+	}
+
+	@Test
+	void testBatchedLeavesAreJournaledOnce() throws Exception {
+		String[] lat = StateStore.path("coord.lat");
+		String[] lng = StateStore.path("coord.lng");
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StateJournal journal = StateJournal.open(store, directory);
+		store.update(batch -> batch.set(lat, -22.84).set(lng, -47.03).set("battery", 80.0).set(lat, -22.85));
+		assertEquals(3L, journal.getSequence(), "coord, battery, coord");
+		journal.close();
+
+		StateStore recovered = StateStore.create(Backend.SYNCHRONIZED);
+		StateJournal.open(recovered, directory).close();
+		assertEquals(peek(store), peek(recovered));
+	}
+
+	@Test
+	void testSyncsAreBatched() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		StateJournal journal = StateJournal.open(store, directory);
+		for (int i = 0; i < 200000; i++)
+			store.set("battery" + (i & 7), (double) i);
+		journal.close();
+		assertEquals(200000L, journal.getSequence());
+		assertTrue(journal.getSyncs() < journal.getSequence() / 100, "Syncs are per batch, not per write");
+	}
+
+	@Test
+	void testFailedJournalRejectsWrites() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StateJournal journal = StateJournal.open(store, directory);
+		store.set("battery", 80.0);
+		Field channel = StateJournal.class.getDeclaredField("channel");
+		channel.setAccessible(true);
+		((FileChannel) channel.get(journal)).close();
+		assertThrows(IOException.class, journal::sync);
+
+		assertThrows(UncheckedIOException.class, () -> store.set("battery", 70.0));
+		assertThrows(UncheckedIOException.class, () -> store.addToList("mission", "land"));
+		assertThrows(UncheckedIOException.class, () -> store.set(StateStore.path("gps.fix.sats"), 9L));
+		Map<String, Object> state = peek(store);
+		assertEquals(80.0, state.get("battery"), "The failed write is not applied");
+		assertFalse(state.containsKey("gps"));
+	}
+
+	private static void fill(StateStore store) {
+		store.set("battery", 98.5);
+		store.set("missionuploadprogress", 12L);
+		store.set("status", "flying");
+		store.set("name", "drone \u00e7\u00e3o \ud83d\ude81");
+		Map<String, Object> coord = new HashMap<>();
+		coord.put("lat", -22.842830);
+		coord.put("lng", -47.035735);
+		coord.put("sats", 9L);
+		store.set("coord", coord);
+		store.addToSet("events", "droneconnectionlost");
+		store.addToSet("events", "missionstart");
+		store.addToList("mission", "takeoff");
+		store.addToList("mission", "waypoint 1");
+		store.set(StateStore.path("gps.fix.sats"), 9L);
+		store.set(StateStore.path("gps.fix.mode"), "3d");
+		store.addToList(StateStore.path("gps.log"), "fix");
+		store.set("removed", "soon");
+		store.remove("removed");
+	}
+
+	/**
+	 * State without _updates (not journaled).
+	 */
+	private static Map<String, Object> peek(StateStore store) throws Exception {
+		Map<String, Object> state = store.getState();
+		state.remove("_updates");
+		return state;
+	}
+}
@@ -0,0 +1,161 @@
+package com.logicalis.la.state.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.logicalis.la.state.core.StateStore.Backend;
+
+class StateMirrorTest {
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testMirror() throws Exception {
+		Path file = Files.createTempFile("state-mirror", ".bin");
+		try {
+			StateStore store = StateStore.create(Backend.CONCURRENT);
+			StateKey battery = store.register("battery", StateKey.Type.DOUBLE);
+			store.set(battery, 98.5);
+			StateMirror mirror = StateMirror.open(store, file, 8, 128);
+			StateKey progress = store.register("missionuploadprogress", StateKey.Type.LONG);
+			StateKey status = store.register("status", StateKey.Type.STRING);
+			StateKey events = store.register("events", StateKey.Type.SET);
+			StateKey mission = store.register("mission", StateKey.Type.LIST);
+			store.set(progress, 42L);
+			store.set("status", "flying \u00e7");
+			store.addToSet(events, "missionstart");
+			for (int i = 0; i < 20; i++)
+				store.addToList(mission, "waypoint " + i);
+			store.set("unregistered", 1.0);
+
+			try (StateMirrorReader reader = StateMirrorReader.open(file)) {
+				Map<String, Object> state = reader.read();
+				assertEquals(98.5, state.get("battery"));
+				assertEquals(42L, state.get("missionuploadprogress"));
+				assertEquals("flying \u00e7", reader.read(status.getIndex()));
+				assertEquals(new HashSet<>(Arrays.asList("missionstart")), state.get("events"));
+				List<String> list = (List<String>) state.get("mission");
+				assertTrue(list.size() < 20, "Only the most recent events fit in the slot");
+				assertEquals("waypoint 19", list.get(list.size() - 1));
+				assertFalse(state.containsKey("unregistered"));
+
+				// drained events and removals show up too
+				store.getState();
+				store.remove("status");
+				assertEquals(Arrays.asList(), reader.read(mission.getIndex()));
+				assertNull(reader.read(status.getIndex()));
+			}
+			mirror.close();
+			store.set(battery, 10.0);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testSlidingWindow() throws Exception {
+		Path file = Files.createTempFile("state-mirror", ".bin");
+		try {
+			StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+			StateKey mission = store.register("mission", StateKey.Type.LIST);
+			StateKey events = store.register("events", StateKey.Type.LIST);
+			store.setCapacity("events", 3, StateStore.Overflow.DROP_OLDEST);
+			StateMirror mirror = StateMirror.open(store, file, 2, 128);
+			for (int i = 0; i < 1000; i++) {
+				store.addToList(mission, "waypoint " + i);
+				store.addToList(events, "e" + i);
+			}
+
+			try (StateMirrorReader reader = StateMirrorReader.open(file)) {
+				// 64 bytes of events: the four most recent, 14 bytes each
+				assertEquals(Arrays.asList("waypoint 996", "waypoint 997", "waypoint 998", "waypoint 999"),
+						reader.read(mission.getIndex()));
+				assertEquals(Arrays.asList("e997", "e998", "e999"), (List<String>) reader.read(events.getIndex()),
+						"Evicted events leave the slot");
+			}
+			mirror.close();
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	void testCrossProcess() throws Exception {
+		Path file = Files.createTempFile("state-mirror", ".bin");
+		int writes = 200000;
+		try {
+			StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+			StateKey progress = store.register("progress", StateKey.Type.LONG);
+			StateKey status = store.register("status", StateKey.Type.STRING);
+			StateKey battery = store.register("battery", StateKey.Type.DOUBLE);
+			StateMirror mirror = StateMirror.open(store, file, 4);
+
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			Process reader = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					Reader.class.getName(), file.toString(), Integer.toString(writes)).redirectErrorStream(true)
+							.start();
+			for (int i = 1; i <= writes; i++) {
+				store.set(status, "step " + i + " of " + i);
+				store.set(battery, i + 0.5);
+				store.set(progress, (long) i);
+			}
+			assertTrue(reader.waitFor(60, TimeUnit.SECONDS), "Reader did not finish");
+			String output;
+			try (BufferedReader in = new BufferedReader(
+					new InputStreamReader(reader.getInputStream(), StandardCharsets.UTF_8))) {
+				output = in.readLine();
+			}
+			assertEquals(0, reader.exitValue(), output);
+			mirror.close();
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * The other process: reads until the last write shows up, checking every
+	 * slot is never seen half written.
+	 */
+	public static class Reader {
+		public static void main(String[] args) throws Exception {
+			int writes = Integer.parseInt(args[1]);
+			long reads = 0L;
+			long last = 0L;
+			try (StateMirrorReader reader = StateMirrorReader.open(new File(args[0]).toPath())) {
+				while (last < writes) {
+					Map<String, Object> state = reader.read();
+					reads++;
+					Long progress = (Long) state.get("progress");
+					String status = (String) state.get("status");
+					Double battery = (Double) state.get("battery");
+					if (progress == null || status == null || battery == null)
+						continue;
+					String[] words = status.split(" ");
+					if (words.length != 4 || !words[1].equals(words[3]) || battery % 1.0 != 0.5
+							|| progress < last) {
+						// read back by the test as the failure message
+						System.err.println("inconsistent after " + reads + " reads: " + state);
+						System.exit(1);
+					}
+					last = progress;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.logicalis.la.state.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.Test;
+
+import com.logicalis.la.state.core.StateStore.Backend;
+
+class StatePublisherTest {
+
+	static class Recorder implements StateSubscriber {
+		final BlockingQueue<Map<String, Object>> states = new LinkedBlockingQueue<>();
+		final CountDownLatch completed = new CountDownLatch(1);
+		StateSubscription subscription;
+
+		@Override
+		public void onSubscribe(StateSubscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(Map<String, Object> state) {
+			states.add(state);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+		}
+
+		@Override
+		public void onComplete() {
+			completed.countDown();
+		}
+	}
+
+	@Test
+	void testDeliversOnlyOnDemandAndConflates() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		store.set("battery", 99.0);
+		try (StatePublisher publisher = new StatePublisher(store)) {
+			Recorder recorder = new Recorder();
+			publisher.subscribe(recorder, 1000.0);
+			assertNull(recorder.states.poll(50, TimeUnit.MILLISECONDS));
+
+			recorder.subscription.request(1);
+			Map<String, Object> first = recorder.states.poll(1, TimeUnit.SECONDS);
+			assertNotNull(first);
+			assertEquals(99.0, first.get("battery"));
+
+			// no demand: writes pile up, only the latest value is delivered
+			for (int i = 0; i < 1000; i++)
+				store.set("battery", (double) i);
+			assertNull(recorder.states.poll(50, TimeUnit.MILLISECONDS));
+			recorder.subscription.request(10);
+			Map<String, Object> second = recorder.states.poll(1, TimeUnit.SECONDS);
+			assertEquals(999.0, second.get("battery"));
+			// nothing changed since: no further snapshot despite demand
+			assertNull(recorder.states.poll(50, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testSnapshotsAreUnmodifiable() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		store.set(new String[] { "drone", "location", "lat" }, -22.8);
+		store.addToList("mission", "takeoff");
+		store.addToSet("alerts", "low battery");
+		try (StatePublisher publisher = new StatePublisher(store)) {
+			Recorder recorder = new Recorder();
+			publisher.subscribe(recorder, 1000.0).request(1);
+			Map<String, Object> state = recorder.states.poll(1, TimeUnit.SECONDS);
+			assertNotNull(state);
+			assertThrows(UnsupportedOperationException.class, () -> state.remove("mission"));
+			assertThrows(UnsupportedOperationException.class, () -> ((List<String>) state.get("mission")).clear());
+			assertThrows(UnsupportedOperationException.class, () -> ((Set<String>) state.get("alerts")).add("x"));
+			Map<String, Object> drone = (Map<String, Object>) state.get("drone");
+			assertThrows(UnsupportedOperationException.class,
+					() -> ((Map<String, Object>) drone.get("location")).put("lat", 0.0));
+		}
+	}
+
+	@Test
+	void testDispatcherWaitsForWrites() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		store.set("battery", 99.0);
+		try (StatePublisher publisher = new StatePublisher(store)) {
+			Field field = StatePublisher.class.getDeclaredField("dispatcher");
+			field.setAccessible(true);
+			Thread dispatcher = (Thread) field.get(publisher);
+			Recorder recorder = new Recorder();
+			publisher.subscribe(recorder, 1000.0).request(Long.MAX_VALUE);
+			assertNotNull(recorder.states.poll(1, TimeUnit.SECONDS));
+
+			// parked on the store, not polling it
+			long deadline = System.currentTimeMillis() + 1000L;
+			while (LockSupport.getBlocker(dispatcher) != store && System.currentTimeMillis() < deadline)
+				Thread.sleep(1L);
+			assertSame(store, LockSupport.getBlocker(dispatcher));
+
+			store.set("battery", 98.0);
+			Map<String, Object> state = recorder.states.poll(1, TimeUnit.SECONDS);
+			assertNotNull(state);
+			assertEquals(98.0, state.get("battery"));
+		}
+	}
+
+	@Test
+	void testTerminalSignalsWaitForOnNext() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		store.set("battery", 99.0);
+		CountDownLatch started = new CountDownLatch(1);
+		AtomicBoolean running = new AtomicBoolean();
+		AtomicBoolean overlapped = new AtomicBoolean();
+		Recorder recorder = new Recorder() {
+			@Override
+			public void onNext(Map<String, Object> state) {
+				running.set(true);
+				started.countDown();
+				try {
+					Thread.sleep(200L);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				running.set(false);
+			}
+
+			@Override
+			public void onComplete() {
+				overlapped.compareAndSet(false, running.get());
+				super.onComplete();
+			}
+		};
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			StatePublisher publisher = new StatePublisher(store, executor);
+			publisher.subscribe(recorder, 1000.0).request(1);
+			assertTrue(started.await(1, TimeUnit.SECONDS));
+			publisher.close();
+			assertTrue(recorder.completed.await(1, TimeUnit.SECONDS));
+			assertFalse(overlapped.get(), "onComplete must not run during onNext");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void testMaxRate() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		Recorder slow = new Recorder();
+		Recorder fast = new Recorder();
+		try (StatePublisher publisher = new StatePublisher(store)) {
+			publisher.subscribe(slow, 10.0).request(Long.MAX_VALUE);
+			publisher.subscribe(fast, 1000.0).request(Long.MAX_VALUE);
+			long end = System.currentTimeMillis() + 500;
+			long i = 0;
+			while (System.currentTimeMillis() < end) {
+				store.set("altitude", i++);
+				Thread.sleep(1);
+			}
+		}
+		// 10 per second over half a second, plus the first one
+		assertTrue(slow.states.size() <= 7, "slow got " + slow.states.size());
+		assertTrue(fast.states.size() > slow.states.size());
+		assertEquals(0, slow.completed.getCount());
+	}
+
+	@Test
+	void testCancel() throws Exception {
+		StateStore store = StateStore.create(Backend.PERSISTENT);
+		try (StatePublisher publisher = new StatePublisher(store)) {
+			Recorder recorder = new Recorder();
+			publisher.subscribe(recorder, 1000.0).request(Long.MAX_VALUE);
+			assertNotNull(recorder.states.poll(1, TimeUnit.SECONDS));
+			recorder.subscription.cancel();
+			store.set("gps", "-23.5,-46.6");
+			assertNull(recorder.states.poll(50, TimeUnit.MILLISECONDS));
+		}
+	}
+}
@@ -4,15 +4,36 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.logicalis.la.state.core.StateStore.Backend;
+
 class StateStoreTest {
 
 	@Test
@@ -30,7 +51,7 @@ class StateStoreTest {
 		try {
 			Map<String, Object> result = state.getState();
 			assertEquals(value, result.get(key));
-			assertFalse(value == result.get(key), "Should be a copy, not a shallow copy or a reference");
+			assertSame(value, result.get(key), "Strings are immutable, so shared");
 
 			Map<String, Object> state2 = state.getState();
 			assertEquals(value, state2.get(key), "String must be kept between getState() calls");
@@ -92,7 +113,7 @@ class StateStoreTest {
 			Map<String, Object> result = state.getState();
 			assertEquals(innerValue, ((Map) result.get(key)).get(innerKey));
 			assertFalse(value == result.get(key), "Should be a copy, not a shallow copy or a reference");
-			assertNotSame(value.get(innerKey), ((Map) result.get(key)).get(innerKey));
+			assertSame(value.get(innerKey), ((Map) result.get(key)).get(innerKey), "Strings are immutable, so shared");
 
 			Map<String, Object> state2 = state.getState();
 			assertEquals(innerValue, ((Map) state2.get(key)).get(innerKey),
@@ -307,4 +328,1337 @@ class StateStoreTest {
 			fail("Should not throw anything");
 		}
 	}
+
+	@Test
+	@SuppressWarnings("rawtypes")
+	void testConcurrentBackendGetState() {
+		StateStore state = StateStore.create(Backend.CONCURRENT);
+		assertEquals(Backend.CONCURRENT, state.getBackend());
+		state.set("string", "a string entry");
+		state.set("long", new Long(12L));
+		state.set("double", new Double(45.2));
+		state.addToList("list", "a list entry");
+		state.addToList("list", "another list entry");
+		state.addToSet("set", "a set entry");
+		state.addToSet("set", "a set entry");
+
+		try {
+			Map<String, Object> state1 = state.getState();
+			assertEquals(7L, state1.get("_updates"));
+			assertEquals("[_updates, double, list, long, set, string]", state1.keySet().toString(),
+					"Entries should be ordered by name");
+			assertEquals(2, ((List) state1.get("list")).size());
+			assertEquals(1, ((Set) state1.get("set")).size());
+
+			Map<String, Object> state2 = state.getState();
+			assertEquals(0L, state2.get("_updates"));
+			assertEquals(state1.get("double"), state2.get("double"), "Double entry should not be changed");
+			assertEquals(0, ((List) state2.get("list")).size(), "List should be emptied");
+			assertEquals(0, ((Set) state2.get("set")).size(), "Set should be emptied");
+
+		} catch (InvalidDataTypeException e) {
+			fail("Should not throw anything");
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testConcurrentBackendLosesNothing() throws Exception {
+		StateStore state = StateStore.create(Backend.CONCURRENT);
+		int threads = 8;
+		int writes = 5000;
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			new Thread(() -> {
+				for (int i = 0; i < writes; i++) {
+					state.set("value" + (i % 16), Long.valueOf(i));
+					state.addToSet("set", id + ":" + i);
+				}
+				done.countDown();
+			}).start();
+		}
+
+		long updates = 0L;
+		int events = 0;
+		while (done.getCount() > 0) {
+			Map<String, Object> snapshot = state.getState();
+			updates += (Long) snapshot.get("_updates");
+			Set<String> set = (Set<String>) snapshot.get("set");
+			events += set == null ? 0 : set.size();
+		}
+		Map<String, Object> snapshot = state.getState();
+		updates += (Long) snapshot.get("_updates");
+		events += ((Set<String>) snapshot.get("set")).size();
+
+		assertEquals(2L * threads * writes, updates, "No update should be lost");
+		assertEquals(threads * writes, events, "No event should be lost between snapshots");
+	}
+
+	@Test
+	@SuppressWarnings("rawtypes")
+	void testPersistentBackendGetState() {
+		StateStore state = StateStore.create(Backend.PERSISTENT);
+		assertEquals(Backend.PERSISTENT, state.getBackend());
+		state.set("string", "a string entry");
+		state.set("long", new Long(12L));
+		state.set("double", new Double(45.2));
+		Map<String, String> map = new HashMap<>();
+		map.put("map-entry", "a map entry value");
+		state.set("map", map);
+		state.addToList("list", "a list entry");
+		state.addToList("list", "a list entry");
+		state.addToList("list", "another list entry");
+		state.addToSet("set", "a set entry");
+		state.addToSet("set", "a set entry");
+
+		try {
+			Map<String, Object> state1 = state.getState();
+			assertEquals(9L, state1.get("_updates"));
+			assertEquals("[_updates, double, list, long, map, set, string]", state1.keySet().toString(),
+					"Entries should be ordered by name");
+			assertEquals(2, ((List) state1.get("list")).size());
+			assertEquals(1, ((Set) state1.get("set")).size());
+
+			// later writes never show up in a snapshot already taken
+			map.put("map-entry", "changed by the caller");
+			state.set("string", "another string entry");
+			state.addToList("list", "a third list entry");
+			state.remove("long");
+			assertEquals("a string entry", state1.get("string"));
+			assertEquals("a map entry value", ((Map) state1.get("map")).get("map-entry"));
+			assertEquals(2, ((List) state1.get("list")).size());
+			assertTrue(state1.containsKey("long"));
+
+			Map<String, Object> state2 = state.getState();
+			assertEquals(2L, state2.get("_updates"));
+			assertEquals("another string entry", state2.get("string"));
+			assertEquals("a map entry value", ((Map) state2.get("map")).get("map-entry"),
+					"Map should be copied when set");
+			assertEquals(1, ((List) state2.get("list")).size(), "List should only have events since last call");
+			assertEquals(0, ((Set) state2.get("set")).size(), "Set should be emptied");
+			assertFalse(state2.containsKey("long"), "Should be removed");
+
+		} catch (InvalidDataTypeException e) {
+			fail("Should not throw anything");
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testPersistentBackendLosesNothing() throws Exception {
+		StateStore state = StateStore.create(Backend.PERSISTENT);
+		int threads = 4;
+		int writes = 5000;
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			new Thread(() -> {
+				for (int i = 0; i < writes; i++)
+					state.addToList("list", id + ":" + i);
+				done.countDown();
+			}).start();
+		}
+
+		long updates = 0L;
+		int events = 0;
+		while (done.getCount() > 0) {
+			Map<String, Object> snapshot = state.getState();
+			updates += (Long) snapshot.get("_updates");
+			List<String> list = (List<String>) snapshot.get("list");
+			events += list == null ? 0 : list.size();
+		}
+		Map<String, Object> snapshot = state.getState();
+		updates += (Long) snapshot.get("_updates");
+		events += ((List<String>) snapshot.get("list")).size();
+
+		assertEquals((long) threads * writes, updates, "No update should be lost");
+		assertEquals(threads * writes, events, "No event should be lost between snapshots");
+	}
+
+	@Test
+	@SuppressWarnings("rawtypes")
+	void testGetChangesSince() throws InvalidDataTypeException {
+		for (Backend backend : Backend.values()) {
+			StateStore state = StateStore.create(backend);
+			state.set("windlevel", Double.valueOf(1.0));
+			state.set("gpssignallevel", Double.valueOf(92.0));
+			state.set("battery", Double.valueOf(100.0));
+			state.addToList("mission", "missionstart");
+
+			StateChanges changes = state.getChangesSince(0L);
+			assertEquals(state.getVersion(), changes.getVersion());
+			assertEquals("[_updates, battery, gpssignallevel, mission, windlevel]",
+					changes.getChanged().keySet().toString(), backend + ": everything is new");
+			assertEquals(4L, changes.getChanged().get("_updates"));
+
+			state.set("battery", Double.valueOf(99.0));
+			state.addToSet("events", "dronestoragefull");
+			state.remove("gpssignallevel");
+			StateChanges delta = state.getChangesSince(changes.getVersion());
+			assertTrue(delta.getVersion() > changes.getVersion(), "Version should grow");
+			assertEquals("[_updates, battery, events]", delta.getChanged().keySet().toString(),
+					backend + ": only changed keys (the drained mission list has no new events)");
+			assertEquals(Double.valueOf(99.0), delta.getChanged().get("battery"));
+			assertEquals(1, ((Set) delta.getChanged().get("events")).size());
+			assertEquals("[gpssignallevel]", delta.getRemoved().toString(), backend + ": removal is reported");
+
+			StateChanges nothing = state.getChangesSince(delta.getVersion());
+			assertEquals(delta.getVersion(), nothing.getVersion());
+			assertEquals("[_updates]", nothing.getChanged().keySet().toString(), backend + ": nothing changed");
+			assertTrue(nothing.getRemoved().isEmpty());
+
+			Map<String, Object> full = state.getState();
+			assertFalse(full.containsKey("gpssignallevel"), backend + ": removed entries are not in the state");
+			assertEquals(5, full.size(), backend + ": " + full);
+		}
+	}
+
+	@Test
+	void testTombstonesArePurged() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore store = StateStore.create(backend);
+			Field field = StateStore.class.getDeclaredField("_map");
+			field.setAccessible(true);
+			Map<?, ?> entries = (Map<?, ?>) field.get(store);
+
+			// snapshots only: removed entries go with the next drain
+			for (int i = 0; i < 1000; i++)
+				store.set("drone" + i + ".battery", 98.5);
+			for (int i = 0; i < 1000; i++)
+				store.remove("drone" + i + ".battery");
+			StateKey status = store.register("status", StateKey.Type.STRING);
+			store.set(status, "landed");
+			store.remove("status");
+			assertEquals(1001, entries.size());
+			assertEquals("[_updates]", store.getState().keySet().toString());
+			assertEquals(1, entries.size(), backend + ": registered entries are kept");
+			store.set(status, "flying");
+			assertEquals("flying", store.getState().get("status"));
+
+			// a delta reader: removals are kept until it has seen them
+			store.set("battery", 98.5);
+			store.set("windlevel", 1.52);
+			StateChanges first = store.getChangesSince(0L);
+			store.remove("windlevel");
+			StateChanges second = store.getChangesSince(first.getVersion());
+			assertEquals("[windlevel]", second.getRemoved().toString());
+			assertFalse(second.isFull());
+			assertEquals(3, entries.size());
+			StateChanges third = store.getChangesSince(second.getVersion());
+			assertEquals(2, entries.size(), backend + ": purged once the reader moved past it");
+			assertTrue(third.getRemoved().isEmpty());
+			assertFalse(third.isFull());
+
+			// a reader behind the purged removals gets the whole state
+			StateChanges late = store.getChangesSince(first.getVersion());
+			assertTrue(late.isFull());
+			assertEquals("[_updates, battery, status]", late.getChanged().keySet().toString());
+			assertTrue(late.getRemoved().isEmpty());
+		}
+	}
+
+	@Test
+	void testVersionMovesOnlyWithWrites() throws Exception {
+		for (Backend backend : Backend.values()) {
+			StateStore store = StateStore.create(backend);
+			long initial = store.getVersion();
+			assertEquals(initial, store.getVersion(), backend.name());
+			store.set("battery", 98.5);
+			long written = store.getVersion();
+			assertTrue(written > initial, backend.name());
+			assertEquals(written, store.getVersion(), backend + ": nothing written since");
+			store.remove("battery");
+			assertTrue(store.getVersion() > written, backend + ": removals count");
+		}
+	}
+
+	@Test
+	void testSetPrimitives() throws InvalidDataTypeException {
+		for (Backend backend : Backend.values()) {
+			StateStore state = StateStore.create(backend);
+			state.set("battery", 99.5);
+			state.set("missionuploadprogress", 42L);
+			state.set("counter", Long.valueOf(7L));
+			Map<String, Object> result = state.getState();
+			assertEquals(Double.valueOf(99.5), result.get("battery"), backend.toString());
+			assertEquals(Long.valueOf(42L), result.get("missionuploadprogress"), backend.toString());
+			assertEquals(Long.valueOf(7L), result.get("counter"), backend.toString());
+			assertEquals(3L, result.get("_updates"));
+
+			// an entry can change kind
+			state.set("battery", "unknown");
+			state.set("missionuploadprogress", 1.5);
+			result = state.getState();
+			assertEquals("unknown", result.get("battery"));
+			assertEquals(Double.valueOf(1.5), result.get("missionuploadprogress"));
+		}
+	}
+
+	@Test
+	void testSetPrimitivesDoNotAllocate() {
+		Assumptions.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+				"needs per-thread allocation counters");
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore state = StateStore.create(backend);
+			double lat = -22.842830;
+			long progress = 0L;
+			// warm up (creates the entries and lets the JIT settle)
+			for (int i = 0; i < 100000; i++) {
+				state.set("coord.lat", lat + i);
+				state.set("missionuploadprogress", progress + i);
+			}
+
+			long before = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < 100000; i++) {
+				state.set("coord.lat", lat + i);
+				state.set("missionuploadprogress", progress + i);
+			}
+			long allocated = threads.getThreadAllocatedBytes(thread) - before;
+			// allows a few stray bytes (JIT, lock inflation), not one object per update
+			assertTrue(allocated < 200000 / 16, backend + ": 200000 numeric updates allocated " + allocated + " bytes");
+		}
+	}
+
+	@Test
+	void testPeek() throws Exception {
+		for (Backend backend : Backend.values()) {
+			StateStore store = StateStore.create(backend);
+			store.set("battery", 98.5);
+			store.set("progress", 12L);
+			store.set("status", "flying");
+			Map<String, Double> coords = new HashMap<>();
+			coords.put("lat", -22.842830);
+			store.set("location", coords);
+			store.addToList("mission", "takeoff");
+			store.addToSet("events", "missionstart");
+			store.set("gone", "soon");
+			store.remove("gone");
+
+			assertEquals(98.5, store.peek("battery"), backend.name());
+			assertEquals(98.5, store.peekDouble("battery"));
+			assertEquals(12.0, store.peekDouble("progress"));
+			assertTrue(Double.isNaN(store.peekDouble("status")));
+			assertTrue(Double.isNaN(store.peekDouble("missing")));
+			assertEquals(12L, store.peekLong("progress", -1L));
+			assertEquals(-1L, store.peekLong("battery", -1L));
+			assertEquals(-1L, store.peekLong("missing", -1L));
+			assertEquals("flying", store.peek("status"));
+			assertEquals(coords, store.peek("location"));
+			assertEquals(Arrays.asList("takeoff"), store.peek("mission"));
+			assertEquals(Collections.singleton("missionstart"), store.peek("events"));
+			assertEquals(null, store.peek("gone"));
+			assertEquals(null, store.peek("missing"));
+
+			Map<String, Object> read = store.readState();
+			assertEquals(new HashSet<>(Arrays.asList("battery", "events", "location", "mission", "progress", "status")),
+					read.keySet(), backend.name());
+			assertEquals(Arrays.asList("takeoff"), read.get("mission"));
+			store.addToList("mission", "waypoint");
+			assertEquals(Arrays.asList("takeoff"), read.get("mission"), "A copy");
+
+			// nothing was reset
+			Map<String, Object> state = store.getState();
+			assertEquals(Arrays.asList("takeoff", "waypoint"), state.get("mission"), backend.name());
+			assertEquals(Collections.singleton("missionstart"), state.get("events"));
+			assertEquals(Long.valueOf(8L), state.get("_updates"));
+			assertEquals(Collections.emptyList(), store.peek("mission"));
+		}
+	}
+
+	@Test
+	void testPeekDoesNotLock() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		store.set("battery", 98.5);
+		store.set("status", "flying");
+		CountDownLatch locked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Thread holder = new Thread(() -> {
+			synchronized (store) {
+				locked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		holder.start();
+		try {
+			locked.await();
+			assertEquals(98.5, store.peekDouble("battery"));
+			assertEquals("flying", store.peek("status"));
+			assertEquals(2, store.readState().size());
+		} finally {
+			release.countDown();
+			holder.join();
+		}
+	}
+
+	@Test
+	void testPeekIsNeverTorn() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore store = StateStore.create(backend);
+			store.set("value", 0L);
+			AtomicBoolean running = new AtomicBoolean(true);
+			Thread writer = new Thread(() -> {
+				// switches between kinds, so a torn read would mix them
+				for (long i = 1; running.get(); i++) {
+					store.set("value", i);
+					store.set("value", -(double) i);
+				}
+			});
+			writer.start();
+			try {
+				long last = 0L;
+				for (int i = 0; i < 200000; i++) {
+					Object value = store.peek("value");
+					long n = value instanceof Long ? (Long) value : (long) -(Double) value;
+					assertTrue(n >= last, backend + ": " + n + " after " + last);
+					last = n;
+					double d = store.peekDouble("value");
+					assertEquals(Math.rint(d), d);
+				}
+			} finally {
+				running.set(false);
+				writer.join();
+			}
+		}
+	}
+
+	@Test
+	void testConsumers() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore store = StateStore.create(backend);
+			store.addToList("mission", "takeoff");
+			assertTrue(store.registerConsumer("dashboard"));
+			assertTrue(store.registerConsumer("archiver"));
+			assertFalse(store.registerConsumer("archiver"));
+
+			store.set("battery", 98.5);
+			store.addToList("mission", "waypoint");
+			store.addToList("mission", "waypoint");
+			store.addToSet("events", "missionstart");
+			Map<String, Object> dashboard = store.read("dashboard");
+			assertEquals(98.5, dashboard.get("battery"), backend.name());
+			assertEquals(Arrays.asList("waypoint"), dashboard.get("mission"), "Events since registration");
+			assertEquals(Collections.singleton("missionstart"), dashboard.get("events"));
+			assertEquals(Long.valueOf(4L), dashboard.get("_updates"));
+
+			// the usual drain resets nothing for consumers, and the other way
+			// around
+			Map<String, Object> state = store.getState();
+			assertEquals(Arrays.asList("takeoff", "waypoint"), state.get("mission"), backend.name());
+			assertEquals(Long.valueOf(5L), state.get("_updates"));
+
+			store.addToList("mission", "waypoint");
+			store.addToSet("events", "missionstart");
+			store.addToSet("events", "droneconnectionlost");
+			dashboard = store.read("dashboard");
+			assertEquals(Arrays.asList("waypoint"), dashboard.get("mission"), backend.name());
+			assertEquals(new HashSet<>(Arrays.asList("missionstart", "droneconnectionlost")), dashboard.get("events"));
+			assertEquals(Long.valueOf(3L), dashboard.get("_updates"));
+			dashboard = store.read("dashboard");
+			assertEquals(Collections.emptyList(), dashboard.get("mission"));
+			assertEquals(Collections.emptySet(), dashboard.get("events"));
+			assertEquals(Long.valueOf(0L), dashboard.get("_updates"));
+
+			Map<String, Object> archiver = store.read("archiver");
+			assertEquals(Arrays.asList("waypoint"), archiver.get("mission"), backend.name());
+			assertEquals(new HashSet<>(Arrays.asList("missionstart", "droneconnectionlost")), archiver.get("events"));
+			assertEquals(Long.valueOf(7L), archiver.get("_updates"));
+
+			state = store.getState();
+			assertEquals(Arrays.asList("waypoint"), state.get("mission"), backend.name());
+			assertEquals(Long.valueOf(3L), state.get("_updates"));
+
+			// entries that stop holding events
+			store.set("events", "none");
+			store.remove("mission");
+			archiver = store.read("archiver");
+			assertEquals("none", archiver.get("events"));
+			assertFalse(archiver.containsKey("mission"));
+
+			assertTrue(store.unregisterConsumer("archiver"));
+			assertFalse(store.unregisterConsumer("archiver"));
+			assertThrows(IllegalArgumentException.class, () -> store.read("archiver"));
+		}
+		assertThrows(UnsupportedOperationException.class,
+				() -> StateStore.create(Backend.PERSISTENT).registerConsumer("dashboard"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testUndrainedEventsAreBounded() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore store = StateStore.create(backend);
+			int events = StateStore.UNDRAINED_EVENTS_LIMIT + 5;
+			for (int i = 0; i < events; i++)
+				store.addToList("unread", "event " + i);
+			store.registerConsumer("dashboard");
+			for (int i = 0; i < events; i++)
+				store.addToList("mission", "waypoint " + i);
+
+			List<String> read = (List<String>) store.read("dashboard").get("mission");
+			assertEquals(events, read.size(), backend.name());
+			assertEquals("waypoint " + (events - 1), read.get(events - 1));
+
+			Map<String, Object> state = store.getState();
+			assertEquals(events, ((List<?>) state.get("unread")).size(), "Not bounded without consumers");
+			assertEquals(Arrays.asList("waypoint " + (events - 5), "waypoint " + (events - 4),
+					"waypoint " + (events - 3), "waypoint " + (events - 2), "waypoint " + (events - 1)),
+					state.get("mission"));
+			assertEquals(Long.valueOf(StateStore.UNDRAINED_EVENTS_LIMIT),
+					((Map<String, Long>) state.get("_dropped")).get("mission"));
+		}
+	}
+
+	@Test
+	void testConsumersReadWhileProducing() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		store.registerConsumer("dashboard");
+		int producers = 4;
+		int events = 3 * EventLog.SEGMENT_SIZE;
+		CountDownLatch done = new CountDownLatch(producers);
+		for (int p = 0; p < producers; p++) {
+			String name = "drone" + p;
+			new Thread(() -> {
+				for (int i = 0; i < events; i++)
+					store.addToList(name, Integer.toString(i));
+				done.countDown();
+			}).start();
+		}
+		Map<String, Integer> next = new HashMap<>();
+		while (true) {
+			boolean finished = done.getCount() == 0;
+			Map<String, Object> state = store.read("dashboard");
+			for (int p = 0; p < producers; p++) {
+				Object list = state.get("drone" + p);
+				if (list == null)
+					continue;
+				for (Object event : (List<?>) list) {
+					int expected = next.getOrDefault("drone" + p, 0);
+					assertEquals(Integer.toString(expected), event, "Each producer's events in order, once");
+					next.put("drone" + p, expected + 1);
+				}
+			}
+			if (finished)
+				break;
+		}
+		for (int p = 0; p < producers; p++)
+			assertEquals(Integer.valueOf(events), next.get("drone" + p));
+	}
+
+	@Test
+	void testConsumersReleaseReadSegments() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		store.registerConsumer("fast");
+		store.registerConsumer("slow");
+		WeakReference<Object> first = new WeakReference<>(segment(store, "slow"));
+		for (int i = 0; i < 3 * EventLog.SEGMENT_SIZE; i++)
+			store.addToList("mission", "waypoint " + i);
+		assertEquals(3 * EventLog.SEGMENT_SIZE, ((List<?>) store.read("fast").get("mission")).size());
+		assertTrue(reachable(first), "The slow consumer still needs it");
+
+		assertEquals(3 * EventLog.SEGMENT_SIZE, ((List<?>) store.read("slow").get("mission")).size());
+		assertFalse(reachable(first), "Read by every consumer");
+
+		// an idle consumer holds events until it is unregistered
+		first = new WeakReference<>(segment(store, "slow"));
+		for (int i = 0; i < 3 * EventLog.SEGMENT_SIZE; i++)
+			store.addToList("mission", "waypoint " + i);
+		store.read("fast");
+		assertTrue(reachable(first));
+		store.unregisterConsumer("slow");
+		assertFalse(reachable(first));
+	}
+
+	private static Object segment(StateStore store, String consumerId) throws Exception {
+		Field consumers = StateStore.class.getDeclaredField("consumers");
+		consumers.setAccessible(true);
+		return ((EventLog.Cursor) ((Map<?, ?>) consumers.get(store)).get(consumerId)).segment;
+	}
+
+	private static boolean reachable(WeakReference<Object> reference) throws InterruptedException {
+		for (int i = 0; i < 10 && reference.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		return reference.get() != null;
+	}
+
+	@Test
+	void testHistory() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore state = StateStore.create(backend);
+			state.setHistory("lat", 4);
+			state.set("lat", 1.0);
+			state.set("lat", 2L);
+			state.set("lat", "not a number");
+			state.update(batch -> batch.set("lat", 3.0));
+			Thread.sleep(1);
+			long since = System.nanoTime();
+			Thread.sleep(1);
+			state.set("lat", 4.0);
+			state.set("lat", 5.0);
+
+			StateHistory history = state.getHistory("lat", Long.MIN_VALUE);
+			assertEquals(4, history.size(), "Oldest sample overwritten");
+			assertEquals(2.0, history.getValue(0));
+			assertEquals(5.0, history.getValue(3));
+			for (int i = 1; i < history.size(); i++)
+				assertTrue(history.getTimestamp(i - 1) <= history.getTimestamp(i));
+
+			assertSame(history, state.getHistory("lat", since, history));
+			assertEquals(2, history.size());
+			assertEquals(4.0, history.getValues()[0]);
+			assertEquals(5.0, history.getValues()[1]);
+			assertTrue(history.getTimestamps()[0] >= since);
+			assertThrows(IndexOutOfBoundsException.class, () -> history.getValue(2));
+
+			assertEquals(0, state.getHistory("lng", Long.MIN_VALUE).size());
+			state.setHistory("lat", 0);
+			assertEquals(0, state.getHistory("lat", Long.MIN_VALUE).size());
+		}
+		StateStore persistent = StateStore.create(Backend.PERSISTENT);
+		assertThrows(UnsupportedOperationException.class, () -> persistent.setHistory("lat", 4));
+		assertEquals(0, persistent.getHistory("lat", Long.MIN_VALUE).size());
+	}
+
+	@Test
+	void testPathHistory() {
+		String[] lat = StateStore.path("coord.lat");
+		String[] lng = StateStore.path("coord.lng");
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore state = StateStore.create(backend);
+			state.setHistory(lat, 3);
+			state.set(lat, 1.0);
+			state.set(lng, 10.0);
+			state.set(StateStore.path("coord.lat"), 2L);
+			state.set(lat, "not a number");
+			state.update(batch -> batch.set(lat, 3.0).set(lng, 30.0).set(lat, 4.0));
+
+			StateHistory history = state.getHistory(StateStore.path("coord.lat"), Long.MIN_VALUE);
+			assertEquals(3, history.size(), "Oldest sample overwritten");
+			assertEquals(2.0, history.getValue(0));
+			assertEquals(4.0, history.getValue(2));
+			assertEquals(0, state.getHistory(lng, Long.MIN_VALUE).size());
+			assertEquals(0, state.getHistory("coord", Long.MIN_VALUE).size());
+
+			state.setHistory(lat, 0);
+			assertEquals(0, state.getHistory(lat, Long.MIN_VALUE).size());
+		}
+		StateStore persistent = StateStore.create(Backend.PERSISTENT);
+		assertThrows(UnsupportedOperationException.class, () -> persistent.setHistory(lat, 4));
+	}
+
+	@Test
+	void testHistorySampling() {
+		double[] values = { 5, 1, 9, 3, 7, 2, 8, 8, 4, 6 };
+		assertEquals(Arrays.asList(5.0, 3.0, 8.0, 6.0), history(StateStore.Sampling.EVERY, values));
+		// the last bucket (6) is in progress
+		assertEquals(Arrays.asList(1.0, 2.0, 4.0, 6.0), history(StateStore.Sampling.MIN, values));
+		assertEquals(Arrays.asList(9.0, 7.0, 8.0, 6.0), history(StateStore.Sampling.MAX, values));
+		assertEquals(Arrays.asList(1.0, 9.0, 7.0, 2.0, 8.0, 4.0, 6.0), history(StateStore.Sampling.MIN_MAX, values));
+	}
+
+	private static List<Double> history(StateStore.Sampling sampling, double[] values) {
+		StateStore state = StateStore.create(Backend.SYNCHRONIZED);
+		state.setHistory("battery", 16, sampling, 3);
+		for (double value : values)
+			state.set("battery", value);
+		StateHistory history = state.getHistory("battery", Long.MIN_VALUE);
+		Double[] samples = new Double[history.size()];
+		for (int i = 0; i < samples.length; i++)
+			samples[i] = history.getValue(i);
+		return Arrays.asList(samples);
+	}
+
+	@Test
+	void testHistoryDoesNotAllocate() {
+		Assumptions.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+				"needs per-thread allocation counters");
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		StateStore state = StateStore.create(Backend.SYNCHRONIZED);
+		state.setHistory("lat", 1000, StateStore.Sampling.MIN_MAX, 10);
+		StateHistory history = new StateHistory(1000);
+		for (int i = 0; i < 100000; i++) {
+			state.set("lat", -22.842830 + i);
+			if (i % 100 == 0)
+				state.getHistory("lat", Long.MIN_VALUE, history);
+		}
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < 100000; i++) {
+			state.set("lat", -22.842830 + i);
+			if (i % 100 == 0)
+				state.getHistory("lat", Long.MIN_VALUE, history);
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		assertTrue(allocated < 100000 / 16, "100000 sampled updates allocated " + allocated + " bytes");
+		// full ring, plus the bucket in progress
+		assertTrue(history.size() >= 1000);
+	}
+
+	@Test
+	@SuppressWarnings("rawtypes")
+	void testRegisteredKeys() throws InvalidDataTypeException {
+		for (Backend backend : Backend.values()) {
+			StateStore state = StateStore.create(backend);
+			StateKey battery = state.register("battery", StateKey.Type.DOUBLE);
+			StateKey progress = state.register("missionuploadprogress", StateKey.Type.LONG);
+			StateKey status = state.register("status", StateKey.Type.STRING);
+			StateKey events = state.register("events", StateKey.Type.SET);
+			StateKey mission = state.register("mission", StateKey.Type.LIST);
+			assertSame(battery, state.register("battery", StateKey.Type.DOUBLE));
+			assertEquals(1, progress.getIndex());
+			assertThrows(IllegalArgumentException.class, () -> state.register("battery", StateKey.Type.LONG));
+			assertThrows(IllegalArgumentException.class, () -> state.set(battery, 1L));
+			assertThrows(IllegalArgumentException.class,
+					() -> StateStore.create(backend).set(battery, 1.0));
+
+			assertEquals("[_updates]", state.getState().keySet().toString(),
+					backend + ": registered entries show up once written");
+
+			state.set(battery, 99.5);
+			state.set(progress, 10L);
+			state.set(status, "flying");
+			state.addToSet(events, "droneconnectionlost");
+			state.addToSet(events, "droneconnectionlost");
+			state.addToList(mission, "missionstart");
+			Map<String, Object> result = state.getState();
+			assertEquals("[_updates, battery, events, mission, missionuploadprogress, status]",
+					result.keySet().toString(), backend + ": snapshot keyed by name, in order");
+			assertEquals(6L, result.get("_updates"));
+			assertEquals(Double.valueOf(99.5), result.get("battery"));
+			assertEquals(Long.valueOf(10L), result.get("missionuploadprogress"));
+			assertEquals("flying", result.get("status"));
+			assertEquals(1, ((Set) result.get("events")).size());
+			assertEquals(1, ((List) result.get("mission")).size());
+
+			// name based calls see the same entry
+			state.remove("missionuploadprogress");
+			assertFalse(state.getState().containsKey("missionuploadprogress"));
+			state.set(progress, 11L);
+			assertEquals(Long.valueOf(11L), state.getState().get("missionuploadprogress"));
+		}
+	}
+
+	@Test
+	void testWriteStateAsJson() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		for (Backend backend : Backend.values()) {
+			StateStore state = StateStore.create(backend);
+			StateStore expected = StateStore.create(backend);
+			fillDroneState(state);
+			fillDroneState(expected);
+
+			StringBuilder text = new StringBuilder();
+			state.writeStateAsJson(text);
+			assertEquals(mapper.writeValueAsString(expected.getState()), text.toString(), backend.toString());
+
+			// events were reset, just like getState() does
+			fillDroneState(state);
+			fillDroneState(expected);
+			expected.getState();
+			state.writeStateAsJson(new StringBuilder());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			state.writeStateAsJson(out);
+			assertEquals(mapper.writeValueAsString(expected.getState()), out.toString("UTF-8"), backend.toString());
+
+			ByteBuffer buffer = ByteBuffer.allocate(4096);
+			int n = state.writeStateAsJson(buffer);
+			assertEquals(n, buffer.position());
+			assertEquals(mapper.readTree(out.toByteArray()).get("location"),
+					mapper.readTree(new String(buffer.array(), 0, n, StandardCharsets.UTF_8)).get("location"));
+		}
+	}
+
+	/**
+	 * The state shape of DroneSample.
+	 */
+	private void fillDroneState(StateStore state) {
+		Map<String, Double> coords = new java.util.TreeMap<>();
+		coords.put("lat", -22.842830);
+		coords.put("lng", -47.035735);
+		state.set("location", coords);
+		state.set("windlevel", 1.0001);
+		state.set("gpssignallevel", 92.0);
+		state.set("batterylevel", 99.99);
+		state.set("missionuploadprogress", 100L);
+		state.addToList("mission", "missionstart");
+		state.addToList("mission", "missionerror \"quoted\" \u00e7");
+		state.addToSet("events", "droneconnectionlost");
+	}
+
+	@Test
+	void testMetrics() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore state = StateStore.create(backend);
+			for (int i = 0; i < 1000; i++)
+				state.set("coord", (double) i);
+			state.set("windlevel", 1.0);
+			state.addToList("mission", "missionstart");
+			state.getState();
+
+			StateStoreMetrics metrics = state.getMetrics();
+			assertEquals(3, metrics.getEntries());
+			assertTrue(metrics.getEstimatedBytes() > 0);
+			assertEquals(1L, metrics.getSnapshots());
+			assertEquals(1002L, metrics.getIntervalWrites());
+			assertEquals(999.0 / 1002.0, metrics.getIntervalConflationRatio(), 1e-9);
+			StateStoreMetrics.KeyMetrics coord = metrics.getKeys().get("coord");
+			assertEquals(1000L, coord.getWrites());
+			assertEquals(0.999, coord.getConflationRatio(), 1e-9);
+			assertEquals(0.0, metrics.getKeys().get("windlevel").getConflationRatio());
+			assertEquals(1L, metrics.getSnapshotLatency().getCount());
+			assertEquals(1L, metrics.getSnapshotCopy().getCount(), backend + ": copy and reset are split");
+			assertEquals(1L, metrics.getSnapshotReset().getCount());
+			assertTrue(metrics.getLockHold().getCount() > 0, "Some lock acquisitions should be sampled");
+
+			state.set("coord", 1.0);
+			state.getState();
+			metrics = state.getMetrics();
+			assertEquals(1001L, metrics.getKeys().get("coord").getWrites());
+			assertEquals(1L, metrics.getKeys().get("coord").getIntervalWrites());
+		}
+	}
+
+	@Test
+	void testMetricsMBean() throws Exception {
+		StateStore state = StateStore.create(Backend.SYNCHRONIZED);
+		state.set("battery", 99.0);
+		state.getState();
+		ObjectName name = state.registerMBean("test-" + System.nanoTime());
+		javax.management.MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			assertEquals(1, server.getAttribute(name, "Entries"));
+			assertEquals(1L, server.getAttribute(name, "Snapshots"));
+			assertTrue((Long) server.getAttribute(name, "SnapshotP99") > 0L);
+			server.setAttribute(name, new javax.management.Attribute("Enabled", false));
+			assertFalse(state.isMetricsEnabled());
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+
+	@Test
+	void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 1000; i++)
+			histogram.record(i * 1000L);
+		assertEquals(1000L, histogram.getCount());
+		long p50 = histogram.getPercentile(50);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(Math.abs(p50 - 500000L) <= 500000L / 8, "p50=" + p50);
+		assertTrue(Math.abs(p99 - 990000L) <= 990000L / 8, "p99=" + p99);
+		assertTrue(histogram.getMax() >= 1000000L);
+		histogram.reset();
+		assertEquals(0L, histogram.getPercentile(99));
+	}
+
+	@Test
+	void testNamedInstances() throws Exception {
+		assertSame(StateStore.getInstance(), StateStore.getInstance(StateStore.DEFAULT_NAME));
+		StateStore drone1 = StateStore.getInstance("fleet-test-drone1");
+		StateStore drone2 = StateStore.getInstance("fleet-test-drone2", Backend.CONCURRENT);
+		assertSame(drone1, StateStore.getInstance("fleet-test-drone1"));
+		assertNotSame(drone1, drone2);
+		assertEquals(Backend.CONCURRENT, drone2.getBackend());
+		assertTrue(StateStore.getInstanceNames().contains("fleet-test-drone2"));
+		try {
+			drone1.set("battery", 80.0);
+			drone2.set("battery", 60.0);
+
+			Map<String, Map<String, Object>> fleet = StateStore.getStates();
+			assertEquals(Double.valueOf(80.0), fleet.get("fleet-test-drone1").get("battery"));
+			assertEquals(Double.valueOf(60.0), fleet.get("fleet-test-drone2").get("battery"));
+			assertEquals(1L, fleet.get("fleet-test-drone1").get("_updates"), "Stores have their own counters");
+		} finally {
+			StateStore.removeInstance("fleet-test-drone1");
+			StateStore.removeInstance("fleet-test-drone2");
+		}
+		assertFalse(StateStore.getInstanceNames().contains("fleet-test-drone1"));
+	}
+
+	@Test
+	void testGetInstanceIsThreadSafe() throws Exception {
+		int threads = 8;
+		StateStore[] seen = new StateStore[threads];
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+				}
+				seen[id] = StateStore.getInstance("race-test");
+				done.countDown();
+			}).start();
+		}
+		start.countDown();
+		done.await();
+		StateStore.removeInstance("race-test");
+		for (int t = 1; t < threads; t++)
+			assertSame(seen[0], seen[t], "Only one store should ever be created");
+	}
+
+	@Test
+	void testReducers() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore store = StateStore.create(backend);
+			store.setReducer("battery", StateStore.Reducer.MIN);
+			store.setReducer("windlevel", StateStore.Reducer.MAX);
+			store.setReducer("coord.alt", StateStore.Reducer.MEAN);
+			store.setReducer("distance", StateStore.Reducer.SUM);
+			store.setReducer("heartbeats", StateStore.Reducer.COUNT);
+			store.setReducer("speed", StateStore.Reducer.EWMA, 0.5);
+			for (int i = 1; i <= 4; i++) {
+				store.set("battery", 100.0 - i);
+				store.set("windlevel", (double) i);
+				store.set("coord.alt", 10.0 * i);
+				store.set("distance", (long) i);
+				store.set("heartbeats", 1L);
+				store.set("speed", i == 1 ? 8.0 : 0.0);
+			}
+			StateChanges first = store.getChangesSince(0L);
+			Map<String, Object> state = first.getChanged();
+			assertEquals(96.0, state.get("battery"), backend.name());
+			assertEquals(4.0, state.get("windlevel"));
+			assertEquals(25.0, state.get("coord.alt"));
+			assertEquals(10.0, state.get("distance"));
+			assertEquals(4L, state.get("heartbeats"));
+			assertEquals(1.0, state.get("speed"));
+
+			// nothing written: levels hold, counters go back to zero
+			StateChanges changes = store.getChangesSince(first.getVersion());
+			assertEquals(0.0, changes.getChanged().get("distance"));
+			assertEquals(0L, changes.getChanged().get("heartbeats"));
+			assertFalse(changes.getChanged().containsKey("battery"));
+			state = store.getState();
+			assertEquals(96.0, state.get("battery"));
+			assertEquals(25.0, state.get("coord.alt"));
+			assertEquals(1.0, state.get("speed"));
+
+			store.set("battery", 50.0);
+			store.set("battery", 70.0);
+			StringBuilder json = new StringBuilder();
+			store.writeStateAsJson(json);
+			assertTrue(json.toString().contains("\"battery\":50.0"), json.toString());
+			assertTrue(json.toString().contains("\"heartbeats\":0"), json.toString());
+		}
+		assertThrows(UnsupportedOperationException.class,
+				() -> StateStore.create(Backend.PERSISTENT).setReducer("battery", StateStore.Reducer.MAX));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testBoundedEvents() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore store = StateStore.create(backend);
+			store.setCapacity("missionerror", 3, StateStore.Overflow.DROP_OLDEST);
+			store.setCapacity("warnings", 2, StateStore.Overflow.DROP_NEWEST);
+			store.setCapacity("alarms", 1, StateStore.Overflow.REJECT);
+			for (int i = 0; i < 10; i++) {
+				store.addToList("missionerror", "error " + i);
+				store.addToSet("warnings", "warning " + i);
+			}
+			store.addToList("alarms", "low battery");
+			assertThrows(IllegalStateException.class, () -> store.addToList("alarms", "no gps"));
+
+			Map<String, Object> state = store.getState();
+			assertEquals(Arrays.asList("error 7", "error 8", "error 9"), state.get("missionerror"),
+					backend.name());
+			assertEquals(2, ((Set<String>) state.get("warnings")).size());
+			assertTrue(((Set<String>) state.get("warnings")).contains("warning 0"));
+			Map<String, Long> dropped = (Map<String, Long>) state.get("_dropped");
+			assertEquals(Long.valueOf(7L), dropped.get("missionerror"));
+			assertEquals(Long.valueOf(8L), dropped.get("warnings"));
+			assertEquals(Long.valueOf(1L), dropped.get("alarms"));
+
+			// the ring is emptied by the drain and reused
+			store.addToList("missionerror", "error 10");
+			state = store.getState();
+			assertEquals(Arrays.asList("error 10"), state.get("missionerror"));
+			assertFalse(state.containsKey("_dropped"));
+
+			for (int i = 0; i < 5; i++)
+				store.addToList("missionerror", "error " + i);
+			String json = new String(toJson(store), StandardCharsets.UTF_8);
+			assertTrue(json.contains("\"_dropped\":{\"missionerror\":2},\"_updates\":5"), json);
+		}
+
+		// existing events are bounded right away
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		for (int i = 0; i < 5; i++)
+			store.addToList("mission", "step " + i);
+		store.setCapacity("mission", 2, StateStore.Overflow.DROP_OLDEST);
+		Map<String, Object> state = store.getState();
+		assertEquals(Arrays.asList("step 3", "step 4"), state.get("mission"));
+		assertEquals(Long.valueOf(3L), ((Map<String, Long>) state.get("_dropped")).get("mission"));
+	}
+
+	@Test
+	void testGetStateRecyclesPreviousSnapshot() throws Exception {
+		for (Backend backend : Backend.values()) {
+			StateStore store = StateStore.create(backend);
+			Map<String, Double> coords = new HashMap<>();
+			coords.put("lat", -22.842830);
+			coords.put("lng", -47.035735);
+			store.set("location", coords);
+			store.set("battery", 98.5);
+			store.addToList("mission", "missionstart");
+			Map<String, Object> first = store.getState(null);
+			Object location = first.get("location");
+			Object mission = first.get("mission");
+
+			coords.put("lat", -22.5);
+			store.set("location", coords);
+			store.addToList("mission", "missionfinish");
+			Map<String, Object> second = store.getState(first);
+			assertEquals(coords, second.get("location"), backend.name());
+			assertEquals(Arrays.asList("missionfinish"), second.get("mission"), backend.name());
+			assertEquals(98.5, second.get("battery"), backend.name());
+			if (backend != Backend.PERSISTENT) {
+				assertSame(location, second.get("location"), "Containers are recycled");
+				// the list of the first snapshot became the buffer filled since
+				store.addToList("mission", "missionerror");
+				Object buffer = second.get("mission");
+				Map<String, Object> third = store.getState(second);
+				assertSame(mission, third.get("mission"), "Event buffers are swapped");
+				assertEquals(Arrays.asList("missionerror"), third.get("mission"));
+				assertEquals(Collections.emptyList(), buffer, "Given back and emptied");
+			}
+		}
+	}
+
+	@Test
+	void testEventBuffersAreHandedOut() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore store = StateStore.create(backend);
+			for (int i = 0; i < 1000; i++) {
+				store.addToList("mission", "waypoint " + i);
+				store.addToSet("events", "event " + (i % 10));
+			}
+			Map<String, Object> first = store.getState();
+			List<?> mission = (List<?>) first.get("mission");
+			Set<?> events = (Set<?>) first.get("events");
+			assertEquals(1000, mission.size());
+			assertEquals(10, events.size());
+
+			// later events go to new buffers, never to a snapshot
+			store.addToList("mission", "missionfinish");
+			store.addToSet("events", "missionstart");
+			assertEquals(1000, mission.size(), backend.name());
+			assertEquals(10, events.size(), backend.name());
+			Map<String, Object> second = store.getState();
+			assertEquals(Arrays.asList("missionfinish"), second.get("mission"));
+			assertEquals(Collections.singleton("missionstart"), second.get("events"));
+
+			// empty buffers are not handed out
+			Map<String, Object> third = store.getState();
+			assertEquals(Collections.emptyList(), third.get("mission"));
+			store.addToList("mission", "missionerror");
+			assertEquals(Collections.emptyList(), third.get("mission"), backend.name());
+
+			StateChanges changes = store.getChangesSince(0L);
+			assertEquals(Arrays.asList("missionerror"), changes.getChanged().get("mission"));
+			store.addToList("mission", "missionstart");
+			assertEquals(Arrays.asList("missionerror"), changes.getChanged().get("mission"), backend.name());
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testPathWrites() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore store = StateStore.create(backend);
+			String[] lat = StateStore.path("coord.lat");
+			store.set(lat, -22.842830);
+			store.set(StateStore.path("coord.lng"), -47.035735);
+			store.set(StateStore.path("coord.gps.sats"), 9L);
+			store.set(StateStore.path("coord.gps.mode"), "3d");
+			store.addToList(StateStore.path("coord.gps.log"), "fix");
+			store.addToList(StateStore.path("coord.gps.log"), "fix");
+			store.addToList(StateStore.path("coord.gps.log"), "lost");
+			store.addToSet(StateStore.path("coord.alerts"), "low");
+			store.addToSet(StateStore.path("coord.alerts"), "low");
+			Map<String, Object> state = store.getState();
+			Map<String, Object> coord = (Map<String, Object>) state.get("coord");
+			assertEquals(-22.842830, coord.get("lat"), backend.name());
+			assertEquals(-47.035735, coord.get("lng"), backend.name());
+			Map<String, Object> gps = (Map<String, Object>) coord.get("gps");
+			assertEquals(9L, gps.get("sats"));
+			assertEquals("3d", gps.get("mode"));
+			assertEquals(Arrays.asList("fix", "lost"), gps.get("log"));
+			assertEquals(new HashSet<>(Arrays.asList("low")), coord.get("alerts"));
+			assertEquals(Long.valueOf(9L), state.get("_updates"));
+
+			// snapshots are copies, nested events are emptied by each snapshot
+			store.set(lat, -22.5);
+			assertEquals(-22.842830, coord.get("lat"));
+			String json = new String(toJson(store), StandardCharsets.UTF_8);
+			assertTrue(json.contains("\"coord\":{\"alerts\":[],\"gps\":{\"log\":[],\"mode\":\"3d\",\"sats\":9},"
+					+ "\"lat\":-22.5,\"lng\":-47.035735}"), json);
+
+			long version = store.getVersion();
+			store.remove(StateStore.path("coord.gps.none"));
+			store.remove(StateStore.path("none.gps"));
+			assertEquals(version, store.getVersion(), "Nothing removed");
+			store.remove(StateStore.path("coord.gps"));
+			coord = (Map<String, Object>) store.getState().get("coord");
+			assertEquals(new HashSet<>(Arrays.asList("alerts", "lat", "lng")), coord.keySet());
+
+			// caller maps are copied before the first path write
+			Map<String, Object> location = new HashMap<>();
+			location.put("lat", 1.0);
+			store.set("location", location);
+			store.set(StateStore.path("location.lat"), 2.0);
+			store.remove(StateStore.path("location.lat"));
+			store.set(StateStore.path("location.lng"), 3.0);
+			assertEquals(1.0, location.get("lat"));
+			assertEquals(1, location.size());
+			assertEquals(Collections.singletonMap("lng", 3.0), store.getState().get("location"));
+
+			// values in the way become maps, flat writes replace the tree
+			store.set("battery", 98.5);
+			store.set(StateStore.path("battery.level"), 97.5);
+			assertEquals(Collections.singletonMap("level", 97.5), store.getState().get("battery"));
+			store.set("battery", 97.0);
+			assertEquals(97.0, store.getState().get("battery"));
+		}
+		assertThrows(IllegalArgumentException.class, () -> StateStore.path("coord..lat"));
+		assertThrows(UnsupportedOperationException.class,
+				() -> StateStore.create(Backend.PERSISTENT).set(StateStore.path("coord.lat"), 1.0));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testBatch() throws Exception {
+		for (Backend backend : Backend.values()) {
+			StateStore store = StateStore.create(backend);
+			store.set("gone", "soon");
+			store.getState();
+			Map<String, Double> coords = new HashMap<>();
+			coords.put("lat", -22.842830);
+			store.update(batch -> batch.set("battery", 98.5).set("progress", 12L).set("status", "flying")
+					.set("location", coords).addToList("mission", "takeoff").addToList("mission", "takeoff")
+					.addToSet("events", "missionstart").remove("gone"));
+			Map<String, Object> state = store.getState();
+			assertEquals(98.5, state.get("battery"), backend.name());
+			assertEquals(12L, state.get("progress"), backend.name());
+			assertEquals("flying", state.get("status"), backend.name());
+			assertEquals(coords, state.get("location"), backend.name());
+			assertEquals(Arrays.asList("takeoff"), state.get("mission"), backend.name());
+			assertEquals(new HashSet<>(Arrays.asList("missionstart")), state.get("events"), backend.name());
+			assertFalse(state.containsKey("gone"), backend.name());
+			assertEquals(Long.valueOf(1L), state.get("_updates"), "A batch is one update");
+
+			// nothing is applied when the consumer throws, nested updates are
+			// applied on their own
+			assertThrows(IllegalStateException.class, () -> store.update(batch -> {
+				batch.set("battery", 10.0);
+				store.update(inner -> inner.set("progress", 13L));
+				throw new IllegalStateException();
+			}));
+			store.update(batch -> {
+			});
+			state = store.getState();
+			assertEquals(98.5, state.get("battery"), backend.name());
+			assertEquals(13L, state.get("progress"), backend.name());
+			assertEquals(Long.valueOf(1L), state.get("_updates"), backend.name());
+
+			if (backend == Backend.PERSISTENT) {
+				assertThrows(UnsupportedOperationException.class,
+						() -> store.update(batch -> batch.set("battery", 1.0).set(StateStore.path("coord.lat"), 1.0)));
+				assertEquals(98.5, store.getState().get("battery"));
+				continue;
+			}
+			store.update(batch -> batch.set(StateStore.path("coord.lat"), 1.0).set(StateStore.path("coord.lng"), 2.0)
+					.addToList(StateStore.path("coord.log"), "fix").set(new String[] { "flat" }, 3L));
+			state = store.getState();
+			Map<String, Object> coord = (Map<String, Object>) state.get("coord");
+			assertEquals(1.0, coord.get("lat"));
+			assertEquals(2.0, coord.get("lng"));
+			assertEquals(Arrays.asList("fix"), coord.get("log"));
+			assertEquals(3L, state.get("flat"));
+		}
+	}
+
+	@Test
+	void testBatchIsNeverTorn() throws Exception {
+		for (Backend backend : Backend.values()) {
+			StateStore store = StateStore.create(backend);
+			String[] names = { "lat", "lng", "alt", "heading", "speed" };
+			AtomicBoolean running = new AtomicBoolean(true);
+			Thread writer = new Thread(() -> {
+				for (long i = 0; running.get(); i++) {
+					final long value = i;
+					store.update(batch -> {
+						for (String name : names)
+							batch.set(name, value);
+					});
+				}
+			});
+			writer.start();
+			try {
+				for (int i = 0; i < 2000; i++) {
+					Map<String, Object> state = store.getState();
+					for (String name : names)
+						assertEquals(state.get(names[0]), state.get(name), backend.name());
+				}
+			} finally {
+				running.set(false);
+				writer.join();
+			}
+		}
+	}
+
+	@Test
+	void testBatchesDoNotDeadlock() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		String[] names = new String[32];
+		for (int i = 0; i < names.length; i++)
+			names[i] = "entry" + i;
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final boolean reversed = (t & 1) == 1;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 5000; i++) {
+					store.update(batch -> {
+						for (int n = 0; n < names.length; n++)
+							batch.set(names[reversed ? names.length - 1 - n : n], 1.0);
+					});
+					store.set(names[i % names.length], 2.0);
+				}
+			});
+			threads[t].start();
+		}
+		for (int i = 0; i < 100; i++)
+			store.getState();
+		for (Thread thread : threads) {
+			thread.join(60000);
+			assertFalse(thread.isAlive(), "Deadlock");
+		}
+	}
+
+	@Test
+	void testTtl() throws Exception {
+		for (Backend backend : new Backend[] { Backend.SYNCHRONIZED, Backend.CONCURRENT }) {
+			StateStore store = StateStore.create(backend);
+			store.set("battery", 98.5);
+			store.set("missionuploadprogress", 12L, 50L);
+			store.set("status", "flying", 50L);
+			store.setTtl("events", 50L);
+			store.addToSet("events", "droneconnectionlost");
+			StateChanges changes = store.getChangesSince(0L);
+			assertEquals(12L, changes.getChanged().get("missionuploadprogress"));
+
+			awaitRemoval(store, "missionuploadprogress");
+			awaitRemoval(store, "status");
+			awaitRemoval(store, "events");
+			StateChanges delta = store.getChangesSince(changes.getVersion());
+			assertEquals("[events, missionuploadprogress, status]", delta.getRemoved().toString(),
+					backend + ": expired entries are removals");
+			assertEquals(98.5, store.getState().get("battery"));
+
+			// the time to live stays with the name
+			store.set("missionuploadprogress", 13L);
+			awaitRemoval(store, "missionuploadprogress");
+
+			store.setTtl("missionuploadprogress", 0L);
+			store.set("missionuploadprogress", 14L);
+			Thread.sleep(100L);
+			assertEquals(14L, store.peekLong("missionuploadprogress", -1L), backend + ": no more time to live");
+		}
+		assertThrows(UnsupportedOperationException.class,
+				() -> StateStore.create(Backend.PERSISTENT).setTtl("battery", 50L));
+		assertThrows(IllegalArgumentException.class,
+				() -> StateStore.create(Backend.SYNCHRONIZED).setTtl("battery", -1L));
+	}
+
+	@Test
+	void testTtlIsRefreshedByWrites() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		store.setTtl("battery", 200L);
+		store.setTtl("coord", 200L);
+		store.setTtl("mission", 200L);
+		store.set("coord", new HashMap<String, Object>());
+		store.set("battery", 98.5);
+		store.addToList("mission", "takeoff");
+		long end = System.nanoTime() + 600_000_000L;
+		for (double battery = 98.0; System.nanoTime() - end < 0L; battery -= 0.1) {
+			store.set("battery", battery);
+			store.set(new String[] { "coord", "lat" }, -22.84);
+			store.addToList("mission", "takeoff");
+			Thread.sleep(20L);
+		}
+		assertFalse(Double.isNaN(store.peekDouble("battery")), "written entries do not expire");
+		Map<String, Object> state = store.getState();
+		assertTrue(state.containsKey("coord"), "path writes refresh the entry");
+		assertTrue(state.containsKey("mission"), "repeated events refresh the entry");
+		awaitRemoval(store, "battery");
+		awaitRemoval(store, "coord");
+		awaitRemoval(store, "mission");
+	}
+
+	@Test
+	void testExpiryWheel() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		// some beyond one turn of the wheel (other tests share the wheel, so
+		// only the timers of this store are counted)
+		for (int i = 0; i < 10000; i++)
+			store.set("entry" + i, i, 1000L + i * 3 / 5);
+		assertEquals(10000, timers(store));
+		for (int i = 0; i < 10000; i += 2)
+			store.remove("entry" + i);
+		assertEquals(5000, timers(store), "removals cancel their timer");
+		long deadline = System.currentTimeMillis() + 30000L;
+		while (store.getState().size() > 1 && System.currentTimeMillis() < deadline)
+			Thread.sleep(100L);
+		assertEquals(1, store.getState().size(), "only _updates is left");
+		assertEquals(0, timers(store));
+	}
+
+	/**
+	 * 
+	 * @return entries of a store scheduled in the expiry wheel
+	 */
+	private static int timers(StateStore store) throws Exception {
+		Field field = StateStore.class.getDeclaredField("index");
+		field.setAccessible(true);
+		int timers = 0;
+		ExpiryWheel wheel = ExpiryWheel.shared();
+		synchronized (wheel) {
+			for (Object entry : ((Map<?, ?>) field.get(store)).values()) {
+				ExpiryWheel.Timer timer = ((StateEntry) entry).timer;
+				if (timer != null && timer.slot >= 0)
+					timers++;
+			}
+		}
+		return timers;
+	}
+
+	private static void awaitRemoval(StateStore store, String name) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (store.readState().containsKey(name)) {
+			assertTrue(System.currentTimeMillis() < deadline, name + " should expire");
+			Thread.sleep(10L);
+		}
+	}
+
+	private static byte[] toJson(StateStore store) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		store.writeStateAsJson(out);
+		return out.toByteArray();
+	}
 }
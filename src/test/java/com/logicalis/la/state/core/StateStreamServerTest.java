@@ -0,0 +1,252 @@
+package com.logicalis.la.state.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.logicalis.la.state.core.StateStore.Backend;
+
+class StateStreamServerTest {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/**
+	 * Blocking SSE client over loopback.
+	 */
+	static class Client implements AutoCloseable {
+		final SocketChannel channel;
+		final ByteBuffer in = ByteBuffer.allocate(1 << 16);
+		final StringBuilder text = new StringBuilder();
+		boolean head;
+
+		Client(int port) throws IOException {
+			this(port, "GET /state HTTP/1.1\r\nHost: localhost\r\n\r\n");
+		}
+
+		Client(int port, String request) throws IOException {
+			channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			channel.write(ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII)));
+		}
+
+		/**
+		 * 
+		 * @return the next event
+		 */
+		@SuppressWarnings("unchecked")
+		Map<String, Object> next() throws IOException {
+			while (true) {
+				if (!head) {
+					int end = text.indexOf("\r\n\r\n");
+					if (end >= 0) {
+						assertTrue(text.toString().startsWith("HTTP/1.1 200 OK\r\n"));
+						assertTrue(text.indexOf("Content-Type: text/event-stream\r\n") > 0);
+						text.delete(0, end + 4);
+						head = true;
+						continue;
+					}
+				} else {
+					int end = text.indexOf("\n\n");
+					if (end >= 0) {
+						String event = text.substring(0, end);
+						text.delete(0, end + 2);
+						assertTrue(event.startsWith("data: "), event);
+						return MAPPER.readValue(event.substring(6), Map.class);
+					}
+				}
+				in.clear();
+				if (channel.read(in) < 0)
+					throw new IOException("end of stream");
+				in.flip();
+				text.append(StandardCharsets.UTF_8.decode(in));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	@Test
+	void testFanOut() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		store.set("battery", 98.5);
+		store.addToList("mission", "takeoff");
+		List<Client> clients = new ArrayList<>();
+		try (StateStreamServer server = new StateStreamServer(store, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 20L)) {
+			for (int i = 0; i < 300; i++)
+				clients.add(new Client(server.getPort()));
+			for (Client client : clients) {
+				Map<String, Object> state = client.next();
+				assertEquals(98.5, state.get("battery"));
+			}
+			assertEquals(300, server.getClients());
+
+			long frames = server.getFrames();
+			store.set("battery", 97.0);
+			for (Client client : clients) {
+				Map<String, Object> state = client.next();
+				while (!Double.valueOf(97.0).equals(state.get("battery")))
+					state = client.next();
+			}
+			// one snapshot per change, whatever the number of clients
+			assertTrue(server.getFrames() - frames <= 2, "frames: " + (server.getFrames() - frames));
+
+			for (int i = 0; i < 100; i++)
+				clients.remove(0).close();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (server.getClients() != 200 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(200, server.getClients());
+		} finally {
+			for (Client client : clients)
+				client.close();
+		}
+	}
+
+	@Test
+	void testSlowClientsAreConflated() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StringBuilder payload = new StringBuilder();
+		for (int i = 0; i < 64 * 1024; i++)
+			payload.append('x');
+		store.set("payload", payload.toString());
+		store.set("tick", 0L);
+		try (StateStreamServer server = new StateStreamServer(store, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 5L);
+				Client fast = new Client(server.getPort());
+				Client slow = new Client(server.getPort())) {
+			fast.next();
+			// the slow client does not read while 200 large snapshots go out
+			for (long i = 1; i <= 200; i++) {
+				store.set("tick", i);
+				Map<String, Object> state = fast.next();
+				while (((Number) state.get("tick")).longValue() < i)
+					state = fast.next();
+			}
+			assertTrue(server.getConflated() > 0, "conflated: " + server.getConflated());
+
+			// then catches up with complete events, ending on the latest state
+			// (the first snapshot may repeat the state read on connect)
+			long last = ((Number) slow.next().get("tick")).longValue() - 1L;
+			while (last < 200L) {
+				Map<String, Object> state = slow.next();
+				long tick = ((Number) state.get("tick")).longValue();
+				assertTrue(tick > last);
+				assertEquals(payload.length(), ((String) state.get("payload")).length());
+				last = tick;
+			}
+		}
+	}
+
+	@Test
+	void testConnectGetsCurrentState() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		store.set("battery", 98.5);
+		store.addToList("mission", "takeoff");
+		try (StateStreamServer server = new StateStreamServer(store, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2000L);
+				Client first = new Client(server.getPort())) {
+			// the state on connect, then the first snapshot draining it
+			Map<String, Object> state = first.next();
+			assertEquals(Arrays.asList("takeoff"), state.get("mission"));
+			assertFalse(state.containsKey("_updates"));
+			state = first.next();
+			assertEquals(Arrays.asList("takeoff"), state.get("mission"));
+			assertTrue(state.containsKey("_updates"));
+
+			// changed after that snapshot: a new client sees it before the next one
+			store.set("battery", 97.0);
+			try (Client second = new Client(server.getPort())) {
+				state = second.next();
+				assertEquals(97.0, state.get("battery"));
+				assertEquals(Collections.emptyList(), state.get("mission"));
+			}
+		}
+	}
+
+	@Test
+	void testRequestFollowedByMoreInput() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		store.set("battery", 98.5);
+		try (StateStreamServer server = new StateStreamServer(store, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				Client client = new Client(server.getPort(), "GET / HTTP/1.1\r\n\r\nGET / HTTP/1.1\r\n")) {
+			assertEquals(98.5, client.next().get("battery"));
+		}
+	}
+
+	@Test
+	void testRequestFillingTheBuffer() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		store.set("battery", 98.5);
+		StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\nX-Padding: ");
+		while (request.length() < 8192 - 4)
+			request.append('x');
+		request.append("\r\n\r\n");
+		try (StateStreamServer server = new StateStreamServer(store, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				Client client = new Client(server.getPort(), request.toString())) {
+			assertEquals(98.5, client.next().get("battery"));
+		}
+	}
+
+	@Test
+	void testSkipsFramesThatCannotBeEncoded() throws Exception {
+		StateStore store = StateStore.create(Backend.CONCURRENT);
+		// integers are not a valid state value
+		store.set("invalid", Collections.singletonMap("count", Integer.valueOf(1)));
+		try (StateStreamServer server = new StateStreamServer(store, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 20L);
+				Client client = new Client(server.getPort())) {
+			long deadline = System.currentTimeMillis() + 5000L;
+			while (server.getFailedFrames() < 2L && System.currentTimeMillis() < deadline)
+				Thread.sleep(10L);
+			assertEquals(2L, server.getFailedFrames(), "The state on connect and the first snapshot");
+			assertTrue(server.getFrameError() != null);
+
+			store.remove("invalid");
+			store.set("battery", 97.0);
+			assertEquals(97.0, client.next().get("battery"));
+			assertTrue(server.isRunning());
+			assertEquals(1, server.getClients());
+		}
+	}
+
+	@Test
+	void testCloseReportsWhatStoppedTheServer() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		StateStreamServer server = new StateStreamServer(store, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Field selector = StateStreamServer.class.getDeclaredField("selector");
+		selector.setAccessible(true);
+		((Selector) selector.get(server)).close();
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (server.isRunning() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10L);
+		assertFalse(server.isRunning());
+		assertThrows(IOException.class, server::close);
+	}
+
+	@Test
+	void testOnlyServesGet() throws Exception {
+		StateStore store = StateStore.create(Backend.SYNCHRONIZED);
+		try (StateStreamServer server = new StateStreamServer(store, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()))) {
+			channel.write(ByteBuffer.wrap("POST / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+			assertEquals(-1, channel.read(ByteBuffer.allocate(64)));
+		}
+	}
+}